@@ -0,0 +1,119 @@
+package ie.marine.semanticfishdata.benchmarks;
+
+import ie.marine.semanticfishdata.CompactGraph;
+import ie.marine.semanticfishdata.ResultSetRowSource;
+import ie.marine.semanticfishdata.RowSource;
+import ie.marine.semanticfishdata.SampleMapping;
+import ie.marine.semanticfishdata.SampleRowConverter;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.ontology.OntModel;
+import org.apache.jena.ontology.OntModelSpec;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.graph.GraphFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+// What the benchmarks share: the synthetic sample database, the ontology and mapping from resources/, and the
+// steps of the loading pipeline the same way SemanticFishData does them
+final class BenchmarkData {
+
+	static final String AK = "http://www.semanticweb.org/akennedy/ontologies/2019/9/untitled-ontology-16#";
+
+	// The prefixes our saved queries use
+	static final String PREFIXES = "PREFIX ak:   <" + AK + ">\r\n"
+			+ "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\r\n"
+			+ "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\r\n"
+			+ "PREFIX owl: <http://www.w3.org/2002/07/owl#>\r\n"
+			+ "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\r\n";
+
+	private static final long SEED = 1;
+
+	private BenchmarkData() {
+	}
+
+	// An in-memory H2 database holding rows synthetic samples - it lasts as long as the JVM
+	static String database(int rows) throws SQLException {
+
+		String url = "jdbc:h2:mem:fishsamples" + rows + ";DB_CLOSE_DELAY=-1";
+		try (Connection conn = DriverManager.getConnection(url)) {
+			if (!hasSamples(conn)) SampleGenerator.load(conn, rows, SEED);
+		}
+		return url;
+	}
+
+	private static boolean hasSamples(Connection conn) throws SQLException {
+
+		try (Statement stmt = conn.createStatement();
+			 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = '" + SampleGenerator.TABLE.toUpperCase() + "'")) {
+			return rs.next() && rs.getInt(1) > 0;
+		}
+	}
+
+	// A file from resources/ - the benchmarks are normally run from the top directory, but may be run from benchmarks/
+	static File resource(String name) {
+
+		File file = new File("resources", name);
+		return file.exists() ? file : new File("../resources", name);
+	}
+
+	static SampleMapping mapping() throws IOException {
+		return SampleMapping.load(AK, resource("SampleMapping.properties"));
+	}
+
+	static Graph ontology() {
+
+		Graph graph = GraphFactory.createGraphMem();
+		RDFParser.source(resource("SimpleFish_1710_turt.owl").getPath()).forceLang(Lang.TURTLE).parse(graph);
+		return graph;
+	}
+
+	// Read every row of the sample database, as SemanticFishData does
+	static List<String[]> readRows(String url, SampleMapping mapping) throws Exception {
+
+		List<String[]> rows = new ArrayList<String[]>();
+		try (Connection conn = DriverManager.getConnection(url);
+			 Statement stmt = conn.createStatement();
+			 ResultSet rs = stmt.executeQuery(SampleGenerator.QUERY)) {
+
+			RowSource source = new ResultSetRowSource(rs, mapping.getColumns());
+			String[] row = new String[mapping.getColumns().length];
+			while (source.next(row)) {
+				rows.add(row);
+				row = new String[row.length];
+			}
+		}
+		return rows;
+	}
+
+	// An OntModel holding the ontology and the samples, with the live micro OWL reasoner or without one
+	static OntModel buildModel(Graph ontology, List<String[]> rows, SampleMapping mapping, boolean inference) {
+		return buildModel(ontology, rows, mapping, inference, false);
+	}
+
+	// With compact true the data is held in a CompactGraph rather than Jena's GraphMem
+	static OntModel buildModel(Graph ontology, List<String[]> rows, SampleMapping mapping, boolean inference, boolean compact) {
+
+		OntModel onto = ModelFactory.createOntologyModel(inference ? OntModelSpec.OWL_MEM_MICRO_RULE_INF : OntModelSpec.OWL_MEM,
+				compact ? ModelFactory.createModelForGraph(new CompactGraph(mapping)) : null);
+		onto.add(ModelFactory.createModelForGraph(ontology));
+
+		SampleRowConverter converter = new SampleRowConverter(mapping);
+		StreamRDF sink = StreamRDFLib.graph(onto.getGraph());
+		for (String[] row : rows) converter.convert(row, sink);
+
+		return onto;
+	}
+
+}
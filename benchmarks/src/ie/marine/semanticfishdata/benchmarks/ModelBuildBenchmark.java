@@ -0,0 +1,61 @@
+package ie.marine.semanticfishdata.benchmarks;
+
+import ie.marine.semanticfishdata.SampleMapping;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.ontology.OntModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Building the OntModel from the sample rows, with and without the live OWL reasoner, holding the data in Jena's
+// memory graph or a CompactGraph. With the reasoner the time includes preparing it, which is what the first query
+// after loading would otherwise pay for
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ModelBuildBenchmark {
+
+	@Param({ "10000" })
+	public int rows;
+
+	@Param({ "false", "true" })
+	public boolean inference;
+
+	@Param({ "memory", "compact" })
+	public String store;
+
+	private Graph ontology;
+	private SampleMapping mapping;
+	private List<String[]> sampleRows;
+
+	@Setup
+	public void setup() throws Exception {
+
+		mapping = BenchmarkData.mapping();
+		ontology = BenchmarkData.ontology();
+		sampleRows = BenchmarkData.readRows(BenchmarkData.database(rows), mapping);
+	}
+
+	@Benchmark
+	public OntModel buildModel() {
+
+		OntModel onto = BenchmarkData.buildModel(ontology, sampleRows, mapping, inference, "compact".equals(store));
+		if (inference) onto.prepare();
+		return onto;
+	}
+
+}
@@ -0,0 +1,81 @@
+package ie.marine.semanticfishdata.benchmarks;
+
+import ie.marine.semanticfishdata.QueryService;
+import ie.marine.semanticfishdata.SampleMapping;
+import org.apache.jena.ontology.OntModel;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.QuerySolutionMap;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// The queries SemanticFishData runs after loading, against the model with and without the live reasoner, held in
+// Jena's memory graph or a CompactGraph
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryBenchmark {
+
+	@Param({ "10000" })
+	public int rows;
+
+	@Param({ "false", "true" })
+	public boolean inference;
+
+	@Param({ "memory", "compact" })
+	public String store;
+
+	@Param({ "samples", "species", "divisions", "samplesOfSpecies" })
+	public String query;
+
+	private QueryService queryService;
+	private QuerySolutionMap bindings;
+
+	// The results are written out and thrown away, so the time includes formatting them as SemanticFishData does
+	private final OutputStream out = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Setup
+	public void setup() throws Exception {
+
+		SampleMapping mapping = BenchmarkData.mapping();
+		OntModel onto = BenchmarkData.buildModel(BenchmarkData.ontology(), BenchmarkData.readRows(BenchmarkData.database(rows), mapping), mapping, inference, "compact".equals(store));
+		// The reasoner does most of its work the first time it's asked anything - do that here rather than in the first iteration
+		onto.prepare();
+
+		queryService = new QueryService(DatasetFactory.wrap(onto), BenchmarkData.PREFIXES, 0, 0);
+		queryService.registerAll(BenchmarkData.resource("queries"));
+
+		// Mackerel, as in SemanticFishData
+		bindings = new QuerySolutionMap();
+		bindings.add("species", ResourceFactory.createResource(BenchmarkData.AK + "Species/127023"));
+	}
+
+	@Benchmark
+	public long runQuery() {
+		return queryService.execute(query, "samplesOfSpecies".equals(query) ? bindings : null, QueryService.ResultFormat.TEXT, out);
+	}
+
+}
@@ -0,0 +1,91 @@
+package ie.marine.semanticfishdata.benchmarks;
+
+import ie.marine.semanticfishdata.ResultSetRowSource;
+import ie.marine.semanticfishdata.RowSource;
+import ie.marine.semanticfishdata.SampleMapping;
+import ie.marine.semanticfishdata.SampleRowConverter;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Turning sample rows into triples - on its own, and together with reading the rows from the database
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RowConversionBenchmark {
+
+	@Param({ "10000" })
+	public int rows;
+
+	private String url;
+	private SampleMapping mapping;
+	private List<String[]> sampleRows;
+
+	// Counts the triples so the work can't be optimized away
+	private static final class CountingSink extends StreamRDFBase {
+
+		long triples;
+
+		@Override
+		public void triple(Triple triple) {
+			triples++;
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+
+		url = BenchmarkData.database(rows);
+		mapping = BenchmarkData.mapping();
+		sampleRows = BenchmarkData.readRows(url, mapping);
+	}
+
+	@Benchmark
+	public long convertRows() {
+
+		SampleRowConverter converter = new SampleRowConverter(mapping);
+		CountingSink sink = new CountingSink();
+		for (String[] row : sampleRows) converter.convert(row, sink);
+		return sink.triples;
+	}
+
+	@Benchmark
+	public long readAndConvertRows(Blackhole blackhole) throws Exception {
+
+		SampleRowConverter converter = new SampleRowConverter(mapping);
+		CountingSink sink = new CountingSink();
+
+		try (Connection conn = DriverManager.getConnection(url);
+			 Statement stmt = conn.createStatement();
+			 ResultSet rs = stmt.executeQuery(SampleGenerator.QUERY)) {
+
+			RowSource source = new ResultSetRowSource(rs, mapping.getColumns());
+			String[] row = new String[mapping.getColumns().length];
+			while (source.next(row)) converter.convert(row, sink);
+		}
+		blackhole.consume(converter.getInternCache());
+		return sink.triples;
+	}
+
+}
@@ -0,0 +1,117 @@
+package ie.marine.semanticfishdata.benchmarks;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.Random;
+
+// Fills a database table with made-up fish samples that have the same columns as the results of StockmanQuery.sql,
+// so the loading pipeline can be run and timed without the SQL Server database. The same seed always gives the
+// same samples. Lengths, weights and ages roughly follow each other, and weights and ages are often missing, as
+// they are in the real data.
+//
+// Run on its own it creates a stand-in database that SemanticFishData can load from, e.g.
+//   java -cp benchmarks/target/benchmarks.jar ie.marine.semanticfishdata.benchmarks.SampleGenerator jdbc:h2:./resources/fishsamples 100000
+// then set jdbcDriver=org.h2.Driver, jdbcUrl=jdbc:h2:./resources/fishsamples and queryFile=resources/FishSampleQuery.sql
+public class SampleGenerator {
+
+	public static final String TABLE = "FishSample";
+
+	// Reads the samples back in the column order StockmanQuery.sql uses - the same as resources/FishSampleQuery.sql
+	public static final String QUERY = "SELECT SampleID, ICES_Div, AphiaID, FishLength, FishWeight, Age, SampleDate, Gear, Scheme FROM "
+			+ TABLE + " ORDER BY SampleID";
+
+	// AphiaID, and the smallest and largest length (cm) we'd expect to see
+	private static final int[][] SPECIES = {
+			{ 127023, 20, 45 },		// mackerel
+			{ 126484, 15, 100 },	// hake
+			{ 126436, 20, 110 },	// cod
+			{ 126437, 15, 65 },		// haddock
+			{ 126438, 15, 50 },		// whiting
+			{ 126417, 15, 35 },		// herring
+			{ 127146, 15, 55 },		// megrim
+			{ 127143, 15, 60 },		// plaice
+			{ 126439, 10, 30 },		// blue whiting
+			{ 127160, 15, 50 } };	// sole
+
+	private static final String[] DIVISIONS = { "6.a", "6.b", "7.a", "7.b", "7.c", "7.g", "7.h", "7.j", "7.k" };
+	private static final String[] GEARS = { "OTB", "PTM", "GNS", "LLS", "TBB" };
+	private static final String[] SCHEMES = { "DemSea", "PelSea", "Port" };
+
+	private static final LocalDate FIRST_DATE = LocalDate.of(2010, 1, 1);
+	private static final int DAYS = 10 * 365;
+
+	private static final int BATCH_SIZE = 1000;
+
+	// (Re)create the table and fill it with rows samples
+	public static void load(Connection conn, int rows, long seed) throws SQLException {
+
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute("DROP TABLE IF EXISTS " + TABLE);
+			stmt.execute("CREATE TABLE " + TABLE + " (SampleID INT PRIMARY KEY, ICES_Div VARCHAR(10), AphiaID INT, "
+					+ "FishLength DECIMAL(6,1), FishWeight INT, Age INT, SampleDate TIMESTAMP, Gear VARCHAR(10), Scheme VARCHAR(10))");
+		}
+
+		Random random = new Random(seed);
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+
+		try (PreparedStatement insert = conn.prepareStatement("INSERT INTO " + TABLE + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+			for (int i = 1; i <= rows; i++) {
+				addSample(insert, i, random);
+				insert.addBatch();
+				if (i % BATCH_SIZE == 0) insert.executeBatch();
+			}
+			insert.executeBatch();
+			conn.commit();
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	private static void addSample(PreparedStatement insert, int sampleID, Random random) throws SQLException {
+
+		int[] species = SPECIES[random.nextInt(SPECIES.length)];
+		double length = species[1] + random.nextDouble() * (species[2] - species[1]);
+		length = Math.round(length * 2) / 2.0;
+
+		insert.setInt(1, sampleID);
+		insert.setString(2, DIVISIONS[random.nextInt(DIVISIONS.length)]);
+		insert.setInt(3, species[0]);
+		insert.setBigDecimal(4, BigDecimal.valueOf(length));
+
+		// Weight (g) from length with the usual cube law, measured for about a third of the fish
+		if (random.nextInt(3) == 0) insert.setInt(5, (int) Math.round(0.008 * Math.pow(length, 3.05) * (0.9 + random.nextDouble() * 0.2)));
+		else insert.setNull(5, Types.INTEGER);
+
+		// Age (years), aged for about a quarter of the fish
+		if (random.nextInt(4) == 0) insert.setInt(6, Math.max(0, (int) (length / (species[2] / 10.0)) + random.nextInt(3) - 1));
+		else insert.setNull(6, Types.INTEGER);
+
+		insert.setTimestamp(7, Timestamp.valueOf(FIRST_DATE.plusDays(random.nextInt(DAYS)).atStartOfDay()));
+		insert.setString(8, GEARS[random.nextInt(GEARS.length)]);
+		insert.setString(9, SCHEMES[random.nextInt(SCHEMES.length)]);
+	}
+
+	// Create a stand-in database: SampleGenerator jdbcUrl [rows]
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 1) {
+			System.out.println("Usage: SampleGenerator jdbcUrl [rows]");
+			return;
+		}
+		int rows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+		try (Connection conn = DriverManager.getConnection(args[0])) {
+			load(conn, rows, 1);
+		}
+		System.out.println("Created " + rows + " samples in " + args[0]);
+	}
+
+}
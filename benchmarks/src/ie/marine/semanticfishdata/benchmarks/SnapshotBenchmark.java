@@ -0,0 +1,78 @@
+package ie.marine.semanticfishdata.benchmarks;
+
+import ie.marine.semanticfishdata.SampleMapping;
+import ie.marine.semanticfishdata.SnapshotFormat;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Saving the loaded data in each snapshot format, and reading it back in as a later run would
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SnapshotBenchmark {
+
+	@Param({ "10000" })
+	public int rows;
+
+	@Param({ "rdfxml", "thrift", "thrift.gz", "nt.gz", "ttl.gz" })
+	public String format;
+
+	private SnapshotFormat snapshotFormat;
+	private Graph data;
+	private File saveFile;
+	private File reloadFile;
+
+	@Setup
+	public void setup() throws Exception {
+
+		SampleMapping mapping = BenchmarkData.mapping();
+		data = BenchmarkData.buildModel(BenchmarkData.ontology(), BenchmarkData.readRows(BenchmarkData.database(rows), mapping), mapping, false).getGraph();
+
+		snapshotFormat = SnapshotFormat.forName(format);
+		saveFile = File.createTempFile("save", snapshotFormat.getExtension());
+		reloadFile = File.createTempFile("reload", snapshotFormat.getExtension());
+		snapshotFormat.write(data, reloadFile);
+	}
+
+	@TearDown
+	public void tearDown() {
+
+		saveFile.delete();
+		reloadFile.delete();
+	}
+
+	@Benchmark
+	public long save() throws IOException {
+
+		snapshotFormat.write(data, saveFile);
+		return saveFile.length();
+	}
+
+	@Benchmark
+	public Graph reload() throws IOException {
+
+		Graph graph = GraphFactory.createGraphMem();
+		snapshotFormat.read(reloadFile, graph);
+		return graph;
+	}
+
+}
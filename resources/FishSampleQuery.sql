@@ -0,0 +1 @@
+SELECT SampleID, ICES_Div, AphiaID, FishLength, FishWeight, Age, SampleDate, Gear, Scheme FROM FishSample ORDER BY SampleID
@@ -1,31 +1,93 @@
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.ontology.*;
 import org.apache.jena.query.Dataset;
-import org.apache.jena.query.QueryExecution;
-import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.DatasetFactory;
 import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.QuerySolutionMap;
 import org.apache.jena.query.ReadWrite;
 import org.apache.jena.query.ResultSet;
-import org.apache.jena.query.ResultSetFormatter;
 import org.apache.jena.rdf.model.*;
-import org.apache.jena.reasoner.ValidityReport;
-import org.apache.jena.reasoner.ValidityReport.Report;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.sparql.core.DatasetGraphReadOnly;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.graph.GraphReadOnly;
+import org.apache.jena.system.Txn;
+import org.apache.jena.tdb2.TDB2Factory;
+import org.apache.jena.tdb2.loader.DataLoader;
+import org.apache.jena.tdb2.loader.LoaderFactory;
+import org.apache.jena.tdb2.sys.TDBInternal;
 
+import ie.marine.semanticfishdata.BatchQueryRunner;
+import ie.marine.semanticfishdata.ChunkedValidator;
+import ie.marine.semanticfishdata.CompactGraph;
+import ie.marine.semanticfishdata.DelimitedFile;
+import ie.marine.semanticfishdata.FileWatcher;
+import ie.marine.semanticfishdata.InferenceMaterializer;
+import ie.marine.semanticfishdata.IngestMetrics;
+import ie.marine.semanticfishdata.IngestionPipeline;
+import ie.marine.semanticfishdata.InternCache;
+import ie.marine.semanticfishdata.MaterializingStream;
+import ie.marine.semanticfishdata.MeasurementIndex;
+import ie.marine.semanticfishdata.Metrics;
+import ie.marine.semanticfishdata.PartitionedStore;
+import ie.marine.semanticfishdata.Partitioning;
+import ie.marine.semanticfishdata.QueryService;
+import ie.marine.semanticfishdata.QueryService.ResultFormat;
+import ie.marine.semanticfishdata.RangeExtractor;
+import ie.marine.semanticfishdata.ResultSetRowSource;
+import ie.marine.semanticfishdata.SampleMapping;
+import ie.marine.semanticfishdata.RowSource;
+import ie.marine.semanticfishdata.SampleRowConverter;
+import ie.marine.semanticfishdata.SampleUpsertStream;
+import ie.marine.semanticfishdata.SamplingSummaryIndex;
+import ie.marine.semanticfishdata.SnapshotFormat;
+import ie.marine.semanticfishdata.SparqlEndpoint;
+import ie.marine.semanticfishdata.StreamRDFTee;
+import ie.marine.semanticfishdata.VocabularyIndex;
+import ie.marine.semanticfishdata.Watermark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import org.apache.jena.util.iterator.ExtendedIterator;
 import java.sql.*;
-import java.sql.Statement;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 
 // This program loads sample data from a database, converts it to instances of the Ontology classes
@@ -76,26 +138,60 @@ public class SemanticFishData {
 			+"PREFIX rdf: <" + rdf + ">\r\n"
 			+"PREFIX owl: <" + owl + ">\r\n";
 
-	// Some classes from our ontology
-	//static OntClass samplingSummary;
-	static OntClass sample;
-	//static OntClass bioSample;
-	static OntClass species;
-	static OntClass concept;
-	static OntClass ICESDivision;
-	static OntClass LandingDate;
-	static OntClass Measurement;
-	static OntClass Observation;
-	static OntClass Quality;
-	static OntClass Unit;
+	// How each row from the database is turned into triples - read from the mapping file once at startup
+	static SampleMapping sampleMapping;
 	
 	static Dataset tdbDataset;
 	
+	// Counts of samples and observations by species, year, quarter, area and gear
+	static SamplingSummaryIndex summaryIndex;
+	
+	// Length, weight and age measurements sorted by value - built when first needed, and replaced when the data is
+	static Supplier<MeasurementIndex> measurementIndex;
+	
+	// Our SPARQL queries, each parsed once and kept
+	static QueryService queryService;
+	
+	// Counts and timings for loading and querying the data, written to metricsFile and served at /metrics
+	static final Metrics metrics = new Metrics();
+	static final IngestMetrics ingestMetrics = new IngestMetrics(metrics);
+	
+	// How far through the source data we have loaded - null if the last load didn't complete
+	static Watermark watermark = new Watermark();
+	
 	// used for storing config data (e.g. user names, password, Url etc)
 	static Properties myProperties;
 	
+	static final String CONFIG_FILE = "resources/app.config";
 	static final String OUTPUT_FILE = "resources/MyOntologyData.rdf";
+	static final String ONTOLOGY_FILE = "resources/SimpleFish_1710_turt.owl";
+	static final String TDB_LOCATION = "resources/tdb2";
+	static final String QUERY_DIRECTORY = "resources/queries";
+	static final String BATCH_OUTPUT_DIRECTORY = "resources/reports";
+	static final String EXTRACT_DIRECTORY = "resources/extract";
+	static final String SUMMARY_VOCAB_FILE = "resources/SamplingSummary.n3";
+	static final String MAPPING_FILE = "resources/SampleMapping.properties";
+	
+	// If true the reasoner is run once after loading and its results saved, rather than running live under every query
+	static boolean materializeInference;
+	
+	// If true the in-memory data is held in CompactGraphs rather than Jena's memory graphs, which take several times the heap
+	static boolean compactStore;
+	
+	// Where, and in what format, the data is saved between runs when it's held in memory
+	static SnapshotFormat snapshotFormat;
+	static File snapshotFile;
+	
+	// Set when the in-memory data is split into a named graph per year and/or ICES division or area
+	static Partitioning partitioning;
+	static PartitionedStore partitionedStore;
+	static File partitionDirectory;
+	static final String PARTITION_DIRECTORY = "resources/partitions";
 	static final String VOCAB_FILE = "resources/MyVocabData.rdf";
+	static final String VOCAB_INDEX_FILE = "resources/MyVocabData.idx";
+	
+	// Set while serving if serverWatchSeconds is - the config, ontology and saved data files that trigger a reload
+	static FileWatcher fileWatcher;
 	
 	// Main function
 	public static void main(String[] args) {
@@ -105,77 +201,157 @@ public class SemanticFishData {
 			System.out.println("Started");
 			
 			// STEP 0) LOAD CONFIGURATION FROM FILE
-			myProperties = getConfigFile("resources/app.config");
+			myProperties = getConfigFile(CONFIG_FILE);
+			sampleMapping = SampleMapping.load(ak, new File(getSetting("mappingFile", MAPPING_FILE)), loadVocabulary());
 			
 				
 			// STEP 1) LOAD THE DATA
 			// Either load the data from source, or if you have already saved the data to an RDF file you can just load it from there which will be quicker
-			// Change the value of refreshData as required		
-			boolean refreshData = true;
+			// Change the value of refreshData as required (or set it in the config file)
+			boolean refreshData = Boolean.parseBoolean(getSetting("refreshData", "true"));
+			
+			// The data can either be kept in memory (the default) or in a TDB2 store on disk which later runs
+			// can open straight away
+			boolean useTDB = "tdb2".equalsIgnoreCase(getSetting("storeMode", "memory"));
+			compactStore = "compact".equalsIgnoreCase(getSetting("storeMode", "memory"));
+			
+			// An incremental refresh only fetches the rows added (or recently changed) since the last load
+			// and upserts them into the saved data - it needs a previous load and its watermark to work from
+			boolean incrementalRefresh = Boolean.parseBoolean(getSetting("incrementalRefresh", "false"));
 			
-			// Checking validity can take a lot of memory - probably best to use it on smaller sets of data rather than trying to
-			// run it on larger data sets
-			boolean checkValidity = false;
+			// Inference can either be done live by the OntModel (the default) or worked out once and materialized into the data
+			materializeInference = "materialized".equalsIgnoreCase(getSetting("inference", "live"));
 			
+			// RDF/XML is the default so data saved by earlier runs can still be read, but the other formats are much quicker to save and load
+			snapshotFormat = SnapshotFormat.forName(getSetting("snapshotFormat", "rdfxml"));
+			snapshotFile = new File(getSetting("snapshotFile", snapshotFormat == SnapshotFormat.RDFXML ? OUTPUT_FILE : "resources/MyOntologyData" + snapshotFormat.getExtension()));
+			File watermarkFile = useTDB ? new File(getSetting("tdbLocation", TDB_LOCATION), "watermark.properties") : new File(snapshotFile.getPath() + ".watermark");
+			
+			// Partitions can be loaded, saved and refreshed separately, and queries only search the partitions they need
+			String partitionBy = getSetting("partitionBy", null);
+			if (partitionBy != null && useTDB) {
+				System.out.println("partitionBy is only used when the data is held in memory - ignoring it");
+			} else if (partitionBy != null) {
+				partitioning = Partitioning.forName(partitionBy);
+				partitionDirectory = new File(getSetting("partitionDirectory", PARTITION_DIRECTORY));
+				// Each partition's inferences are worked out as it's loaded
+				if (!materializeInference) System.out.println("Partitioned data always has its inferences materialized");
+				materializeInference = true;
+				if (incrementalRefresh) System.out.println("incrementalRefresh isn't used with partitionBy - use refreshPartitions to reload some of the partitions");
+			}
 			
-			if (refreshData) {			
+			// The data is validated a chunk of samples at a time so this works on large data sets too
+			boolean checkValidity = Boolean.parseBoolean(getSetting("checkValidity", "false"));
+			
+			
+			// Sampling summary counts, kept up to date as the data is loaded
+			summaryIndex = new SamplingSummaryIndex(sampleMapping);
+			ingestMetrics.onAccepted(summaryIndex::add);
+			
+			if (useTDB) {
+				tdbDataset = openTDBStore();
+				if (incrementalRefresh && watermarkFile.exists() && !isStoreEmpty(tdbDataset)) {
+					watermark = Watermark.load(watermarkFile);
+					refreshTDBIncrementally(tdbDataset);
+					saveWatermark(watermarkFile);
+				} else if (refreshData || isStoreEmpty(tdbDataset)) {
+					refreshData = true;
+					tdbDataset = loadDataIntoTDB(tdbDataset);
+					saveWatermark(watermarkFile);
+				} else {
+					// The summaries were saved in the store last time - pick the counts up from there
+					Txn.executeRead(tdbDataset, () -> summaryIndex.load(tdbDataset.asDatasetGraph().getDefaultGraph()));
+				}
+			} else if (partitioning != null) {
+				String refreshPartitions = getSetting("refreshPartitions", null);
+				if (refreshPartitions != null) {
+					loadPartitionsFromRDF();
+					onto = loadPartitionsFromSource(new TreeSet<String>(Arrays.asList(refreshPartitions.split("\\s*,\\s*"))));
+					refreshData = true;
+				} else if (refreshData) {
+					onto = loadPartitionsFromSource(null);
+				} else {
+					onto = loadPartitionsFromRDF();
+				}
+			} else if (incrementalRefresh && watermarkFile.exists() && snapshotFile.exists()) {
+				onto = loadDataFromRDF();
+				watermark = Watermark.load(watermarkFile);
+				refreshModelIncrementally(onto);
+				// Make sure the updated data gets saved
+				refreshData = true;
+			} else if (refreshData) {			
 				onto = loadDataFromSource();
 			} else {				
 				onto = loadDataFromRDF();
+				summaryIndex.load(onto.getBaseModel().getGraph());
 			}
 			
 			
 			// STEP 2) CHECK IF OUR ONTMODEL DATA IS VALID
-			if (checkValidity) checkValidity(onto);
+			if (checkValidity && !checkValidity()) {
+				System.out.println("Stopping because the data isn't valid");
+				return;
+			}
 			
 
 			
 			// STEP 3) RUN SOME SPARQL QUERIES SO WE CAN SEE WHAT THE DATA LOOKS LIKE
 			
 			System.out.println("Run SPARQL queries");
-			String myQueryString = "";
-		
-			// Look at some records 
-			myQueryString = "SELECT ?s\r\n" + 
-					"WHERE\r\n" + 
-					"   { ?s rdf:type ak:Sample }\r\n" + 
-					"LIMIT 2";
-			executeSPARQL(prefixString + " " + myQueryString);
 			
-			// Look at some records 
-			myQueryString = "SELECT ?s\r\n" + 
-					"WHERE\r\n" + 
-					"   { ?s rdf:type ak:Species }\r\n" + 
-					"LIMIT 2";
-			executeSPARQL(prefixString + " " + myQueryString);
+			queryService = new QueryService(useTDB ? tdbDataset : DatasetFactory.wrap(onto), prefixString,
+					getIntSetting("queryTimeoutMillis", 60000), getIntSetting("queryRowLimit", 10000), metrics);
+			queryService.registerAll(new File(getSetting("queryDirectory", QUERY_DIRECTORY)));
+			if (partitionedStore != null) queryService = queryService.withPartitions(partitionedStore);
+			measurementIndex = newMeasurementIndex();
 			
 			// Look at some records 
-			myQueryString = "SELECT ?s\r\n" + 
-					"WHERE\r\n" + 
-					"   { ?s rdf:type ak:ICESDivision }\r\n" + 
-					"LIMIT 2";
-			executeSPARQL(prefixString + " " + myQueryString);
+			runQuery("samples", null);
+			runQuery("species", null);
+			runQuery("divisions", null);
 			
 			// Look at some mackerel samples 
-			myQueryString = "SELECT ?s\r\n" + 
-					"WHERE\r\n" + 
-					"   { ?s ak:hasSpecies <http://www.semanticweb.org/akennedy/ontologies/2019/9/untitled-ontology-16#Species/127023>}\r\n" + 
-					"LIMIT 5";
-			executeSPARQL(prefixString + " " + myQueryString);
+			QuerySolutionMap mackerel = new QuerySolutionMap();
+			mackerel.add("species", ResourceFactory.createResource(ak + "Species/127023"));
+			runQuery("samplesOfSpecies", mackerel);
+			
+			// The sampling summaries can answer "how many" questions without looking at the samples at all
+			System.out.println("Mackerel sampling summary: " + summaryIndex.lookup("127023", null, null, null, null));
+			runQuery("samplingSummary", mackerel);
+			
+			// Range questions about the measurements are answered from the measurement index rather than a FILTER over every observation
+			System.out.println("Measurements: " + measurementIndex.get());
+			System.out.println("Hake of 40 cm or more in 7.g: " + measurementIndex.get().find("Length", 40, Double.MAX_VALUE, "126484", "7.g").size());
+			QuerySolutionMap overLength = new QuerySolutionMap();
+			overLength.add("minLength", ResourceFactory.createTypedLiteral("40", XSDDatatype.XSDinteger));
+			runQuery("samplesOverLength", overLength);
+			
+			// When the data is partitioned these only search the partitions for 7.g, or for 2019
+			QuerySolutionMap division = new QuerySolutionMap();
+			division.add("division", ResourceFactory.createResource(ak + "ICESDivision/7.g"));
+			runQuery("samplesInDivision", division);
+			QuerySolutionMap year = new QuerySolutionMap();
+			year.add("year", ResourceFactory.createTypedLiteral("2019", XSDDatatype.XSDinteger));
+			runQuery("samplesInYear", year);
+			
+			// Run a batch of report queries at once if we've been given some
+			String batchQueries = getSetting("batchQueries", null);
+			if (batchQueries != null) runBatchQueries(batchQueries, useTDB);
+			
+			saveMetrics();
 			
 						
 			// STEP 4) Save the data to a RDF format text file if we have refreshed it
-			if (refreshData) {
-		        System.out.println("Save the data to an RDF/XML format text file");
-		                
-		        try (OutputStream myFile = new FileOutputStream(OUTPUT_FILE)) {
-		        	 
-					onto.write(myFile, "RDFXML") ;
-		 
-		        } catch (IOException e) {
-		            e.printStackTrace();
-		        }
-	        
+			// (when we're using TDB2 the store itself is our saved copy of the data)
+			if (refreshData && !useTDB) saveData(watermarkFile);
+			
+			
+			// STEP 5) SERVE THE DATA OVER HTTP IF WE'VE BEEN ASKED TO
+			// This is instead of copying the saved data into a Fuseki container, which has to parse it all again when it starts
+			int serverPort = getIntSetting("serverPort", 0);
+			if (serverPort > 0) {
+				serveData(serverPort, useTDB, watermarkFile);
+				return;
 			}
 	        			
 			// finished
@@ -192,6 +368,267 @@ public class SemanticFishData {
 
 	}
 	
+	// Save the in-memory data, and its watermark, so the next run can load it from file
+	private static void saveData(File watermarkFile) throws IOException {
+		
+		if (partitionedStore != null) {
+			System.out.println("Save each partition to: " + partitionDirectory);
+			partitionedStore.save(partitionDirectory, snapshotFormat);
+		} else if (snapshotFormat == SnapshotFormat.RDFXML) {
+	        System.out.println("Save the data to an RDF/XML format text file");
+	                
+	        SnapshotFormat.replace(snapshotFile, myFile -> onto.write(myFile, "RDFXML"));
+		} else {
+			// Only the base graph is saved - the inferred triples are worked out again when the data is loaded
+			System.out.println("Save the data to: " + snapshotFile);
+			snapshotFormat.write(onto.getBaseModel().getGraph(), snapshotFile);
+		}
+        
+        saveWatermark(watermarkFile);
+	}
+	
+	// Start a SPARQL endpoint over the data we've loaded. It keeps running, with the data loaded and ready, until the
+	// program is stopped. The data is reloaded in the background every serverRefreshMinutes, when POST /refresh asks
+	// for it, and when the config, ontology or saved data change if serverWatchSeconds is set
+	private static void serveData(int port, boolean useTDB, File watermarkFile) throws IOException {
+		
+		// The live reasoner isn't safe for several threads to query at once, so unless the inferences are materialized
+		// (or we're using TDB2) the in-memory model is queried one query at a time
+		int maxConcurrentQueries = getIntSetting("serverMaxConcurrentQueries", 4);
+		if (!useTDB && !materializeInference) maxConcurrentQueries = 1;
+		
+		SparqlEndpoint endpoint = new SparqlEndpoint(getSetting("serverBindAddress", null), port, queryService, maxConcurrentQueries, getIntSetting("serverQueueWaitMillis", 5000));
+		serveIndexes(endpoint);
+		
+		// Reloads are done one at a time on their own thread. Asking for a refresh while one is already waiting to start doesn't add another
+		ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor();
+		AtomicBoolean refreshWaiting = new AtomicBoolean();
+		endpoint.setRefreshHandler(() -> {
+			if (refreshWaiting.compareAndSet(false, true)) {
+				reloader.execute(() -> {
+					refreshWaiting.set(false);
+					refreshWhileServing(endpoint, useTDB, watermarkFile, false);
+				});
+			}
+		});
+		
+		endpoint.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(endpoint::stop));
+		System.out.println("SPARQL endpoint running at http://localhost:" + endpoint.getPort() + "/sparql");
+		
+		int refreshMinutes = getIntSetting("serverRefreshMinutes", 0);
+		if (refreshMinutes > 0) {
+			reloader.scheduleWithFixedDelay(() -> refreshWhileServing(endpoint, useTDB, watermarkFile, false), refreshMinutes, refreshMinutes, TimeUnit.MINUTES);
+		}
+		
+		int watchSeconds = getIntSetting("serverWatchSeconds", 0);
+		if (watchSeconds > 0) {
+			List<File> watched = new ArrayList<File>(Arrays.asList(new File(CONFIG_FILE), new File(ONTOLOGY_FILE)));
+			if (partitionedStore != null) watched.add(partitionDirectory);
+			else if (!useTDB) watched.add(snapshotFile);
+			fileWatcher = new FileWatcher(watched);
+			reloader.scheduleWithFixedDelay(() -> reloadChangedFiles(endpoint, useTDB, watermarkFile), watchSeconds, watchSeconds, TimeUnit.SECONDS);
+			System.out.println("Reloading when any of these change: " + watched);
+		}
+	}
+	
+	// Reload what the changed files need. New settings or a new ontology mean loading the data again from source,
+	// while saved data written by another run only has to be read in
+	private static void reloadChangedFiles(SparqlEndpoint endpoint, boolean useTDB, File watermarkFile) {
+		
+		List<File> changed = fileWatcher.changed();
+		if (changed.isEmpty()) return;
+		System.out.println("Changed: " + changed);
+		
+		boolean newConfig = changed.contains(new File(CONFIG_FILE));
+		boolean newOntology = changed.contains(new File(ONTOLOGY_FILE));
+		if (newConfig) {
+			// Settings read as the data is loaded (the database, queryFile, ingest settings and so on) take effect.
+			// Those fixed at startup, like storeMode, partitionBy or serverPort, need a restart
+			myProperties = getConfigFile(CONFIG_FILE);
+		}
+		if (newOntology && useTDB) {
+			System.out.println("The TDB2 store keeps the ontology it was loaded with - restart with refreshData=true to load the new one");
+		}
+		
+		if (newConfig || newOntology) {
+			refreshWhileServing(endpoint, useTDB, watermarkFile, newOntology);
+		} else if (!useTDB) {
+			reloadSavedDataWhileServing(endpoint, watermarkFile);
+		}
+	}
+	
+	// Read in the data another run has saved and swap it in for the data being served
+	private static void reloadSavedDataWhileServing(SparqlEndpoint endpoint, File watermarkFile) {
+		
+		OntModel servedModel = onto;
+		try {
+			long startTime = System.currentTimeMillis();
+			if (partitionedStore != null) {
+				// The store swaps the partitions in itself
+				onto = loadPartitionsFromRDF();
+			} else {
+				OntModel reloaded = loadDataFromRDF();
+				summaryIndex.load(reloaded.getBaseModel().getGraph());
+				queryService = queryService.withDataset(DatasetFactory.wrap(reloaded));
+				endpoint.setQueryService(queryService);
+			}
+			watermark = Watermark.load(watermarkFile);
+			measurementIndex = newMeasurementIndex();
+			serveIndexes(endpoint);
+			System.out.println("Now serving the saved data, read in " + (System.currentTimeMillis() - startTime) + " ms");
+		} catch (Exception ex) {
+			System.out.println("Reading the saved data failed - still serving the previous data: " + ex.getMessage());
+			onto = servedModel;
+			restoreServedSummaries();
+		}
+	}
+	
+	// Refresh the data behind the endpoint without disturbing the queries it's running. TDB2 queries read from
+	// a snapshot so they don't see the refresh's write transaction until it commits. In memory we build a new
+	// model alongside the one being queried and swap it in once it's ready. newOntology means everything is
+	// loaded again from source, as the saved data and partitioned store have the old ontology in them
+	private static void refreshWhileServing(SparqlEndpoint endpoint, boolean useTDB, File watermarkFile, boolean newOntology) {
+		
+		// Nothing is saved or swapped in until the new data has loaded, so if it fails these are put back
+		OntModel servedModel = onto;
+		PartitionedStore servedStore = partitionedStore;
+		try {
+			boolean incremental = Boolean.parseBoolean(getSetting("incrementalRefresh", "false")) && watermarkFile.exists() && !newOntology;
+			
+			if (useTDB) {
+				// Reloading the store from scratch would empty it under the readers, so only incremental refreshes are done
+				if (!incremental) {
+					System.out.println("The TDB2 store can only be refreshed while it is being served if incrementalRefresh is set and there is a watermark");
+					return;
+				}
+				watermark = Watermark.load(watermarkFile);
+				refreshTDBIncrementally(tdbDataset);
+				saveWatermark(watermarkFile);
+				measurementIndex = newMeasurementIndex();
+				serveIndexes(endpoint);
+				return;
+			}
+			
+			if (partitionedStore != null) {
+				// The store swaps the new partitions in itself, so the query service only needs replacing when there's
+				// a new store for a new ontology
+				if (newOntology) partitionedStore = null;
+				onto = loadPartitionsFromSource(null);
+				saveData(watermarkFile);
+				if (newOntology) {
+					queryService = queryService.withPartitions(partitionedStore);
+					endpoint.setQueryService(queryService);
+				}
+				measurementIndex = newMeasurementIndex();
+				serveIndexes(endpoint);
+				System.out.println("Now serving the refreshed data");
+				saveMetrics();
+				return;
+			}
+			
+			if (incremental && snapshotFile.exists()) {
+				onto = loadDataFromRDF();
+				watermark = Watermark.load(watermarkFile);
+				refreshModelIncrementally(onto);
+			} else {
+				watermark = new Watermark();
+				summaryIndex.clear();
+				onto = loadDataFromSource();
+			}
+			saveData(watermarkFile);
+			
+			queryService = queryService.withDataset(DatasetFactory.wrap(onto));
+			endpoint.setQueryService(queryService);
+			measurementIndex = newMeasurementIndex();
+			serveIndexes(endpoint);
+			System.out.println("Now serving the refreshed data");
+			saveMetrics();
+			
+		} catch (Exception ex) {
+			System.out.println("Refresh failed - still serving the previous data: " + ex.getMessage());
+			onto = servedModel;
+			partitionedStore = servedStore;
+			try {
+				watermark = Watermark.load(watermarkFile);
+			} catch (IOException e) {
+				watermark = null;
+			}
+			restoreServedSummaries();
+		} finally {
+			// Saving the refreshed data shouldn't set off another reload
+			if (fileWatcher != null) fileWatcher.reset();
+		}
+	}
+	
+	// Give the endpoint the indexes for the data it has just started serving. The summary counts are copied, as the
+	// next refresh counts the new data into summaryIndex while the old data is still being served
+	private static void serveIndexes(SparqlEndpoint endpoint) {
+		
+		endpoint.setSummaryIndex(summaryIndex.copy());
+		endpoint.setMeasurementIndex(measurementIndex);
+	}
+	
+	// Put the sampling summary counts back to those published in the data being served, after a reload that failed
+	// part way through counting the new data
+	private static void restoreServedSummaries() {
+		
+		if (tdbDataset != null) {
+			Txn.executeRead(tdbDataset, () -> summaryIndex.load(tdbDataset.asDatasetGraph().getDefaultGraph()));
+		} else if (partitionedStore != null) {
+			summaryIndex.load(partitionedStore.getSharedGraph());
+		} else {
+			summaryIndex.load(onto.getBaseModel().getGraph());
+		}
+	}
+	
+	// Write the metrics gathered so far to metricsFile, if it's set
+	private static void saveMetrics() {
+		
+		String metricsFile = getSetting("metricsFile", null);
+		if (metricsFile == null) return;
+		
+		try {
+			metrics.save(new File(metricsFile));
+			System.out.println("Saved metrics to: " + metricsFile);
+		} catch (IOException e) {
+			System.out.println("Couldn't save metrics: " + e.getMessage());
+		}
+	}
+	
+	// Index the code lists in the vocabulary files, or read the index saved last time if they haven't changed since
+	private static VocabularyIndex loadVocabulary() throws IOException {
+		
+		List<File> dumps = new ArrayList<File>();
+		for (String name : getSetting("vocabularyFiles", VOCAB_FILE).split("\\s*,\\s*")) {
+			File file = new File(name);
+			if (file.isDirectory()) {
+				File[] files = file.listFiles(File::isFile);
+				Arrays.sort(files);
+				dumps.addAll(Arrays.asList(files));
+			} else if (file.exists()) {
+				dumps.add(file);
+			}
+		}
+		if (dumps.isEmpty()) {
+			System.out.println("No vocabulary files found - species and divisions won't be linked to the ICES and WoRMS code lists");
+			return VocabularyIndex.empty();
+		}
+		
+		File indexFile = new File(getSetting("vocabularyIndex", VOCAB_INDEX_FILE));
+		VocabularyIndex vocabulary = VocabularyIndex.read(indexFile, dumps);
+		if (vocabulary != null) {
+			System.out.println("Read vocabulary index from: " + indexFile);
+		} else {
+			long start = System.currentTimeMillis();
+			vocabulary = VocabularyIndex.parse(dumps);
+			vocabulary.save(indexFile);
+			System.out.println("Indexed " + dumps.size() + " vocabulary files in " + (System.currentTimeMillis() - start) + " ms, saved to: " + indexFile);
+		}
+		System.out.println("Vocabulary: " + vocabulary);
+		return vocabulary;
+	}
+	
 	// Load some settings in from file
 	private static Properties getConfigFile(String fileName) {
 		
@@ -202,6 +639,74 @@ public class SemanticFishData {
 		//			databaseName=YourDatabaseName
 		//			userName=YourUserName
 		//			password=YourPassword
+		//
+		// These settings are optional
+		//			ingestMode=streaming		(stream rows straight into a plain graph rather than the default inferencing OntModel)
+		//			mappingFile=resources/SampleMapping.properties	(how each database row is turned into triples)
+		//			vocabularyFiles=resources/MyVocabData.rdf	(RDF dumps of the ICES and WoRMS code lists to link species and divisions to -
+		//										 files or directories, separated by commas)
+		//			vocabularyIndex=resources/MyVocabData.idx	(where the code lists are saved once indexed, so later runs don't parse them again)
+		//			jdbcDriver=org.h2.Driver	(JDBC driver class to load - SQL Server's by default)
+		//			jdbcUrl=jdbc:h2:./resources/fishsamples	(full connection string, used instead of url, serverName, portNumber and databaseName)
+		//			queryFile=resources/FishSampleQuery.sql	(query that reads the samples - resources/StockmanQuery.sql by default)
+		//			fetchSize=1000				(JDBC fetch size used when streaming)
+		//			extractRanges=16			(split a full load into this many SampleID or SampleDate ranges, read in pages over several
+		//										 connections into files in extractDirectory - a failed extraction carries on where it stopped next run)
+		//			extractRangeKey=SampleDate	(split the samples by SampleID, the default, or by SampleDate)
+		//			extractConnections=4		(number of ranges read from the database at once)
+		//			extractPageSize=50000		(number of rows read by each query of a range)
+		//			extractRetries=5			(times a range is tried again after a lost connection, deadlock or timeout)
+		//			extractDirectory=resources/extract	(where the ranges' rows and the extraction's checkpoint are kept until they're loaded)
+		//			sourceFile=resources/samples.csv	(read the rows from this CSV or TSV extract of the query's results instead of
+		//										 the database - it needs a header line naming the columns)
+		//			sourceFileDelimiter=tab		(tab, comma, pipe or any single character - by default tab for .tsv and .tab files, otherwise comma)
+		//			sourceFileNull=NULL			(value that means NULL in the extract, as well as an empty value)
+		//			streamFile=resources/MyOntologyData.nt	(when streaming, also write the triples to this N-Triples file)
+		//			ingestThreads=4				(when streaming, convert rows on this many worker threads while the database is read -
+		//										 or read and convert this many chunks of the sourceFile at once)
+		//			ingestBatchSize=500			(number of rows passed to a worker at a time)
+		//			internCacheSize=10000		(maximum number of shared species/division/unit/quality individuals to keep to hand)
+		//			refreshData=false			(use the data saved by a previous run rather than reloading it from the database)
+		//			storeMode=tdb2				(keep the data in a TDB2 store on disk rather than in memory - or compact to keep it in
+		//										 memory in dictionary encoded graphs, which need less than half the heap)
+		//			tdbLocation=resources/tdb2	(directory of the TDB2 store)
+		//			incrementalRefresh=true		(only fetch rows newer than the watermark saved by the last run and upsert them)
+		//			incrementalLookbackDays=7	(also re-fetch samples landed this many days before the watermark, to pick up corrections)
+		//			inference=materialized		(run the reasoner once after loading and keep its results, instead of a live reasoner)
+		//			inferenceChunkSize=1000		(with a TDB2 store, number of samples the reasoner is run over at a time while loading)
+		//			snapshotFormat=thrift		(format the data is saved in between runs - rdfxml, thrift, thrift.gz, nt.gz or ttl.gz)
+		//			snapshotFile=resources/MyOntologyData.trdf	(where to save it - by default MyOntologyData with the format's extension)
+		//			partitionBy=year,division	(hold the in-memory data as a named graph per year and/or ICES division or area - queries that
+		//										 bind ?year, ?division or ?area only search the partitions they need. Inferences are materialized)
+		//			partitionDirectory=resources/partitions	(where each partition is saved, in snapshotFormat)
+		//			partitionThreads=4			(number of partitions converted, saved or read at once - defaults to the number of processors)
+		//			refreshPartitions=2019_7.g,2020_7.g	(reload just these partitions from the database and keep the rest as saved)
+		//			incrementalQueryFile=resources/StockmanQueryIncremental.sql	(query to use for incremental refreshes, with
+		//										 parameters for the earliest SampleDate and the last SampleID)
+		//			queryDirectory=resources/queries	(directory of the .rq SPARQL queries to load)
+		//			queryTimeoutMillis=60000	(give up on a query after this long)
+		//			queryRowLimit=10000			(never return more than this many rows from a query)
+		//			queryOutputFormat=csv		(print query results as text, csv, tsv or json)
+		//			batchQueries=resources/reports/queries	(.rq files, or directories of them, to run at once after loading, each
+		//										 writing its results to its own file - a comma separated list)
+		//			batchOutputDirectory=resources/reports	(where the batch queries' results are written, as <query name>.<format>)
+		//			batchFormat=csv				(write the batch queries' results as text, csv, tsv or json)
+		//			batchThreads=8				(number of batch queries run at once - defaults to the number of processors)
+		//			batchRowLimit=0				(stop each batch query after this many rows - 0, the default, for no limit.
+		//										 queryRowLimit doesn't apply to the batch queries)
+		//			serverPort=3030				(after loading, serve the data from a SPARQL endpoint at http://localhost:3030/sparql)
+		//			serverMaxConcurrentQueries=4	(number of queries the endpoint runs at once)
+		//			serverQueueWaitMillis=5000	(how long a query waits for one of those before being turned away)
+		//			serverRefreshMinutes=60		(refresh the data this often while serving it)
+		//			serverBindAddress=127.0.0.1	(only answer queries from this machine - by default the endpoint listens on every address)
+		//			serverWatchSeconds=5		(while serving, check this often for changes to app.config or the ontology, which reload the
+		//										 data from source, or to the saved data, which is read back in - swapping the new data in once loaded)
+		//			metricsFile=resources/metrics.prom	(save the loading and query metrics here - as JSON if it ends in .json, otherwise Prometheus text)
+		//			checkValidity=true			(check the data after loading it)
+		//			validationChunkSize=1000	(number of samples checked at a time)
+		//			validationThreads=4			(number of chunks checked at once - defaults to the number of processors)
+		//			validationStopOnError=true	(stop checking, and stop the program, at the first problem found)
+		//			validationReasoner=true		(also run the OWL reasoner's validity checks on each chunk - slower)
 		
 		System.out.println("Load config from: " + fileName);
 		
@@ -222,37 +727,171 @@ public class SemanticFishData {
 		
 	}
 	
+	// Read an optional setting from the config file, using the default value if it hasn't been set
+	private static String getSetting(String name, String defaultValue) {
+		
+		String value = myProperties == null ? null : myProperties.getProperty(name);
+		return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+	}
+	
+	private static int getIntSetting(String name, int defaultValue) {
+		
+		return Integer.parseInt(getSetting(name, String.valueOf(defaultValue)));
+	}
+	
 	// Load data from their original soruces - use this the first time you run the code of if you have changed anythign and need to refresh your data
-	private static OntModel loadDataFromSource() {
+	private static OntModel loadDataFromSource() throws IOException {
 		
 		// STEP 1) LOAD IN OUR ONTOLOGY FROM FILE
 		
-		// Ontology model class which uses the micro OWL inference engine
-		onto = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM_MICRO_RULE_INF, null );
-		//onto = ModelFactory.createOntologyModel(OntModelSpec.OWL_DL_MEM_RULE_INF , null );
+		boolean streaming = "streaming".equalsIgnoreCase(getSetting("ingestMode", "ontmodel"));
+		
+		if (streaming || materializeInference) {
+			// Plain ontology model without a reasoner - any inference is done once the data has been loaded
+			onto = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM, newBaseModel() );
+		} else {
+			// Ontology model class which uses the micro OWL inference engine
+			onto = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM_MICRO_RULE_INF, newBaseModel() );
+			//onto = ModelFactory.createOntologyModel(OntModelSpec.OWL_DL_MEM_RULE_INF , null );
+		}
 				
 		// Read in the ontology from file
 		System.out.println("Load ontology from file");
-		onto.read( "file:resources/SimpleFish_1710_turt.owl", "TURTLE" );
+		onto.read( "file:" + ONTOLOGY_FILE, "TURTLE" );
+		sampleMapping.checkTerms(onto);
 		
 			
 		// STEP 2) LOAD IN OUR INSTANCE DATA
 							
 		System.out.println("Load data from database and convert to objects in the ontology");
-		getInstanceData();
+		boolean loaded;
+		if (streaming) {
+			StreamRDF sink = StreamRDFLib.graph(onto.getBaseModel().getGraph());
+			String streamFile = getSetting("streamFile", null);
+			if (streamFile != null) {
+				System.out.println("Also writing the data to: " + streamFile);
+				try (OutputStream myFile = new BufferedOutputStream(new FileOutputStream(streamFile))) {
+					loaded = getInstanceData(new StreamRDFTee(sink, StreamRDFWriter.getWriterStream(myFile, RDFFormat.NTRIPLES)), false);
+				}
+			} else {
+				loaded = getInstanceData(sink, false);
+			}
+		} else {
+			// Added through the OntModel's own graph so its reasoner sees the data
+			loaded = getInstanceData(StreamRDFLib.graph(onto.getGraph()), false);
+		}
+		if (!loaded) throw new IOException("Load from the database failed");
+		
+		if (materializeInference) onto = materializeInference(onto);
+		
+		publishSamplingSummaries(onto.getGraph());
 				
 		return onto;
 		
 	}
 	
+	// The partitioned store, made the first time it's needed
+	private static PartitionedStore getPartitionedStore() {
+		
+		if (partitionedStore == null) {
+			Graph schema = GraphFactory.createGraphMem();
+			RDFParser.source(ONTOLOGY_FILE).forceLang(Lang.TURTLE).parse(schema);
+			partitionedStore = new PartitionedStore(sampleMapping, partitioning, schema, getIntSetting("partitionThreads", Runtime.getRuntime().availableProcessors()),
+					SemanticFishData::newGraph);
+		}
+		return partitionedStore;
+	}
+	
+	// An OntModel over the shared graph and all the partitions. Their inferences are already there so it doesn't need a reasoner
+	private static OntModel getPartitionModel() {
+		
+		return ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM, ModelFactory.createModelForGraph(partitionedStore.getUnionGraph()));
+	}
+	
+	// Load the data from the database into partitions - all of them if keys is null, otherwise just the partitions
+	// in keys, keeping the others as they are. The new partitions only replace the old ones once they have all loaded
+	private static OntModel loadPartitionsFromSource(Set<String> keys) throws IOException {
+		
+		PartitionedStore store = getPartitionedStore();
+		sampleMapping.checkTerms(ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM, ModelFactory.createModelForGraph(store.getSharedGraph())));
+		
+		Map<String, Graph> replaced = new HashMap<String, Graph>();
+		if (keys == null) {
+			System.out.println("Load data from database into partitions by " + partitioning);
+			summaryIndex.clear();
+		} else {
+			System.out.println("Reload partitions " + keys + " from database");
+			for (String key : keys) {
+				if (store.getPartition(key) != null) replaced.put(key, store.getPartition(key));
+			}
+		}
+		
+		final int ingestBatchSize = getIntSetting("ingestBatchSize", 500);
+		final int internCacheSize = getIntSetting("internCacheSize", InternCache.DEFAULT_SIZE);
+		// The summaries are published into the new shared graph the store swaps in along with the new partitions
+		boolean loaded = getInstanceData(false, keys == null ? null : row -> keys.contains(partitioning.getKey(row)),
+				sources -> store.load(RowSource.concat(sources), keys, sampleMapping, ingestBatchSize, internCacheSize, ingestMetrics, shared -> {
+					removeSamplesFromSummaries(replaced.values());
+					publishSamplingSummaries(shared);
+				}));
+		if (!loaded) throw new IOException("Partitions not loaded - the previous partitions have been kept");
+		
+		System.out.println("Partitions: " + store);
+		return onto = getPartitionModel();
+	}
+	
+	// Take the samples that were in the replaced partitions off the summary counts. The reasoner types
+	// nearly everything as a Sample so they're picked out by the mapping's sample IRIs
+	private static void removeSamplesFromSummaries(Collection<Graph> replaced) {
+		
+		Node sampleClass = NodeFactory.createURI(ak + "Sample");
+		for (Graph old : replaced) {
+			for (Triple t : old.find(Node.ANY, RDF.Nodes.type, sampleClass).toList()) {
+				if (sampleMapping.isSample(t.getSubject())) summaryIndex.remove(old, t.getSubject());
+			}
+		}
+	}
+	
+	// Load the partitions saved by an earlier run, several at once
+	private static OntModel loadPartitionsFromRDF() throws IOException {
+		
+		System.out.println("Read partitions from: " + partitionDirectory);
+		
+		PartitionedStore store = getPartitionedStore();
+		store.load(partitionDirectory, snapshotFormat);
+		summaryIndex.load(store.getSharedGraph());
+		System.out.println("Partitions: " + store);
+		
+		return onto = getPartitionModel();
+	}
+	
+	// An empty graph to hold data in memory - a CompactGraph if storeMode is compact
+	private static Graph newGraph() {
+		
+		return compactStore ? new CompactGraph(sampleMapping) : GraphFactory.createGraphMem();
+	}
+	
+	// The model the OntModel keeps its data in - null for the default
+	private static Model newBaseModel() {
+		
+		return compactStore ? ModelFactory.createModelForGraph(newGraph()) : null;
+	}
+	
 	// Load the onto OntModel object from RDF
-	private static OntModel loadDataFromRDF() {
+	private static OntModel loadDataFromRDF() throws IOException {
 		
 		System.out.println("Read data from RDF");
 		
-		onto = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM_MICRO_RULE_INF, null );
-				
-		onto.read( "file:"+OUTPUT_FILE, "RDFXML" );	
+		// If the inferences were materialized when the data was saved we don't need a reasoner
+		onto = ModelFactory.createOntologyModel(materializeInference ? OntModelSpec.OWL_MEM : OntModelSpec.OWL_MEM_MICRO_RULE_INF, newBaseModel() );
+		
+		if (snapshotFormat == SnapshotFormat.RDFXML) {
+			onto.read( "file:" + snapshotFile.getPath(), "RDFXML" );
+		} else {
+			// Stream the saved triples straight into the base graph then let the reasoner catch up
+			snapshotFormat.read(snapshotFile, onto.getBaseModel().getGraph());
+			onto.rebind();
+		}
 		System.out.println("Data should now be loaded successfully");
 	
 		return onto;
@@ -261,15 +900,251 @@ public class SemanticFishData {
 	
 	
 	
-	// Execute a SPARQL query against the OntModel
-	private static void executeSPARQL(String myQueryString) {
+	// Run the reasoner over the data once and copy everything it entails into a plain OntModel without a reasoner.
+	// When this is saved the inferred triples are saved with it, so they don't need to be worked out again
+	private static OntModel materializeInference(OntModel model) {
+		
+		System.out.println("Materialize inferences");
+		long startTime = System.currentTimeMillis();
+		
+		Graph closure = InferenceMaterializer.materialize(model.getBaseModel().getGraph(), newGraph());
+		OntModel materialized = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM, ModelFactory.createModelForGraph(closure));
+		
+		System.out.println("Materialized " + (closure.size() - model.getBaseModel().size()) + " inferred triples in " + (System.currentTimeMillis() - startTime) + " ms");
+		return materialized;
+	}
+	
+	// Upsert a refresh into a graph, and if inferences are materialized add the inferences for the new rows too
+	private static boolean upsertInto(Graph graph, boolean incremental) {
+		
+		Graph delta = GraphFactory.createGraphMem();
+		StreamRDF sink = StreamRDFLib.graph(graph);
+		if (materializeInference) sink = new StreamRDFTee(sink, StreamRDFLib.graph(delta));
+		
+		// Carry on from the summary counts saved with the data, taking off the old counts for each sample that's replaced
+		summaryIndex.load(graph);
+		SampleUpsertStream upsert = new SampleUpsertStream(sampleMapping, graph, sink, summaryIndex::remove);
+		boolean success = getInstanceData(upsert, incremental);
+		System.out.println("Upserted " + upsert.getSampleCount() + " samples");
+		publishSamplingSummaries(graph);
+		
+		if (materializeInference && success) InferenceMaterializer.addInferences(graph, loadSchema(), delta);
+		
+		return success;
+	}
+	
+	// The ontology on its own, for working out the inferences for some new data
+	private static Graph loadSchema() {
+		
+		Graph schema = GraphFactory.createGraphMem();
+		RDFParser.source(ONTOLOGY_FILE).forceLang(Lang.TURTLE).parse(schema);
+		return schema;
+	}
+	
+	// Add the sampling summary vocabulary and the current summary counts to the data, replacing any old counts
+	private static void publishSamplingSummaries(Graph graph) {
+		
+		RDFParser.source(SUMMARY_VOCAB_FILE).forceLang(Lang.TURTLE).parse(graph);
+		summaryIndex.publish(graph);
+		System.out.println("Sampling summaries: " + summaryIndex);
+	}
+	
+	// Open (or create if it isn't there yet) the TDB2 store
+	private static Dataset openTDBStore() {
+		
+		String location = getSetting("tdbLocation", TDB_LOCATION);
+		System.out.println("Open TDB2 store at: " + location);
+		
+		return TDB2Factory.connectDataset(location);
+	}
+	
+	private static boolean isStoreEmpty(Dataset dataset) {
+		
+		return Txn.calculateRead(dataset, () -> dataset.getDefaultModel().isEmpty());
+	}
+	
+	// Replace the TDB2 store with one holding the ontology plus the instance data from the database. The rows are
+	// streamed into the TDB2 bulk loader a batch at a time, so the data never has to be held in memory. The new
+	// store is loaded next to the old one, which is only replaced once the load has succeeded - if it fails the old
+	// store is left as it was. Returns the new store
+	private static Dataset loadDataIntoTDB(Dataset dataset) throws IOException {
+		
+		File location = new File(getSetting("tdbLocation", TDB_LOCATION));
+		File loading = new File(location.getPath() + ".loading");
+		deleteDirectory(loading);
+		
+		System.out.println("Load a new TDB2 store at: " + loading);
+		Dataset loaded = TDB2Factory.connectDataset(loading.getPath());
+		boolean success = false;
+		try {
+			DataLoader loader = LoaderFactory.createLoader(loaded.asDatasetGraph(), (format, args) -> System.out.println(String.format(format, args)));
+			loader.startBulk();
+			boolean dataLoaded = false;
+			try {
+				// Materialized inferences are worked out a chunk of samples at a time as the rows are loaded, so the
+				// reasoner never needs the whole store in memory. The ontology goes in along with its own inferences
+				StreamRDF sink = loader.stream();
+				if (materializeInference) {
+					sink = new MaterializingStream(sink, loadSchema(), sampleMapping, getIntSetting("inferenceChunkSize", 1000));
+				} else {
+					// The ontology file is Turtle even though it has an .owl extension
+					System.out.println("Load ontology from file");
+					RDFParser.source(ONTOLOGY_FILE).forceLang(Lang.TURTLE).parse(sink);
+				}
+				
+				System.out.println("Load data from database into the TDB2 store");
+				dataLoaded = getInstanceData(sink, false);
+			} finally {
+				// The bulk load is finished even if it failed, as finishException leaves the loader's threads waiting
+				// for more data - the new store is thrown away in that case
+				loader.finishBulk();
+			}
+			if (!dataLoaded) throw new RuntimeException("Load from the database failed - TDB2 store not changed");
+			
+			System.out.println("TDB2 store now holds " + loader.countTriples() + " triples");
+			
+			Txn.executeWrite(loaded, () -> publishSamplingSummaries(loaded.asDatasetGraph().getDefaultGraph()));
+			success = true;
+		} finally {
+			// Let go of the new store's files so it can be moved into place, or deleted if the load failed
+			TDBInternal.expel(loaded.asDatasetGraph());
+			if (!success) deleteDirectory(loading);
+		}
+		
+		System.out.println("Replace the TDB2 store at: " + location);
+		TDBInternal.expel(dataset.asDatasetGraph());
+		File old = new File(location.getPath() + ".old");
+		deleteDirectory(old);
+		if (location.exists()) Files.move(location.toPath(), old.toPath());
+		Files.move(loading.toPath(), location.toPath());
+		deleteDirectory(old);
+		
+		return TDB2Factory.connectDataset(location.getPath());
+	}
+	
+	// Delete a directory and everything in it, if it's there
+	private static void deleteDirectory(File directory) throws IOException {
+		
+		if (!directory.exists()) return;
+		try (Stream<Path> paths = Files.walk(directory.toPath())) {
+			for (Path path : paths.sorted(Collections.reverseOrder()).toArray(Path[]::new)) Files.delete(path);
+		}
+	}
+	
+	// Upsert the rows added since the watermark into the TDB2 store. This is done in one write transaction,
+	// so if the extraction fails part way through the store is left as it was
+	private static void refreshTDBIncrementally(Dataset dataset) {
+		
+		System.out.println("Incremental refresh of the TDB2 store from: " + watermark);
+		
+		Txn.executeWrite(dataset, () -> {
+			if (!upsertInto(dataset.asDatasetGraph().getDefaultGraph(), true)) throw new RuntimeException("Incremental refresh failed - TDB2 store not changed");
+		});
+	}
+	
+	// Upsert the rows added since the watermark into an OntModel loaded from a previous run. If the extraction fails
+	// part way through the model is left with only some of the rows, so it mustn't be saved or served
+	private static void refreshModelIncrementally(OntModel model) throws IOException {
+		
+		System.out.println("Incremental refresh from: " + watermark);
+		
+		if (!upsertInto(model.getBaseModel().getGraph(), true)) throw new IOException("Incremental refresh failed");
+		
+		// We changed the base graph directly so the reasoner (if there is one) needs to catch up
+		model.rebind();
+	}
+	
+	// Save the watermark alongside the data so the next incremental refresh knows where to start from.
+	// If the load didn't complete remove any old watermark so the next refresh has to be a full one
+	private static void saveWatermark(File watermarkFile) throws IOException {
+		
+		if (watermark == null) {
+			System.out.println("Data load did not complete so the watermark has not been saved");
+			Files.deleteIfExists(watermarkFile.toPath());
+			return;
+		}
+		
+		watermark.save(watermarkFile);
+		System.out.println("Saved watermark: " + watermark);
+	}
+	
+	// The measurement index for the data we've just loaded, built the first time it's asked for
+	private static Supplier<MeasurementIndex> newMeasurementIndex() {
+		
+		Dataset dataset = tdbDataset;
+		Graph graph = dataset == null ? onto.getBaseModel().getGraph() : null;
+		MeasurementIndex[] built = new MeasurementIndex[1];
+		return () -> {
+			synchronized (built) {
+				if (built[0] == null) {
+					built[0] = dataset != null ? Txn.calculateRead(dataset, () -> MeasurementIndex.build(sampleMapping, dataset.asDatasetGraph().getDefaultGraph()))
+							: MeasurementIndex.build(sampleMapping, graph);
+				}
+				return built[0];
+			}
+		};
+	}
+	
+	// Run one of our saved queries and print the results
+	private static void runQuery(String name, QuerySolution bindings) {
+		
+		System.out.println("My SPARQL query: " + name + (bindings == null ? "" : " " + bindings));
+		if (partitionedStore != null) {
+			System.out.println("Searching " + partitionedStore.count(queryService.getQuery(name).getQuery(), bindings) + " of " + partitionedStore.getKeys().size() + " partitions");
+		}
+		
+		ResultFormat format = ResultFormat.forName(getSetting("queryOutputFormat", "text"));
+		queryService.execute(name, bindings, format, System.out);
+		
+	}
+	
+	// Run every query in batchQueries at once over a read-only snapshot of the data, writing each one's results
+	// to its own file
+	private static void runBatchQueries(String batchQueries, boolean useTDB) throws IOException {
+		
+		List<File> paths = new ArrayList<File>();
+		for (String path : batchQueries.split("\\s*,\\s*")) paths.add(new File(path));
+		List<File> queryFiles = BatchQueryRunner.findQueries(paths);
+		
+		int threads = getIntSetting("batchThreads", Runtime.getRuntime().availableProcessors());
+		File outputDirectory = new File(getSetting("batchOutputDirectory", BATCH_OUTPUT_DIRECTORY));
+		System.out.println("Run " + queryFiles.size() + " batch queries on " + threads + " threads into " + outputDirectory);
+		
+		long startTime = System.currentTimeMillis();
+		BatchQueryRunner runner = new BatchQueryRunner(freezeData(useTDB), threads, ResultFormat.forName(getSetting("batchFormat", "csv")),
+				getIntSetting("batchRowLimit", 0));
+		List<BatchQueryRunner.Outcome> outcomes = runner.run(queryFiles, outputDirectory);
+		
+		int failed = 0;
+		for (BatchQueryRunner.Outcome outcome : outcomes) {
+			if (outcome.getError() != null) {
+				System.out.println(outcome);
+				failed++;
+			} else if (outcome.isLimited()) {
+				System.out.println(outcome);
+			}
+		}
+		System.out.println("Ran " + outcomes.size() + " batch queries in " + (System.currentTimeMillis() - startTime) + " ms" + (failed > 0 ? ", " + failed + " failed" : ""));
+	}
+	
+	// A QueryService over a read-only snapshot of the data that any number of threads can query at once. The live
+	// reasoner isn't safe for that, so without materialized inferences they are worked out into the snapshot first
+	private static QueryService freezeData(boolean useTDB) {
 		
-		System.out.println("My SPARQL query: " + myQueryString);
+		// Each TDB2 query reads from the last committed version of the store
+		if (useTDB) return queryService.withDataset(DatasetFactory.wrap(new DatasetGraphReadOnly(tdbDataset.asDatasetGraph())));
 		
-		// Execute the query and display the results
-		QueryExecution qe = QueryExecutionFactory.create (myQueryString,onto);
-		ResultSetFormatter.out(qe.execSelect());
+		if (partitionedStore != null) return queryService.withPartitions(partitionedStore.snapshot());
 		
+		Graph data;
+		if (materializeInference) {
+			data = onto.getGraph();
+		} else {
+			long startTime = System.currentTimeMillis();
+			data = InferenceMaterializer.materialize(onto.getBaseModel().getGraph(), newGraph());
+			System.out.println("Materialized inferences for the batch queries in " + (System.currentTimeMillis() - startTime) + " ms");
+		}
+		return queryService.withDataset(DatasetFactory.wrap(DatasetGraphFactory.create(new GraphReadOnly(data))));
 	}
 	
 	
@@ -307,7 +1182,7 @@ public class SemanticFishData {
 		try {
 			// This query just gets a sample of the data
 			//myQuery = new String(Files.readAllBytes(Paths.get("resources/SummaryQuery.sql")));
-			myQuery = new String(Files.readAllBytes(Paths.get("resources/StockmanQuery.sql")));
+			myQuery = new String(Files.readAllBytes(Paths.get(getSetting("queryFile", "resources/StockmanQuery.sql"))));
 		} catch (IOException e) {
             System.out.println(e.getMessage());
 		}
@@ -315,8 +1190,24 @@ public class SemanticFishData {
 		return myQuery;
 	}
 	
-	// Build a connection string to the required database
+	// The query for an incremental refresh. Either read from its own file, or the StockmanQuery.sql query wrapped
+	// so it only returns samples landed since the refresh date or with a SampleID after the watermark.
+	// Either way the parameters are (earliest SampleDate, last SampleID)
+	private static String getIncrementalQuery() throws IOException {
+		
+		String queryFile = getSetting("incrementalQueryFile", null);
+		if (queryFile != null) return new String(Files.readAllBytes(Paths.get(queryFile)));
+		
+		String myQuery = RangeExtractor.withoutOrderBy(getQuery());
+		
+		return "SELECT * FROM (\r\n" + myQuery + "\r\n) AS q WHERE q.SampleDate >= ? OR q.SampleID > ?";
+	}
+	
+	// Build a connection string to the required database - or use the one given in full, e.g. for an H2 stand-in database
     private static String getConnectionUrl() {
+    	
+	    final String jdbcUrl = getSetting("jdbcUrl", null);
+	    if (jdbcUrl != null) return jdbcUrl;
     	   
 	    final String url = myProperties.getProperty("url");
 	    final String serverName = myProperties.getProperty("serverName");
@@ -327,231 +1218,254 @@ public class SemanticFishData {
         return url + serverName + ":" + portNumber + ";databaseName=" + databaseName ;
     }
     
-    // Take data from a HashTable and build an instance of the BioSample class 
-    private static boolean CreateSampleRecord(Hashtable<String, String> myHT) {
-    	
-    	boolean success = false;
-    	
-    	// Define our classes, based on the classes in the ontology
-		sample = onto.getOntClass (ak + "Sample");
-		species = onto.getOntClass (ak + "Species");
-    	ICESDivision = onto.getOntClass (ak + "ICESDivision");
-    	LandingDate = onto.getOntClass (ak + "LandingDate");
-    	Measurement = onto.getOntClass (ak + "Measurement");
-    	Observation = onto.getOntClass (ak + "Observation");
-    	Quality = onto.getOntClass (ak + "Quality");
-    	Unit = onto.getOntClass (ak + "Unit");
-    	
-    	// Define our properties, based on the properties in the ontology
-    	ObjectProperty hasDivision = onto.getObjectProperty(ak + "hasDivision");
-    	ObjectProperty hasLandingDate = onto.getObjectProperty(ak + "hasLandingDate");
-    	ObjectProperty hasMeasurement = onto.getObjectProperty(ak + "hasMeasurement");	
-    	ObjectProperty hasObservation = onto.getObjectProperty(ak + "hasObservation");
-    	ObjectProperty hasQuality = onto.getObjectProperty(ak + "hasQuality");
-    	ObjectProperty hasSpecies = onto.getObjectProperty(ak + "hasSpecies");
-    	ObjectProperty hasUnit = onto.getObjectProperty(ak + "hasUnit");
-		
-	
-    	try {
-    		if (onto != null && myHT != null)
-    		{
-    			// Create a new sample
-    			String sampleID = myHT.get("SampleID");
-    			//Individual myInd = onto.createIndividual (marineInstitute + sampleID, samplingSummary);
-    			Individual myInd = onto.createIndividual (ak + "Sample/" + sampleID, sample);
-    			    			
-    			// Add ICES sub-division to sample - need to add it as an instance of the ICESDivision class, not just the division as text
-    			String divisionValue = myHT.get("ICES_Div");
-    			if (divisionValue!= null && divisionValue != "") {
-    				// See if we need to create an individual for this division - if so, do it
-    				String divName = ak  + "ICESDivision/" + divisionValue;
-    				// Now add the division as a property to the sample
-    				myInd.addProperty(hasDivision, onto.createIndividual (divName, ICESDivision));
-    			}
-    			
-    			// Add species to sample - need to add it as an instance of the Species class, not just the aphiaid as text
-    			String speciesValue = myHT.get("AphiaID");
-    			if (speciesValue!= null && speciesValue != "") {
-    				// See if we need to create an individual for this species - if so, do it
-    				String specName = ak  + "Species/" + speciesValue;
-    				// Now add the division as a property to the sample
-    				myInd.addProperty(hasSpecies, onto.createIndividual (specName, species));
-    			}
-    			
-    			// We'll add an Observation of Length value if required
-    			String lengthValue = myHT.get("FishLength");
-    			if (lengthValue!= null && lengthValue != "") {
-    				
-    				// Create a Length Observation individual
-    				String obsName = ak  + "Observation/" + sampleID + "/L";
-    				Individual myObs = onto.createIndividual (obsName, Observation);
-    				
-    				// Add the measumrent to the Observation
-    				myObs.addProperty(hasMeasurement, onto.createTypedLiteral(lengthValue));
-    				
-    				// Unit
-    				String unitName = ak  + "Unit/" + "cm";
-    				// Now add the Unit as a property to the Observation
-    				myObs.addProperty(hasUnit, onto.createIndividual (unitName, Unit));
-    				   				
-    				// Quality
-    				String qualityName = ak  + "Quality/" + "Length";
-    				// Now add the Quality as a property to the Observation
-    				myObs.addProperty(hasQuality, onto.createIndividual (qualityName, Quality));	
-    				
-    				// Now add the Observation as a property to the sample
-    				myInd.addProperty(hasObservation, myObs);
-    			}
-    			
-    			// We'll add an Observation of Weight value if required
-    			String weightValue = myHT.get("FishWeight");
-    			if (weightValue!= null && weightValue != "") {
-    				
-    				// Create a Length Observation individual
-    				String obsName = ak  + "Observation/" + sampleID + "/W";
-    				Individual myObs = onto.createIndividual (obsName, Observation);
-   				
-    				// Add the measumrent to the Observation
-    				myObs.addProperty(hasMeasurement, onto.createTypedLiteral(weightValue));
-    				
-    				// Unit
-    				String unitName = ak  + "Unit/" + "g";
-    				// Now add the Unit as a property to the Observation
-    				myObs.addProperty(hasUnit, onto.createIndividual (unitName, Unit));
-    				   				
-    				// Quality
-    				String qualityName = ak  + "Quality/" + "Weight";
-    				// Now add the Quality as a property to the Observation
-    				myObs.addProperty(hasQuality, onto.createIndividual (qualityName, Quality));	
-    				
-    				// Now add the Observation as a property to the sample
-    				myInd.addProperty(hasObservation, myObs);
-    			}
-    			
-    			// We'll add an Observation of Weight value if required
-    			String ageValue = myHT.get("Age");
-    			if (ageValue!= null && ageValue != "") {
-    				
-    				// Create a Length Observation individual
-    				String obsName = ak  + "Observation/" + sampleID + "/A";
-    				Individual myObs = onto.createIndividual (obsName, Observation);
-    				
-    				// Add the measumrent to the Observation
-    				myObs.addProperty(hasMeasurement, onto.createTypedLiteral(ageValue));
-    				
-    				// Unit
-    				String unitName = ak  + "Unit/" + "years";
-    				// Now add the Unit as a property to the Observation
-    				myObs.addProperty(hasUnit, onto.createIndividual (unitName, Unit));
-    				   				
-    				// Quality
-    				String qualityName = ak  + "Quality/" + "Age";
-    				// Now add the Quality as a property to the Observation
-    				myObs.addProperty(hasQuality, onto.createIndividual (qualityName, Quality));	
-    				
-    				// Now add the Observation as a property to the sample
-    				myInd.addProperty(hasObservation, myObs);
-    			}
-    			
-    			// Add Sample Date to sample 
-    			String landingdateValue = myHT.get("SampleDate");
-    			if (landingdateValue!= null && landingdateValue != "") {
-    				
-    				// Convert the text value to a date then create a typed literal for it
-    				java.util.Date myDate = new SimpleDateFormat("yyyy-MM-dd").parse(landingdateValue.substring(0, 10));
-    				String myDateString =  new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(myDate).toString(); 
-    				myInd.addProperty(hasLandingDate, onto.createTypedLiteral(myDateString,"xsd:dateTimeStamp"));
-    				
-    			}
-    			    			
-
-    		}
-    		
-    		
-    	} catch (Exception ex) {
-    		System.out.println(ex.getMessage());
-    	}
-    	
-    	return success;
-    	
-    }
+    // Import data by connecting to the database, running a query, and streaming the results straight into a StreamRDF sink
+	// (e.g. the OntModel's graph, a plain graph, a file writer or a TDB loader). The column indexes are worked out once and
+	// each row is turned directly into triples by the compiled sample mapping.
+	// If incremental is true only the rows after the current watermark are fetched. Returns false if the load didn't complete
+	private static boolean getInstanceData(StreamRDF sink, boolean incremental) {
+		
+		StreamRDF countedSink = ingestMetrics.track(sink);
+		return getInstanceData(incremental, null, sources -> convertRows(sources, countedSink));
+	}
 	
-    // Import data by connecting to the database, running a query, and then building instances of ontology objects
-    // from that data
-	private static void getInstanceData() {
+	// What is done with the rows the database query returns. A file is read as several sources that can be read at once
+	private interface RowLoader {
+		void load(List<RowSource> sources) throws Exception;
+	}
+	
+	// Run the database query, or read the sourceFile, and pass the rows (only those rowFilter accepts, if it isn't null) to loader
+	private static boolean getInstanceData(boolean incremental, Predicate<String[]> rowFilter, RowLoader loader) {
+		
+		final String sourceFile = getSetting("sourceFile", null);
+		if (sourceFile != null) return getFileData(new File(sourceFile), incremental, rowFilter, loader);
+		
+		// A full load can be extracted in key ranges over several connections instead of in one query
+		if (!incremental && getIntSetting("extractRanges", 0) > 0) return getRangeData(rowFilter, loader);
 		
-		// Need to have a JDBC driver 
-		// e.g. Download the driver from https://docs.microsoft.com/en-us/sql/connect/jdbc/microsoft-jdbc-driver-for-sql-server?view=sql-server-2017
-		// Then add one of the downloaded jdbc JAR to your build path (you need to make sure its the JAR targeting the correct JRE)
-		    
 	    final String userName = myProperties.getProperty("userName");
 	    final String password = myProperties.getProperty("password");
+	    final int fetchSize = getIntSetting("fetchSize", 1000);
 		
         try {
-        	Class.forName("com.microsoft.sqlserver.jdbc.SQLServerDriver");
+        	Class.forName(getSetting("jdbcDriver", "com.microsoft.sqlserver.jdbc.SQLServerDriver"));
+        	
+        	String myQuery = incremental ? getIncrementalQuery() : getQuery();
         	
-        	//System.out.println(getConnectionUrl());
-            Connection conn = DriverManager.getConnection(getConnectionUrl(), userName, password);
-            //System.out.println("Made connection");
-            Statement stmt = conn.createStatement();
-            java.sql.ResultSet rs;
- 
-            rs = stmt.executeQuery(getQuery());
-            //System.out.println("Run query");
-            
-            ResultSetMetaData metadata = rs.getMetaData();
-            int columnCount = metadata.getColumnCount();
-            //System.out.println(columnCount);
-            
-            int numberOfRecordsProcessed = 0;
-            int progressReportStep = 2000;
-            
-            while ( rs.next() ) {
-            
-            	// Use a Hastable to store the row data
-            	Hashtable<String, String> myHT = new Hashtable<String, String>();
-            	
-            	
-                for (int i = 1; i <= columnCount; i++) {
-                	// if the value is null, replace it with a blank space instead
-                	String valueToUse = rs.getString(i) == null ? "":  rs.getString(i);  
-                	//System.out.println(valueToUse);
-                    myHT.put(metadata.getColumnName(i),valueToUse   );
-                }
-                
-                // Create an  ontology object
-                CreateSampleRecord(myHT);
-            	
-                numberOfRecordsProcessed++;
-                if (numberOfRecordsProcessed  % progressReportStep == 0 ) System.out.println("Processed " + numberOfRecordsProcessed + " database records");
-                
-                //String myTest = rs.getString("SummaryID");
-                //System.out.println(myTest);
-            }
-            conn.close();
+        	try (Connection conn = DriverManager.getConnection(getConnectionUrl(), userName, password);
+        		 PreparedStatement stmt = conn.prepareStatement(myQuery, java.sql.ResultSet.TYPE_FORWARD_ONLY, java.sql.ResultSet.CONCUR_READ_ONLY)) {
+        		
+        		stmt.setFetchSize(fetchSize);
+        		
+        		if (incremental) {
+        			stmt.setDate(1, java.sql.Date.valueOf(watermark.getRefreshFromDate(getIntSetting("incrementalLookbackDays", 7))));
+        			String lastSampleID = watermark.getLastSampleID() == null ? "" : watermark.getLastSampleID();
+        			if (lastSampleID.matches("\\d+")) stmt.setLong(2, Long.parseLong(lastSampleID));
+        			else stmt.setString(2, lastSampleID);
+        		}
+        		
+        		try (java.sql.ResultSet rs = stmt.executeQuery()) {
+        			loadRows(Collections.singletonList(new ResultSetRowSource(rs, sampleMapping.getColumns())), rowFilter, loader);
+        			return true;
+        		}
+        	}
         } catch (Exception e) {
             System.out.println("Error: " +  e.getMessage());
+            watermark = null;
+            return false;
         }
 	}
 	
-	// Check is the data in our OntModel is valid (e.g. property values are in the correct range)
-	private static void checkValidity(OntModel onto) {
+	// Read the rows from a CSV or TSV extract of the query's results. The file is memory mapped and split into a chunk for
+	// each ingest thread. It holds every sample, so an incremental refresh picks out the rows the incremental query would return
+	private static boolean getFileData(File sourceFile, boolean incremental, Predicate<String[]> rowFilter, RowLoader loader) {
+		
+		final String delimiter = getSetting("sourceFileDelimiter", null);
+		final String nullValue = getSetting("sourceFileNull", "NULL");
+		final int ingestThreads = getIntSetting("ingestThreads", 1);
+		
+		try (DelimitedFile extract = delimiter == null
+				? DelimitedFile.open(sourceFile, sampleMapping.getColumns(), nullValue)
+				: new DelimitedFile(sourceFile, DelimitedFile.delimiterFor(delimiter), sampleMapping.getColumns(), nullValue)) {
+			
+			if (incremental) {
+				Predicate<String[]> newRows = watermark.newRows(getIntSetting("incrementalLookbackDays", 7));
+				rowFilter = rowFilter == null ? newRows : rowFilter.and(newRows);
+			}
+			
+			System.out.println("Read rows from: " + sourceFile + " (" + (extract.getSize() >> 20) + " MB)");
+			loadRows(extract.split(ingestThreads), rowFilter, loader);
+			return true;
+		} catch (Exception e) {
+			System.out.println("Error: " +  e.getMessage());
+			watermark = null;
+			return false;
+		}
+	}
+	
+	// Extract the rows from the database in ranges, several at once, into files in extractDirectory and then read those.
+	// If the extraction fails the next run carries on from where it stopped. Once the extraction has finished the
+	// files are deleted after they've been read, even if loading them failed, so they're never loaded again later
+	private static boolean getRangeData(Predicate<String[]> rowFilter, RowLoader loader) {
+		
+		List<DelimitedFile> extracts = new ArrayList<DelimitedFile>();
+		RangeExtractor extracted = null;
+		try {
+			Class.forName(getSetting("jdbcDriver", "com.microsoft.sqlserver.jdbc.SQLServerDriver"));
+			
+			RangeExtractor extractor = new RangeExtractor(getQuery(), getConnectionUrl(), myProperties.getProperty("userName"), myProperties.getProperty("password"),
+					sampleMapping.getColumns(), new File(getSetting("extractDirectory", EXTRACT_DIRECTORY)),
+					RangeExtractor.RangeKey.forName(getSetting("extractRangeKey", "SampleID")), getIntSetting("extractConnections", 4), metrics);
+			extractor.setRangeCount(getIntSetting("extractRanges", 0));
+			extractor.setPageSize(getIntSetting("extractPageSize", 50000));
+			extractor.setRetries(getIntSetting("extractRetries", 5));
+			extractor.setFetchSize(getIntSetting("fetchSize", 1000));
+			
+			long startTime = System.currentTimeMillis();
+			List<File> files = extractor.extract();
+			extracted = extractor;
+			System.out.println("Extracted the rows in " + (System.currentTimeMillis() - startTime) + " ms");
+			
+			List<RowSource> sources = new ArrayList<RowSource>();
+			for (File file : files) {
+				DelimitedFile extract = new DelimitedFile(file, '\t', sampleMapping.getColumns(), RangeExtractor.NULL_VALUE);
+				extracts.add(extract);
+				sources.add(extract.rows());
+			}
+			loadRows(sources, rowFilter, loader);
+			return true;
+		} catch (Exception e) {
+			System.out.println("Error: " +  e.getMessage());
+			watermark = null;
+			return false;
+		} finally {
+			for (DelimitedFile extract : extracts) {
+				try {
+					extract.close();
+				} catch (IOException e) {
+					System.out.println(e.getMessage());
+				}
+			}
+			if (extracted != null) {
+				try {
+					extracted.finish();
+				} catch (IOException e) {
+					System.out.println("Couldn't remove the extraction: " + e.getMessage());
+				}
+			}
+		}
+	}
+	
+	// Count the rows and where the time goes and keep track of the latest sample we've read, then pass the rows to loader.
+	// Each row is counted in the sampling summaries once it has been converted, so rejected rows aren't
+	private static void loadRows(List<RowSource> sources, Predicate<String[]> rowFilter, RowLoader loader) throws Exception {
+		
+		List<RowSource> tracked = new ArrayList<RowSource>();
+		for (RowSource source : sources) {
+			source = ingestMetrics.track(source);
+			if (rowFilter != null) {
+				RowSource allRows = source;
+				source = row -> {
+					while (allRows.next(row)) {
+						if (rowFilter.test(row)) return true;
+					}
+					return false;
+				};
+			}
+			tracked.add(watermark.track(source));
+		}
+		
+		ingestMetrics.startLoad();
+		loader.load(tracked);
+		ingestMetrics.finishLoad();
+	}
+	
+	// Convert the rows from sources and send their triples to sink
+	private static void convertRows(List<RowSource> sources, StreamRDF sink) throws Exception {
+		
+	    final int ingestThreads = getIntSetting("ingestThreads", 1);
+	    final int ingestBatchSize = getIntSetting("ingestBatchSize", 500);
+	    final int internCacheSize = getIntSetting("internCacheSize", InternCache.DEFAULT_SIZE);
+	    
+		if (ingestThreads > 1) {
+			IngestionPipeline pipeline = new IngestionPipeline(sampleMapping, ingestThreads, ingestBatchSize, internCacheSize, ingestMetrics);
+			if (sources.size() == 1) {
+				// Read on this thread and convert on a pool of worker threads
+				pipeline.run(sources.get(0), sink);
+				System.out.println("Converted using " + ingestThreads + " threads");
+			} else {
+				// Read and convert each source on its own worker thread
+				pipeline.run(sources, sink);
+				System.out.println("Read and converted " + sources.size() + " chunks using " + ingestThreads + " threads");
+			}
+			System.out.println("Shared individual cache: " + pipeline.getCacheHits() + " hits, " + pipeline.getCacheMisses() + " misses");
+			return;
+		}
+	
+        RowSource source = RowSource.concat(sources);
+        String[] row = new String[sampleMapping.getColumns().length];
+        SampleRowConverter converter = new SampleRowConverter(sampleMapping, internCacheSize);
+        
+        sink.start();
+        while ( source.next(row) ) {
+        	
+        	long start = System.nanoTime();
+        	try {
+        		converter.convert(row, sink);
+        		ingestMetrics.accepted(row);
+        	} catch (Exception ex) {
+        		ingestMetrics.rejected(ex);
+        	}
+        	ingestMetrics.converted(System.nanoTime() - start);
+        }
+        sink.finish();
+        System.out.println("Shared individual cache: " + converter.getInternCache());
+	}
+	
+	// Check the data is valid (e.g. property values are in the correct range). Rather than validating the whole OntModel
+	// at once, which can take a lot of memory, the samples are checked a chunk at a time on several threads and any
+	// problems are printed as they are found. Returns false if the checks were stopped by validationStopOnError
+	private static boolean checkValidity() {
 		
 		System.out.println("Starting ontology data validity checks");
 		
-		// Check if our data is valid
-		ValidityReport validity = onto.validate();
-		if (validity.isValid()) {
-		    System.out.println("Ontology data validates");
+		Graph ontologySchema = GraphFactory.createGraphMem();
+		RDFParser.source(ONTOLOGY_FILE).forceLang(Lang.TURTLE).parse(ontologySchema);
+		
+		boolean stopOnError = Boolean.parseBoolean(getSetting("validationStopOnError", "false"));
+		ChunkedValidator validator = new ChunkedValidator(sampleMapping, ontologySchema,
+				getIntSetting("validationChunkSize", 1000),
+				getIntSetting("validationThreads", Runtime.getRuntime().availableProcessors()),
+				stopOnError,
+				Boolean.parseBoolean(getSetting("validationReasoner", "false")));
+		
+		Consumer<ChunkedValidator.Issue> printIssue = issue -> System.out.println(" - " + issue);
+		ChunkedValidator.Result result;
+		try {
+			if (tdbDataset != null) {
+				// Only the main thread reads from the store - the chunks are copied out for the workers
+				result = Txn.calculateRead(tdbDataset, () -> {
+					try {
+						return validator.validate(tdbDataset.asDatasetGraph().getDefaultGraph(), printIssue);
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				});
+			} else {
+				result = validator.validate(onto.getBaseModel().getGraph(), printIssue);
+			}
+		} catch (InterruptedException e) {
+			System.out.println("Validity checks interrupted");
+			return !stopOnError;
+		}
+		
+		if (result.isValid()) {
+		    System.out.println("Ontology data validates (" + result.getSamplesChecked() + " samples checked)");
 		} else {
-		    System.out.println("Ontology data does not validate");
-		    for (Iterator<Report> i = validity.getReports(); i.hasNext(); ) {
-		        System.out.println(" - " + i.next());
-		    }
-		    // Stop the program if data isn't valid
-		    System.exit(1);
+		    System.out.println("Ontology data does not validate - " + result.getIssuesFound() + " problems found in "
+		    		+ result.getSamplesChecked() + " samples checked" + (result.isStoppedEarly() ? " before stopping" : ""));
 		}
-	
+		
+		return !result.isStoppedEarly();
 	}
 
 }
@@ -0,0 +1,188 @@
+package ie.marine.semanticfishdata;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs a batch of queries at once, e.g. the per-species and per-division queries of a report, writing each one's
+// results to its own file. The queries are run on a pool of worker threads through a QueryService whose data
+// doesn't change while they run (a read-only snapshot - see PartitionedStore.snapshot), so the workers share
+// nothing that needs locking and the batch takes about as long as its queries divided between the threads.
+// A query that can't be parsed, fails or runs out of time is reported and leaves no file behind; the rest of the
+// batch carries on without it. The queries get the QueryService's timeout but not its row limit, as a report that
+// silently stops short is worse than one that takes a while - they have a row limit of their own, if any.
+public class BatchQueryRunner {
+
+	// What happened to one query in the batch
+	public static class Outcome {
+
+		private final String name;
+		private final File file;
+		private final long rows;
+		private final long nanos;
+		private final boolean limited;
+		private final Exception error;
+
+		Outcome(String name, File file, long rows, long nanos, boolean limited, Exception error) {
+			this.name = name;
+			this.file = file;
+			this.rows = rows;
+			this.nanos = nanos;
+			this.limited = limited;
+			this.error = error;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		// Where the results were written
+		public File getFile() {
+			return file;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		// True if the query had more rows than the row limit, so the results stop short
+		public boolean isLimited() {
+			return limited;
+		}
+
+		// Null if the query ran
+		public Exception getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			if (error != null) return name + " failed: " + error.getMessage();
+			return name + ": " + rows + " rows in " + nanos / 1000000 + " ms" + (limited ? " - stopped at the row limit" : "");
+		}
+	}
+
+	private final QueryService service;
+	private final int threads;
+	private final QueryService.ResultFormat format;
+	private final long rowLimit;
+	private final Metrics.Timer batches;
+
+	// service must be over data that nothing changes while the batch runs. The queries' results aren't limited
+	public BatchQueryRunner(QueryService service, int threads, QueryService.ResultFormat format) {
+		this(service, threads, format, 0);
+	}
+
+	// Each query stops after rowLimit rows, unless it's 0 or less
+	public BatchQueryRunner(QueryService service, int threads, QueryService.ResultFormat format, long rowLimit) {
+
+		if (threads < 1) throw new IllegalArgumentException("Need at least one thread");
+
+		this.service = service;
+		this.threads = threads;
+		this.format = format;
+		this.rowLimit = rowLimit;
+		batches = service.getMetrics().timer("semanticfishdata_batch_query_seconds", "Time taken by each batch of queries");
+	}
+
+	// The .rq files among paths, taking every .rq file in any directories. Each is named after its file, so two
+	// with the same name can't be in one batch
+	public static List<File> findQueries(List<File> paths) throws IOException {
+
+		List<File> files = new ArrayList<File>();
+		Set<String> names = new HashSet<String>();
+		for (File path : paths) {
+			File[] found = path.isDirectory() ? path.listFiles((dir, fileName) -> fileName.endsWith(".rq")) : new File[] { path };
+			if (found == null || !path.exists()) throw new IOException("Can't read queries from " + path);
+
+			Arrays.sort(found);
+			for (File file : found) {
+				if (!names.add(nameOf(file))) throw new IOException("More than one query called " + nameOf(file) + " (" + file + ")");
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	// Run every query in queryFiles, writing each one's results to outputDirectory as <name>.csv (or whatever
+	// the format is). Returns what happened to each, in the order they were given
+	public List<Outcome> run(List<File> queryFiles, File outputDirectory) throws IOException {
+
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) throw new IOException("Can't create " + outputDirectory);
+
+		long start = System.nanoTime();
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, queryFiles.size())));
+		try {
+			List<Future<Outcome>> running = new ArrayList<Future<Outcome>>();
+			for (File queryFile : queryFiles) {
+				File resultFile = new File(outputDirectory, nameOf(queryFile) + extension(format));
+				running.add(workers.submit(() -> run(queryFile, resultFile)));
+			}
+
+			List<Outcome> outcomes = new ArrayList<Outcome>();
+			for (Future<Outcome> outcome : running) outcomes.add(outcome.get());
+			return outcomes;
+		} catch (ExecutionException ex) {
+			throw new IOException(ex.getCause().getMessage(), ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", ex);
+		} finally {
+			workers.shutdownNow();
+			batches.record(System.nanoTime() - start);
+		}
+	}
+
+	// Run one query. The results are written to a temporary file that only replaces resultFile once they're
+	// all there, so a failed query doesn't leave half a report (or last time's report) behind
+	private Outcome run(File queryFile, File resultFile) {
+
+		String name = nameOf(queryFile);
+		File partFile = new File(resultFile.getPath() + ".part");
+		long start = System.nanoTime();
+		try {
+			// One row more than the limit is asked for, so a query with exactly rowLimit rows isn't taken to have been cut short
+			QueryService.PreparedQuery query = service.prepare(name, new String(Files.readAllBytes(queryFile.toPath()), StandardCharsets.UTF_8),
+					service.getDefaultTimeoutMillis(), rowLimit > 0 ? rowLimit + 1 : 0);
+
+			QueryService.Written written;
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(partFile.toPath()), 1 << 16)) {
+				written = service.execute(query, null, format, out, rowLimit);
+			}
+			Files.move(partFile.toPath(), resultFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return new Outcome(name, resultFile, written.getRows(), System.nanoTime() - start, written.isLimited(), null);
+		} catch (Exception ex) {
+			partFile.delete();
+			resultFile.delete();
+			return new Outcome(name, resultFile, 0, System.nanoTime() - start, false, ex);
+		}
+	}
+
+	private static String nameOf(File queryFile) {
+
+		String fileName = queryFile.getName();
+		return fileName.endsWith(".rq") ? fileName.substring(0, fileName.length() - ".rq".length()) : fileName;
+	}
+
+	private static String extension(QueryService.ResultFormat format) {
+		return format == QueryService.ResultFormat.TEXT ? ".txt" : "." + format.name().toLowerCase();
+	}
+
+}
@@ -0,0 +1,355 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.compose.Union;
+import org.apache.jena.reasoner.ReasonerRegistry;
+import org.apache.jena.reasoner.ValidityReport;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+// Checks the sample data a chunk at a time rather than validating the whole model in one go. Each chunk holds
+// the triples for a number of samples (plus their observations and the types of the species, divisions etc they
+// refer to) and is checked on a pool of worker threads, so memory use depends on the chunk size rather than the
+// size of the data. Problems are passed to a listener as they are found.
+//
+// The checks are:
+// - the subject and object of each property are of the types given by its rdfs:domain and rdfs:range
+// - measurements are numbers
+// - landing dates are valid date-time stamps
+// - optionally, whatever the OWL micro reasoner's validate() finds in the chunk
+public class ChunkedValidator {
+
+	// A problem found with the data
+	public static class Issue {
+
+		private final Node subject;
+		private final String check;
+		private final String message;
+
+		Issue(Node subject, String check, String message) {
+			this.subject = subject;
+			this.check = check;
+			this.message = message;
+		}
+
+		public Node getSubject() {
+			return subject;
+		}
+
+		public String getCheck() {
+			return check;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return check + ": " + subject + " - " + message;
+		}
+	}
+
+	// Summary of a validation run
+	public static class Result {
+
+		private final long samplesChecked;
+		private final long issuesFound;
+		private final boolean stoppedEarly;
+
+		Result(long samplesChecked, long issuesFound, boolean stoppedEarly) {
+			this.samplesChecked = samplesChecked;
+			this.issuesFound = issuesFound;
+			this.stoppedEarly = stoppedEarly;
+		}
+
+		public boolean isValid() {
+			return issuesFound == 0;
+		}
+
+		public long getSamplesChecked() {
+			return samplesChecked;
+		}
+
+		public long getIssuesFound() {
+			return issuesFound;
+		}
+
+		public boolean isStoppedEarly() {
+			return stoppedEarly;
+		}
+	}
+
+	// The format SampleRowConverter writes landing dates in, and the xsd:dateTimeStamp form
+	private static final Pattern DATE_TIME_STAMP = Pattern.compile("(\\d{4}-\\d{2}-\\d{2})T\\d{2}:\\d{2}:\\d{2}(\\.\\d+)?(Z|[+-]\\d{2}:?\\d{2})");
+
+	private final SampleMapping mapping;
+	private final Node hasLandingDate;
+
+	private final Graph schema;
+	private final int chunkSize;
+	private final int threads;
+	private final boolean stopOnError;
+	private final boolean useReasoner;
+
+	// Worked out from the schema once - each class with all its superclasses, and the declared domain and range of each property.
+	// A property whose range is not a named class (e.g. an owl:Restriction on a datatype) is expected to have a literal value
+	private final Map<Node, Set<Node>> superClasses = new HashMap<Node, Set<Node>>();
+	private final Map<Node, Node> domains = new HashMap<Node, Node>();
+	private final Map<Node, Node> ranges = new HashMap<Node, Node>();
+	private final Set<Node> literalProperties = new HashSet<Node>();
+
+	// The samples, and the properties whose values are checked, are found with mapping
+	public ChunkedValidator(SampleMapping mapping, Graph schema, int chunkSize, int threads, boolean stopOnError, boolean useReasoner) {
+
+		if (chunkSize < 1) throw new IllegalArgumentException("Chunk size must be at least 1");
+		if (threads < 1) throw new IllegalArgumentException("Need at least one validation thread");
+
+		this.mapping = mapping;
+		this.hasLandingDate = mapping.getProperty(SampleRowConverter.SAMPLE_DATE);
+
+		this.schema = schema;
+		this.chunkSize = chunkSize;
+		this.threads = threads;
+		this.stopOnError = stopOnError;
+		this.useReasoner = useReasoner;
+
+		readSchema();
+	}
+
+	// Check all the samples in data, passing any problems to listener (which may be called from several threads at once)
+	public Result validate(Graph data, Consumer<Issue> listener) throws InterruptedException {
+
+		AtomicLong issuesFound = new AtomicLong();
+		AtomicBoolean stop = new AtomicBoolean();
+		Consumer<Issue> report = issue -> {
+			issuesFound.incrementAndGet();
+			if (stopOnError) stop.set(true);
+			synchronized (listener) {
+				listener.accept(issue);
+			}
+		};
+
+		// Only let a couple of chunks per thread be waiting, so we never hold more than that in memory
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		Semaphore inFlight = new Semaphore(threads * 2);
+		long samplesChecked = 0;
+
+		ExtendedIterator<Triple> samples = data.find(Node.ANY, RDF.Nodes.type, mapping.sampleClass);
+		try {
+			List<Node> chunk = new ArrayList<Node>(chunkSize);
+			while (samples.hasNext() && !stop.get()) {
+				Node sample = samples.next().getSubject();
+				if (!mapping.isSample(sample)) continue;
+
+				chunk.add(sample);
+				if (chunk.size() == chunkSize) {
+					submit(workers, inFlight, data, chunk, report);
+					samplesChecked += chunk.size();
+					chunk = new ArrayList<Node>(chunkSize);
+				}
+			}
+			if (!chunk.isEmpty() && !stop.get()) {
+				submit(workers, inFlight, data, chunk, report);
+				samplesChecked += chunk.size();
+			}
+		} finally {
+			samples.close();
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+
+		return new Result(samplesChecked, issuesFound.get(), stop.get());
+	}
+
+	// Copy the triples for a chunk of samples out of data (on this thread) then check them on a worker thread
+	private void submit(ExecutorService workers, Semaphore inFlight, Graph data, List<Node> samples, Consumer<Issue> report) throws InterruptedException {
+
+		Graph chunk = extractChunk(data, samples);
+
+		inFlight.acquire();
+		workers.execute(() -> {
+			try {
+				checkChunk(chunk, samples, report);
+			} catch (Exception ex) {
+				report.accept(new Issue(samples.get(0), "Error", "Could not check chunk: " + ex.getMessage()));
+			} finally {
+				inFlight.release();
+			}
+		});
+	}
+
+	// The triples about each sample and its observations, plus the types of everything they refer to
+	private Graph extractChunk(Graph data, List<Node> samples) {
+
+		Graph chunk = GraphFactory.createGraphMem();
+
+		for (Node sample : samples) {
+			for (Triple t : data.find(sample, Node.ANY, Node.ANY).toList()) {
+				chunk.add(t);
+				if (mapping.hasObservation.equals(t.getPredicate())) {
+					for (Triple o : data.find(t.getObject(), Node.ANY, Node.ANY).toList()) {
+						chunk.add(o);
+						addTypes(data, o.getObject(), chunk);
+					}
+				} else {
+					addTypes(data, t.getObject(), chunk);
+				}
+			}
+		}
+
+		return chunk;
+	}
+
+	private static void addTypes(Graph data, Node node, Graph chunk) {
+
+		if (node.isURI()) data.find(node, RDF.Nodes.type, Node.ANY).forEachRemaining(chunk::add);
+	}
+
+	private void checkChunk(Graph chunk, List<Node> samples, Consumer<Issue> report) {
+
+		ExtendedIterator<Triple> it = chunk.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while (it.hasNext()) checkTriple(chunk, it.next(), report);
+		} finally {
+			it.close();
+		}
+
+		if (useReasoner) {
+			// Only errors make the data invalid - our measurements and dates are literals on object properties, which the reasoner warns about
+			ValidityReport validity = ReasonerRegistry.getOWLMicroReasoner().bind(new Union(schema, chunk)).validate();
+			for (Iterator<ValidityReport.Report> i = validity.getReports(); i.hasNext(); ) {
+				ValidityReport.Report r = i.next();
+				if (r.isError()) report.accept(new Issue(samples.get(0), "Reasoner", r.getType() + " " + r.getDescription()));
+			}
+		}
+	}
+
+	private void checkTriple(Graph chunk, Triple t, Consumer<Issue> report) {
+
+		Node property = t.getPredicate();
+
+		Node domain = domains.get(property);
+		if (domain != null && !hasType(chunk, t.getSubject(), domain)) {
+			report.accept(new Issue(t.getSubject(), "Domain", property.getLocalName() + " expects a subject of type " + domain.getLocalName()));
+		}
+
+		Node range = ranges.get(property);
+		if (range != null && !hasType(chunk, t.getObject(), range)) {
+			report.accept(new Issue(t.getSubject(), "Range", property.getLocalName() + " expects a value of type " + range.getLocalName() + " but has " + t.getObject()));
+		}
+
+		if (literalProperties.contains(property) && !t.getObject().isLiteral()) {
+			report.accept(new Issue(t.getSubject(), "Range", property.getLocalName() + " expects a literal value but has " + t.getObject()));
+		}
+
+		if (mapping.hasMeasurement.equals(property) && t.getObject().isLiteral() && !isNumber(t.getObject().getLiteralLexicalForm())) {
+			report.accept(new Issue(t.getSubject(), "Measurement", "measurement is not a number: " + t.getObject().getLiteralLexicalForm()));
+		}
+
+		if (property.equals(hasLandingDate) && t.getObject().isLiteral() && !isDateTimeStamp(t.getObject().getLiteralLexicalForm())) {
+			report.accept(new Issue(t.getSubject(), "LandingDate", "landing date is not a valid date-time stamp: " + t.getObject().getLiteralLexicalForm()));
+		}
+	}
+
+	// Is node of type ontClass (or one of its subclasses)?
+	private boolean hasType(Graph chunk, Node node, Node ontClass) {
+
+		if (!node.isURI() && !node.isBlank()) return false;
+
+		ExtendedIterator<Triple> types = chunk.find(node, RDF.Nodes.type, Node.ANY);
+		try {
+			while (types.hasNext()) {
+				Set<Node> supers = superClasses.get(types.next().getObject());
+				if (supers != null && supers.contains(ontClass)) return true;
+			}
+		} finally {
+			types.close();
+		}
+		return false;
+	}
+
+	private static boolean isNumber(String value) {
+
+		try {
+			new BigDecimal(value.trim());
+			return true;
+		} catch (NumberFormatException ex) {
+			return false;
+		}
+	}
+
+	private static boolean isDateTimeStamp(String value) {
+
+		java.util.regex.Matcher m = DATE_TIME_STAMP.matcher(value);
+		if (!m.matches()) return false;
+		try {
+			LocalDate.parse(m.group(1));
+			return true;
+		} catch (DateTimeParseException ex) {
+			return false;
+		}
+	}
+
+	// Work out the class hierarchy and property domains and ranges from the schema
+	private void readSchema() {
+
+		Map<Node, Set<Node>> directSupers = new HashMap<Node, Set<Node>>();
+		schema.find(Node.ANY, RDFS.subClassOf.asNode(), Node.ANY).forEachRemaining(t -> {
+			if (t.getSubject().isURI() && t.getObject().isURI()) {
+				directSupers.computeIfAbsent(t.getSubject(), k -> new HashSet<Node>()).add(t.getObject());
+			}
+		});
+
+		Set<Node> classes = new HashSet<Node>(directSupers.keySet());
+		directSupers.values().forEach(classes::addAll);
+		schema.find(Node.ANY, RDF.Nodes.type, Node.ANY).forEachRemaining(t -> {
+			if (t.getSubject().isURI()) classes.add(t.getSubject());
+		});
+
+		for (Node c : classes) {
+			Set<Node> supers = new HashSet<Node>();
+			collectSupers(c, directSupers, supers);
+			superClasses.put(c, supers);
+		}
+
+		schema.find(Node.ANY, RDFS.domain.asNode(), Node.ANY).forEachRemaining(t -> {
+			if (t.getObject().isURI()) domains.put(t.getSubject(), t.getObject());
+		});
+		schema.find(Node.ANY, RDFS.range.asNode(), Node.ANY).forEachRemaining(t -> {
+			if (t.getObject().isURI()) ranges.put(t.getSubject(), t.getObject());
+			else literalProperties.add(t.getSubject());
+		});
+	}
+
+	private static void collectSupers(Node c, Map<Node, Set<Node>> directSupers, Set<Node> supers) {
+
+		if (!supers.add(c)) return;
+		Set<Node> direct = directSupers.get(c);
+		if (direct != null) for (Node s : direct) collectSupers(s, directSupers, supers);
+	}
+
+}
@@ -0,0 +1,567 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Capabilities;
+import org.apache.jena.graph.GraphEvents;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.AllCapabilities;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+import org.apache.jena.util.iterator.NullIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+// A graph for our sample data that needs a fraction of the heap Jena's GraphMem does. Each node is stored as a
+// long. An IRI made from one of the mapping's templates with a number in it (Sample/{SampleID},
+// Observation/{SampleID}/L, Species/{AphiaID}) is stored as the template's number and the number in it, so
+// no String or Node is kept for it at all. Every other node gets a number from a dictionary. The triples are
+// held in primitive arrays, with two sorted orderings of them (SPO and POS) for finding triples by whichever
+// parts are known, and a hash table for checking whether a triple is already there. There are only a few
+// dozen predicates, so a find by object alone looks it up in POS under each predicate rather than keeping a
+// third ordering. That comes to less than half the heap per triple that GraphMem needs.
+//
+// Triples added since the orderings were last sorted are kept in an unsorted tail that finds look through one
+// by one. Once the tail gets long the next find sorts it and merges it in. Deleted triples are marked as
+// deleted and dropped from the arrays once there are enough of them. A find only sees the triples that were
+// there when it started.
+// Literals are matched by term rather than by value, as in a TDB store - "1"^^xsd:integer doesn't find
+// "01"^^xsd:integer. Any number of threads can find at once, but like GraphMem, only one can change it.
+public class CompactGraph extends GraphBase {
+
+	// A node made from a template has this bit set, the template's number in the bits above NUMBER_BITS,
+	// and the number from the IRI in the rest
+	private static final long TEMPLATE_FLAG = 1L << 62;
+	private static final int NUMBER_BITS = 48;
+	private static final long NUMBER_MASK = (1L << NUMBER_BITS) - 1;
+	private static final int MAX_TEMPLATES = 1 << 14;
+	// Numbers with up to 14 digits always fit in NUMBER_BITS
+	private static final int MAX_DIGITS = 14;
+
+	// The tail is merged in once it's longer than this, or a 64th of the sorted triples if that's more
+	private static final int MIN_TAIL = 1024;
+
+	// The orderings, and the positions of the subject, predicate and object in each one's sort key
+	private static final int SPO = 0;
+	private static final int POS = 1;
+	private static final int[][] KEY_ORDER = { { 0, 1, 2 }, { 1, 2, 0 } };
+
+	private static final Capabilities CAPABILITIES = new AllCapabilities() {
+		@Override
+		public boolean handlesLiteralTyping() {
+			return false;
+		}
+	};
+
+	private final String[] prefixes;
+	private final String[] suffixes;
+
+	// Every node that isn't made from a template, with its number
+	private final List<Node> dictionary = new ArrayList<Node>();
+	private final Map<Node, Integer> dictionaryNumbers = new HashMap<Node, Integer>();
+
+	// The triples, in the order they were added. Predicates are always dictionary numbers. A deleted triple
+	// keeps its place, so the orderings stay sorted, until the next compaction
+	private long[] subjects;
+	private int[] predicates;
+	private long[] objects;
+	private BitSet deletedTriples;
+	private int count;
+	private int deleted;
+
+	// The dictionary numbers that have been used as predicates
+	private BitSet predicatesUsed;
+
+	// The first sorted triples in each ordering, by triple number - the rest are the tail
+	private int[][] orderings;
+	private int sorted;
+
+	// Open addressing hash table of triple numbers, each plus one so an empty slot is 0
+	private int[] table;
+
+	// Bumped whenever the triples are renumbered, so finds that started before then use the arrays they started with
+	private int compactions;
+
+	// The IRI templates are given as their text either side of the number e.g. ak + "Observation/" and "/L"
+	public CompactGraph(List<String[]> templates) {
+
+		if (templates.size() > MAX_TEMPLATES) throw new IllegalArgumentException("Too many IRI templates");
+		prefixes = new String[templates.size()];
+		suffixes = new String[templates.size()];
+		for (int i = 0; i < templates.size(); i++) {
+			prefixes[i] = templates.get(i)[0];
+			suffixes[i] = templates.get(i)[1];
+		}
+		reset();
+	}
+
+	// A graph for the IRIs the mapping makes
+	public CompactGraph(SampleMapping mapping) {
+		this(mapping.getTemplates());
+	}
+
+	private void reset() {
+
+		dictionary.clear();
+		dictionaryNumbers.clear();
+		subjects = new long[MIN_TAIL];
+		predicates = new int[MIN_TAIL];
+		objects = new long[MIN_TAIL];
+		deletedTriples = new BitSet();
+		predicatesUsed = new BitSet();
+		count = 0;
+		deleted = 0;
+		orderings = new int[][] { new int[0], new int[0] };
+		sorted = 0;
+		table = new int[MIN_TAIL * 2];
+		compactions++;
+	}
+
+	@Override
+	public Capabilities getCapabilities() {
+		return CAPABILITIES;
+	}
+
+	@Override
+	public synchronized void performAdd(Triple t) {
+
+		long s = encode(t.getSubject(), true);
+		int p = (int) predicateNumber(t.getPredicate(), true);
+		long o = encode(t.getObject(), true);
+		if (indexOf(s, p, o) >= 0) return;
+
+		if (count == subjects.length) {
+			int capacity = count + (count >> 1);
+			subjects = Arrays.copyOf(subjects, capacity);
+			predicates = Arrays.copyOf(predicates, capacity);
+			objects = Arrays.copyOf(objects, capacity);
+		}
+		subjects[count] = s;
+		predicates[count] = p;
+		objects[count] = o;
+		predicatesUsed.set(p);
+		count++;
+
+		// Keep the hash table no more than three quarters full
+		if (count * 4 > table.length * 3) rehash(table.length * 2);
+		else insert(count - 1);
+	}
+
+	@Override
+	public synchronized void performDelete(Triple t) {
+
+		long s = encode(t.getSubject(), false);
+		long p = predicateNumber(t.getPredicate(), false);
+		long o = encode(t.getObject(), false);
+		if (s < 0 || p < 0 || o < 0) return;
+
+		int i = indexOf(s, (int) p, o);
+		if (i < 0) return;
+		deletedTriples.set(i);
+		deleted++;
+		if (deleted > MIN_TAIL && deleted * 4 > count) compact();
+	}
+
+	@Override
+	public void clear() {
+
+		synchronized (this) {
+			reset();
+		}
+		getEventManager().notifyEvent(this, GraphEvents.removeAll);
+	}
+
+	@Override
+	protected synchronized int graphBaseSize() {
+		return count - deleted;
+	}
+
+	@Override
+	protected synchronized boolean graphBaseContains(Triple t) {
+
+		if (!t.isConcrete()) return containsByFind(t);
+
+		long s = encode(t.getSubject(), false);
+		long p = predicateNumber(t.getPredicate(), false);
+		long o = encode(t.getObject(), false);
+		return s >= 0 && p >= 0 && o >= 0 && indexOf(s, (int) p, o) >= 0;
+	}
+
+	@Override
+	protected ExtendedIterator<Triple> graphBaseFind(Triple pattern) {
+
+		Node s = pattern.getMatchSubject();
+		Node p = pattern.getMatchPredicate();
+		Node o = pattern.getMatchObject();
+
+		synchronized (this) {
+			long[] key = new long[3];
+			key[0] = s == null ? -1 : encode(s, false);
+			key[1] = p == null ? -1 : predicateNumber(p, false);
+			key[2] = o == null ? -1 : encode(o, false);
+			if (s != null && key[0] < 0 || p != null && key[1] < 0 || o != null && key[2] < 0) return NullIterator.instance();
+
+			if (s == null && p == null && o == null) return new Matches(key, null, new int[0], 0);
+
+			prepare();
+
+			// Use the ordering that has the known parts first - with only the object known, that's POS under each predicate
+			int ordering = s != null ? SPO : POS;
+			int[] order = orderings[ordering];
+			if (s == null && p == null) {
+				int[] ranges = new int[predicatesUsed.cardinality() * 2];
+				int i = 0;
+				for (int predicate = predicatesUsed.nextSetBit(0); predicate >= 0; predicate = predicatesUsed.nextSetBit(predicate + 1)) {
+					long[] prefix = { predicate, key[2] };
+					ranges[i++] = bound(order, ordering, prefix, 2, false);
+					ranges[i++] = bound(order, ordering, prefix, 2, true);
+				}
+				return new Matches(key, order, ranges, sorted);
+			}
+
+			int known = 0;
+			long[] prefix = new long[3];
+			for (int position : KEY_ORDER[ordering]) {
+				if (key[position] < 0) break;
+				prefix[known++] = key[position];
+			}
+			return new Matches(key, order, new int[] { bound(order, ordering, prefix, known, false), bound(order, ordering, prefix, known, true) }, sorted);
+		}
+	}
+
+	// Sort and merge in the tail if it's got long. This makes new arrays for the orderings rather than changing
+	// the ones other finds may be using
+	private void prepare() {
+
+		if (count - sorted > Math.max(MIN_TAIL, sorted >> 6)) {
+			for (int ordering = SPO; ordering <= POS; ordering++) orderings[ordering] = merge(ordering);
+			sorted = count;
+		}
+	}
+
+	// The ordering with the tail sorted and merged into it, leaving out deleted triples
+	private int[] merge(int ordering) {
+
+		int[] tail = new int[count - sorted];
+		int tailSize = 0;
+		for (int i = sorted; i < count; i++) {
+			if (!deletedTriples.get(i)) tail[tailSize++] = i;
+		}
+		sort(tail, tailSize, ordering);
+
+		int[] old = orderings[ordering];
+		int[] merged = new int[old.length + tailSize];
+		int size = 0;
+		int i = 0;
+		int j = 0;
+		while (i < old.length || j < tailSize) {
+			if (i < old.length && deletedTriples.get(old[i])) {
+				i++;
+			} else if (j == tailSize || i < old.length && compare(old[i], tail[j], ordering) <= 0) {
+				merged[size++] = old[i++];
+			} else {
+				merged[size++] = tail[j++];
+			}
+		}
+		return size == merged.length ? merged : Arrays.copyOf(merged, size);
+	}
+
+	// Drop the deleted triples, renumbering the rest, and sort everything again
+	private void compact() {
+
+		// Copied into new arrays, leaving the old ones as they were for finds that are still going (including one
+		// removing triples through its iterator, which is what set this off)
+		int capacity = Math.max(count - deleted, MIN_TAIL);
+		long[] newSubjects = new long[capacity];
+		int[] newPredicates = new int[capacity];
+		long[] newObjects = new long[capacity];
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			if (deletedTriples.get(i)) continue;
+			newSubjects[size] = subjects[i];
+			newPredicates[size] = predicates[i];
+			newObjects[size] = objects[i];
+			size++;
+		}
+		subjects = newSubjects;
+		predicates = newPredicates;
+		objects = newObjects;
+		deletedTriples = new BitSet();
+		count = size;
+		deleted = 0;
+		compactions++;
+
+		orderings = new int[][] { new int[0], new int[0] };
+		sorted = 0;
+		for (int ordering = SPO; ordering <= POS; ordering++) orderings[ordering] = merge(ordering);
+		sorted = count;
+
+		rehash(Math.max(MIN_TAIL * 2, Integer.highestOneBit((int) Math.max(count * 4L / 3, 1)) << 1));
+	}
+
+	// The first place in order at or after the triples that start with prefix - or after them, if after is true
+	private int bound(int[] order, int ordering, long[] prefix, int length, boolean after) {
+
+		int low = 0;
+		int high = order.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			int c = comparePrefix(order[middle], ordering, prefix, length);
+			if (c < 0 || after && c == 0) low = middle + 1;
+			else high = middle;
+		}
+		return low;
+	}
+
+	private int comparePrefix(int triple, int ordering, long[] prefix, int length) {
+
+		for (int i = 0; i < length; i++) {
+			int c = Long.compare(part(triple, KEY_ORDER[ordering][i]), prefix[i]);
+			if (c != 0) return c;
+		}
+		return 0;
+	}
+
+	private int compare(int a, int b, int ordering) {
+
+		for (int position : KEY_ORDER[ordering]) {
+			int c = Long.compare(part(a, position), part(b, position));
+			if (c != 0) return c;
+		}
+		return 0;
+	}
+
+	private long part(int triple, int position) {
+		return position == 0 ? subjects[triple] : position == 1 ? predicates[triple] : objects[triple];
+	}
+
+	// Merge sort the first size triple numbers in triples into ordering's order
+	private void sort(int[] triples, int size, int ordering) {
+
+		int[] from = triples;
+		int[] to = new int[size];
+		for (int width = 1; width < size; width <<= 1) {
+			for (int low = 0; low < size; low += width << 1) {
+				int middle = Math.min(low + width, size);
+				int high = Math.min(low + (width << 1), size);
+				int i = low;
+				int j = middle;
+				int k = low;
+				while (i < middle && j < high) to[k++] = compare(from[i], from[j], ordering) <= 0 ? from[i++] : from[j++];
+				while (i < middle) to[k++] = from[i++];
+				while (j < high) to[k++] = from[j++];
+			}
+			int[] swap = from;
+			from = to;
+			to = swap;
+		}
+		if (from != triples) System.arraycopy(from, 0, triples, 0, size);
+	}
+
+	// The number of the triple, or -1 if it isn't in the graph
+	private int indexOf(long s, int p, long o) {
+
+		int mask = table.length - 1;
+		for (int slot = hash(s, p, o) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+			int i = table[slot] - 1;
+			if (subjects[i] == s && predicates[i] == p && objects[i] == o && !deletedTriples.get(i)) return i;
+		}
+		return -1;
+	}
+
+	private void insert(int triple) {
+
+		int mask = table.length - 1;
+		int slot = hash(subjects[triple], predicates[triple], objects[triple]) & mask;
+		while (table[slot] != 0) slot = (slot + 1) & mask;
+		table[slot] = triple + 1;
+	}
+
+	private void rehash(int capacity) {
+
+		table = new int[capacity];
+		for (int i = 0; i < count; i++) {
+			if (!deletedTriples.get(i)) insert(i);
+		}
+	}
+
+	private static int hash(long s, int p, long o) {
+
+		long h = s * 0x9E3779B97F4A7C15L + p * 0xC2B2AE3D27D4EB4FL + o * 0x165667B19E3779F9L;
+		return (int) (h ^ (h >>> 29) ^ (h >>> 47));
+	}
+
+	// The number for a node, or -1 if it isn't in the graph and create is false
+	private long encode(Node node, boolean create) {
+
+		if (node.isURI()) {
+			String iri = node.getURI();
+			for (int i = 0; i < prefixes.length; i++) {
+				long number = numberIn(iri, prefixes[i], suffixes[i]);
+				if (number >= 0) return TEMPLATE_FLAG | (long) i << NUMBER_BITS | number;
+			}
+		}
+		return dictionaryNumber(node, create);
+	}
+
+	private long predicateNumber(Node node, boolean create) {
+		return dictionaryNumber(node, create);
+	}
+
+	private long dictionaryNumber(Node node, boolean create) {
+
+		Integer number = dictionaryNumbers.get(node);
+		if (number != null) return number;
+		if (!create) return -1;
+
+		number = dictionary.size();
+		dictionary.add(node);
+		dictionaryNumbers.put(node, number);
+		return number;
+	}
+
+	// The number between prefix and suffix in iri, or -1 if it isn't made from them or the number wouldn't be
+	// written the same way again (e.g. it has a leading zero)
+	private static long numberIn(String iri, String prefix, String suffix) {
+
+		int start = prefix.length();
+		int end = iri.length() - suffix.length();
+		int digits = end - start;
+		if (digits < 1 || digits > MAX_DIGITS || !iri.startsWith(prefix) || !iri.endsWith(suffix)) return -1;
+		if (digits > 1 && iri.charAt(start) == '0') return -1;
+
+		long number = 0;
+		for (int i = start; i < end; i++) {
+			char c = iri.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			number = number * 10 + (c - '0');
+		}
+		return number;
+	}
+
+	private Node decode(long number) {
+
+		if ((number & TEMPLATE_FLAG) == 0) return dictionary.get((int) number);
+
+		int template = (int) ((number & ~TEMPLATE_FLAG) >>> NUMBER_BITS);
+		return NodeFactory.createURI(prefixes[template] + (number & NUMBER_MASK) + suffixes[template]);
+	}
+
+	// The number of distinct nodes that aren't made from templates
+	public synchronized int getDictionarySize() {
+		return dictionary.size();
+	}
+
+	// The triples matching a pattern - those in some ranges of an ordering (given as pairs of from and to), then
+	// those in the tail. With no ordering every triple is looked at
+	private final class Matches extends NiceIterator<Triple> {
+
+		private final long s;
+		private final long p;
+		private final long o;
+		private final int[] order;
+		private final int[] ranges;
+		private final int tailStart;
+		private final int end;
+		private final int generation;
+
+		// The arrays as they were when the find started
+		private final long[] subjects;
+		private final int[] predicates;
+		private final long[] objects;
+		private final BitSet deletedTriples;
+
+		private int range;
+		private int position;
+		private boolean inTail;
+		private int next = -1;
+		private Triple current;
+
+		Matches(long[] key, int[] order, int[] ranges, int tailStart) {
+
+			this.s = key[0];
+			this.p = key[1];
+			this.o = key[2];
+			this.order = order;
+			this.ranges = ranges;
+			this.tailStart = tailStart;
+			this.end = count;
+			this.generation = compactions;
+			this.subjects = CompactGraph.this.subjects;
+			this.predicates = CompactGraph.this.predicates;
+			this.objects = CompactGraph.this.objects;
+			this.deletedTriples = CompactGraph.this.deletedTriples;
+
+			inTail = order == null;
+			position = inTail ? tailStart : ranges.length == 0 ? 0 : ranges[0];
+		}
+
+		@Override
+		public boolean hasNext() {
+
+			while (next < 0) {
+				int triple;
+				if (!inTail) {
+					if (range >= ranges.length) {
+						inTail = true;
+						position = tailStart;
+						continue;
+					}
+					if (position >= ranges[range + 1]) {
+						range += 2;
+						if (range < ranges.length) position = ranges[range];
+						continue;
+					}
+					triple = order[position++];
+				} else {
+					if (position >= end) return false;
+					triple = position++;
+				}
+				if (matches(triple)) next = triple;
+			}
+			return true;
+		}
+
+		private boolean matches(int triple) {
+
+			if (isDeleted(triple)) return false;
+			return (s < 0 || subjects[triple] == s) && (p < 0 || predicates[triple] == p) && (o < 0 || objects[triple] == o);
+		}
+
+		// A triple deleted since the find started is left out too, as long as the triples haven't been renumbered
+		private boolean isDeleted(int triple) {
+
+			return (generation == compactions ? CompactGraph.this.deletedTriples : deletedTriples).get(triple);
+		}
+
+		@Override
+		public Triple next() {
+
+			if (!hasNext()) throw new NoSuchElementException();
+			current = Triple.create(decode(subjects[next]), decode(predicates[next]), decode(objects[next]));
+			next = -1;
+			return current;
+		}
+
+		@Override
+		public void remove() {
+
+			if (current == null) throw new IllegalStateException();
+			CompactGraph.this.delete(current);
+			current = null;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CompactGraph: " + (count - deleted) + " triples, " + dictionary.size() + " dictionary nodes";
+	}
+
+}
@@ -0,0 +1,289 @@
+package ie.marine.semanticfishdata;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// Reads sample rows from a CSV or TSV extract of the StockmanQuery.sql results, with the column names in its first
+// line. The file is memory mapped and each row is parsed straight out of the mapped bytes - only the values of the
+// columns we use are turned into Strings, and nothing else is copied. The file can be split into chunks of whole
+// lines so several threads can each read their own part of it at once.
+//
+// CSV values may be quoted, with "" for a quote inside a quoted value, but a value can't have a line break in it.
+// TSV values are never quoted. An empty value, or one that is the same as nullValue (e.g. NULL as bcp and sqlcmd
+// write it), is read as null the same as a NULL from the database.
+public class DelimitedFile implements Closeable {
+
+	// Largest part of the file mapped at once - a mapping can't be more than 2 GB
+	private static final long MAX_MAP_SIZE = 1L << 30;
+
+	// How much of the start of the file the header line has to fit in
+	private static final int MAX_HEADER_SIZE = 1 << 16;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+	private final byte delimiter;
+	private final boolean quoted;
+	private final byte[] nullValue;
+
+	// For each field in a line, the position in the row it goes in (or -1 if we don't use it)
+	private final int[] fieldTargets;
+	private final int rowLength;
+
+	// Where the first line after the header starts
+	private final long dataStart;
+
+	// columns are the columns to read into each row, in order (e.g. a SampleMapping's)
+	public DelimitedFile(File path, char delimiter, String[] columns, String nullValue) throws IOException {
+
+		this.file = new RandomAccessFile(path, "r");
+		this.channel = file.getChannel();
+		this.size = channel.size();
+		this.delimiter = (byte) delimiter;
+		this.quoted = delimiter != '\t';
+		this.nullValue = nullValue == null ? null : nullValue.getBytes(StandardCharsets.UTF_8);
+		this.rowLength = columns.length;
+
+		try {
+			ByteBuffer start = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAX_HEADER_SIZE));
+			int offset = hasByteOrderMark(start) ? 3 : 0;
+			int headerEnd = findLineEnd(start, offset, start.limit());
+			if (headerEnd == start.limit() && start.limit() < size) throw new IOException(path + " has no header line");
+
+			String[] header = new String(bytes(start, offset, headerEnd), StandardCharsets.UTF_8).split(Pattern.quote(Character.toString(delimiter)), -1);
+			fieldTargets = new int[header.length];
+			Arrays.fill(fieldTargets, -1);
+			for (int i = 0; i < header.length; i++) {
+				String name = unquote(header[i].trim());
+				for (int j = 0; j < columns.length; j++) {
+					if (columns[j].equalsIgnoreCase(name)) fieldTargets[i] = j;
+				}
+			}
+			if (!Arrays.stream(fieldTargets).anyMatch(target -> target == SampleRowConverter.SAMPLE_ID)) {
+				throw new IOException(path + " does not have a SampleID column");
+			}
+
+			dataStart = skipLineEnd(start, headerEnd, start.limit());
+		} catch (IOException | RuntimeException ex) {
+			file.close();
+			throw ex;
+		}
+	}
+
+	// Open an extract, working out the delimiter from its name - tabs for .tsv or .tab files, otherwise commas
+	public static DelimitedFile open(File path, String[] columns, String nullValue) throws IOException {
+
+		String name = path.getName().toLowerCase();
+		return new DelimitedFile(path, name.endsWith(".tsv") || name.endsWith(".tab") ? '\t' : ',', columns, nullValue);
+	}
+
+	// A delimiter from the config file - "tab", "comma", "pipe" or the character itself
+	public static char delimiterFor(String name) {
+
+		switch (name.toLowerCase()) {
+		case "tab":
+			return '\t';
+		case "comma":
+			return ',';
+		case "pipe":
+			return '|';
+		default:
+			if (name.length() != 1) throw new IllegalArgumentException("Unknown delimiter: " + name);
+			return name.charAt(0);
+		}
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	// All the rows in the file, one after another
+	public RowSource rows() throws IOException {
+		return RowSource.concat(split(1));
+	}
+
+	// Split the rows into about parts chunks of whole lines, each read separately. Very large files are split
+	// into more chunks than that as each is mapped on its own
+	public List<RowSource> split(int parts) throws IOException {
+
+		long dataSize = size - dataStart;
+		int chunks = (int) Math.max(Math.max(parts, 1), (dataSize + MAX_MAP_SIZE - 1) / MAX_MAP_SIZE);
+		long chunkSize = Math.max(1, (dataSize + chunks - 1) / chunks);
+
+		List<RowSource> sources = new ArrayList<RowSource>();
+		long start = dataStart;
+		while (start < size) {
+			long end = start + chunkSize >= size ? size : nextLineStart(start + chunkSize);
+			if (end - start > MAX_MAP_SIZE + MAX_HEADER_SIZE) throw new IOException("Line too long at offset " + start);
+			sources.add(new Chunk(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start)));
+			start = end;
+		}
+		return sources;
+	}
+
+	// The start of the line after the one offset is in
+	private long nextLineStart(long offset) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		for (long position = offset; position < size; ) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) break;
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') return position + i + 1;
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	// The lines in one mapped part of the file
+	private final class Chunk implements RowSource {
+
+		private final MappedByteBuffer buffer;
+		private final int limit;
+		private int position;
+
+		// Where a value is copied to before it's made into a String
+		private byte[] scratch = new byte[256];
+
+		Chunk(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+			this.limit = buffer.limit();
+		}
+
+		@Override
+		public boolean next(String[] row) {
+
+			// Skip any blank lines
+			while (position < limit && (buffer.get(position) == '\n' || buffer.get(position) == '\r')) position++;
+			if (position >= limit) return false;
+
+			Arrays.fill(row, 0, rowLength, null);
+
+			for (int field = 0; ; field++) {
+				int target = field < fieldTargets.length ? fieldTargets[field] : -1;
+
+				int end;
+				if (quoted && position < limit && buffer.get(position) == '"') {
+					end = readQuoted(target, row);
+				} else {
+					end = position;
+					while (end < limit) {
+						byte b = buffer.get(end);
+						if (b == delimiter || b == '\n' || b == '\r') break;
+						end++;
+					}
+					if (target >= 0) row[target] = value(position, end);
+				}
+
+				if (end < limit && buffer.get(end) == delimiter) {
+					position = end + 1;
+				} else {
+					position = skipLineEnd(buffer, end, limit);
+					return true;
+				}
+			}
+		}
+
+		// Read a quoted value starting at position, turning "" into ". Returns where the value ends
+		private int readQuoted(int target, String[] row) {
+
+			int length = 0;
+			int i = position + 1;
+			while (i < limit) {
+				byte b = buffer.get(i);
+				if (b == '"') {
+					if (i + 1 < limit && buffer.get(i + 1) == '"') {
+						i++;
+					} else {
+						i++;
+						break;
+					}
+				}
+				if (target >= 0) {
+					if (length == scratch.length) scratch = Arrays.copyOf(scratch, length * 2);
+					scratch[length++] = b;
+				}
+				i++;
+			}
+			// Anything between the closing quote and the delimiter is ignored
+			while (i < limit && buffer.get(i) != delimiter && buffer.get(i) != '\n' && buffer.get(i) != '\r') i++;
+
+			if (target >= 0) row[target] = length == 0 ? null : new String(scratch, 0, length, StandardCharsets.UTF_8);
+			return i;
+		}
+
+		// The value between start and end, or null if it's empty or the null value
+		private String value(int start, int end) {
+
+			int length = end - start;
+			if (length == 0 || isNullValue(start, length)) return null;
+
+			if (length > scratch.length) scratch = new byte[Math.max(length, scratch.length * 2)];
+			boolean ascii = true;
+			for (int i = 0; i < length; i++) {
+				byte b = buffer.get(start + i);
+				scratch[i] = b;
+				if (b < 0) ascii = false;
+			}
+			// Most values are plain ASCII, which is quicker to decode as Latin-1 and gives the same String
+			return new String(scratch, 0, length, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+		}
+
+		private boolean isNullValue(int start, int length) {
+
+			if (nullValue == null || length != nullValue.length) return false;
+			for (int i = 0; i < length; i++) {
+				if (buffer.get(start + i) != nullValue[i]) return false;
+			}
+			return true;
+		}
+	}
+
+	private static boolean hasByteOrderMark(ByteBuffer buffer) {
+		return buffer.limit() >= 3 && buffer.get(0) == (byte) 0xEF && buffer.get(1) == (byte) 0xBB && buffer.get(2) == (byte) 0xBF;
+	}
+
+	private static int findLineEnd(ByteBuffer buffer, int from, int limit) {
+
+		int i = from;
+		while (i < limit && buffer.get(i) != '\n' && buffer.get(i) != '\r') i++;
+		return i;
+	}
+
+	private static int skipLineEnd(ByteBuffer buffer, int from, int limit) {
+
+		int i = from;
+		if (i < limit && buffer.get(i) == '\r') i++;
+		if (i < limit && buffer.get(i) == '\n') i++;
+		return i;
+	}
+
+	private static byte[] bytes(ByteBuffer buffer, int start, int end) {
+
+		byte[] bytes = new byte[end - start];
+		for (int i = start; i < end; i++) bytes[i - start] = buffer.get(i);
+		return bytes;
+	}
+
+	private static String unquote(String value) {
+		return value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"") ? value.substring(1, value.length() - 1).replace("\"\"", "\"") : value;
+	}
+
+}
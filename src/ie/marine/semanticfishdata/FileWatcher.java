@@ -0,0 +1,70 @@
+package ie.marine.semanticfishdata;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Notices when files change, by comparing their size and last modified time each time it's asked. A directory
+// (e.g. of saved partitions) counts as changed when any file in it is added, removed or changed. A change is only
+// reported once the file has stayed the same between two checks, so a file that's still being written isn't
+// picked up half way through.
+public class FileWatcher {
+
+	private final List<File> files;
+
+	// What each file looked like when it was last reported (or reset), and a change seen once but not yet settled
+	private final Map<File, Long> seen = new HashMap<File, Long>();
+	private final Map<File, Long> pending = new HashMap<File, Long>();
+
+	public FileWatcher(List<File> files) {
+
+		this.files = new ArrayList<File>(files);
+		reset();
+	}
+
+	public List<File> getFiles() {
+		return files;
+	}
+
+	// The files that have changed since they were last reported, and not changed again since the last check
+	public synchronized List<File> changed() {
+
+		List<File> changed = new ArrayList<File>();
+		for (File file : files) {
+			Long stamp = stamp(file);
+			if (stamp.equals(seen.get(file))) {
+				pending.remove(file);
+			} else if (stamp.equals(pending.get(file))) {
+				seen.put(file, stamp);
+				pending.remove(file);
+				changed.add(file);
+			} else {
+				pending.put(file, stamp);
+			}
+		}
+		return changed;
+	}
+
+	// Take the files as they are now as unchanged, e.g. after writing one of them ourselves
+	public synchronized void reset() {
+
+		for (File file : files) seen.put(file, stamp(file));
+		pending.clear();
+	}
+
+	private static Long stamp(File file) {
+
+		if (!file.isDirectory()) return file.exists() ? 31 * file.length() + file.lastModified() : -1L;
+
+		File[] children = file.listFiles(File::isFile);
+		if (children == null) return -1L;
+		Arrays.sort(children);
+		long stamp = children.length;
+		for (File child : children) stamp = 31 * (31 * (31 * stamp + child.getName().hashCode()) + child.length()) + child.lastModified();
+		return stamp;
+	}
+
+}
@@ -0,0 +1,68 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.compose.Union;
+import org.apache.jena.reasoner.InfGraph;
+import org.apache.jena.reasoner.ReasonerRegistry;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// Runs the OWL micro reasoner (the same one OntModelSpec.OWL_MEM_MICRO_RULE_INF uses) over the data once and
+// copies everything it entails into a plain graph. Queries against that graph then get the same answers as
+// they would from an inferencing OntModel, without paying for the rule engine on every add and every query.
+// The one exception is owl:differentFrom. Because our classes are declared disjoint the reasoner entails it between
+// every Observation and every Species, Unit, Quality etc, which would make the graph dozens of times bigger
+// for something we never query, so it is left out.
+public class InferenceMaterializer {
+
+	// Return the closure of data - the data itself plus everything the reasoner entails from it
+	public static Graph materialize(Graph data) {
+		return materialize(data, GraphFactory.createGraphMem());
+	}
+
+	// Add the closure of data to the empty graph closure, and return it
+	public static Graph materialize(Graph data, Graph closure) {
+
+		InfGraph inf = ReasonerRegistry.getOWLMicroReasoner().bind(data);
+		inf.prepare();
+
+		closure.getPrefixMapping().setNsPrefixes(data.getPrefixMapping());
+
+		// Ask for the triples one property at a time so the backward rules for owl:differentFrom never run
+		for (Node property : getProperties(data, inf)) {
+			if (!OWL.differentFrom.asNode().equals(property)) inf.find(Node.ANY, property, Node.ANY).forEachRemaining(closure::add);
+		}
+
+		// Don't close inf - that would close the data graph underneath it too
+		return closure;
+	}
+
+	// Every property that can appear in the closure - those used in the data, those in the forward deductions,
+	// and anything the reasoner knows to be an rdf:Property (which covers inverse properties such as isSpeciesOf)
+	private static Set<Node> getProperties(Graph data, InfGraph inf) {
+
+		Set<Node> properties = new HashSet<Node>();
+		data.find(Node.ANY, Node.ANY, Node.ANY).forEachRemaining(t -> properties.add(t.getPredicate()));
+		inf.getDeductionsGraph().find(Node.ANY, Node.ANY, Node.ANY).forEachRemaining(t -> properties.add(t.getPredicate()));
+		inf.find(Node.ANY, RDF.Nodes.type, RDF.Property.asNode()).forEachRemaining(t -> properties.add(t.getSubject()));
+		return properties;
+	}
+
+	// Add the inferences for some new data to a graph that has already been materialized. The entailments for
+	// our schema only involve each sample's own triples (inverse properties, types from domains and ranges)
+	// so reasoning over the schema plus the new triples is enough. The schema and its own inferences are
+	// already in the graph so they're left out - parsed again, their blank nodes would be added a second time
+	public static void addInferences(Graph target, Graph schema, Graph delta) {
+
+		Graph schemaClosure = materialize(schema);
+		materialize(new Union(schema, delta)).find(Node.ANY, Node.ANY, Node.ANY).forEachRemaining(t -> {
+			if (!schemaClosure.contains(t)) target.add(t);
+		});
+	}
+
+}
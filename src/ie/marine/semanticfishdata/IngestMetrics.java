@@ -0,0 +1,144 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// The metrics for loading rows from the database or an extract file: how many rows were read and how many were rejected
+// (and why), how many triples they became, how the time was split between reading rows and converting them,
+// and how much heap the triples took up. Rows and triples are counted by wrapping the RowSource and the sink, the
+// same way the watermark tracks rows. It also prints a line of progress every so often while a load is running.
+public class IngestMetrics {
+
+	private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private final Metrics metrics;
+	private final Metrics.Counter rowsRead;
+	private final Metrics.Counter triples;
+	private final Metrics.Counter fetchNanos;
+	private final Metrics.Counter convertNanos;
+	private final Metrics.Timer loads;
+
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private final AtomicLong heapPerThousandTriples = new AtomicLong();
+
+	// For the load in progress
+	private long loadStart;
+	private long heapAtStart;
+	private long triplesAtStart;
+	private long rowsAtStart;
+	private volatile long lastProgress;
+
+	// Told about every row that has been converted, e.g. to count it in the sampling summaries
+	private volatile Consumer<String[]> acceptedRows = row -> {};
+
+	public IngestMetrics(Metrics metrics) {
+
+		this.metrics = metrics;
+		rowsRead = metrics.counter("semanticfishdata_ingest_rows_read_total", "Rows read from the database or extract file");
+		triples = metrics.counter("semanticfishdata_ingest_triples_total", "Triples emitted from the rows");
+		fetchNanos = metrics.counter("semanticfishdata_ingest_fetch_nanoseconds_total", "Time spent reading rows from the database or file, over all reader threads");
+		convertNanos = metrics.counter("semanticfishdata_ingest_convert_nanoseconds_total", "Time spent converting rows to triples, over all converter threads");
+		loads = metrics.timer("semanticfishdata_ingest_load_seconds", "Time taken by each load of rows");
+		metrics.gauge("semanticfishdata_ingest_heap_bytes_per_thousand_triples",
+				"Growth in used heap per thousand triples over the last load (approximate - it includes any garbage not yet collected)",
+				heapPerThousandTriples::get);
+		metrics.gauge("semanticfishdata_heap_used_bytes", "Heap in use", () -> memory.getHeapMemoryUsage().getUsed());
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public void startLoad() {
+
+		loadStart = System.nanoTime();
+		lastProgress = loadStart;
+		heapAtStart = memory.getHeapMemoryUsage().getUsed();
+		triplesAtStart = triples.get();
+		rowsAtStart = rowsRead.get();
+	}
+
+	public void finishLoad() {
+
+		loads.record(System.nanoTime() - loadStart);
+
+		long loaded = triples.get() - triplesAtStart;
+		if (loaded > 0) heapPerThousandTriples.set(Math.max(0, memory.getHeapMemoryUsage().getUsed() - heapAtStart) * 1000 / loaded);
+
+		System.out.println("Loaded " + this);
+	}
+
+	// Count the rows read from source, and time how long each one takes to read. Several sources can be tracked at once
+	public RowSource track(RowSource source) {
+
+		return row -> {
+			long start = System.nanoTime();
+			boolean more = source.next(row);
+			long end = System.nanoTime();
+			fetchNanos.add(end - start);
+			if (more) {
+				rowsRead.inc();
+				if (end - lastProgress > PROGRESS_INTERVAL_NANOS) {
+					lastProgress = end;
+					System.out.println("Loading: " + this);
+				}
+			}
+			return more;
+		};
+	}
+
+	// Count the triples sent to sink
+	public StreamRDF track(StreamRDF sink) {
+
+		return new StreamRDFWrapper(sink) {
+			@Override
+			public void triple(Triple triple) {
+				triples.inc();
+				super.triple(triple);
+			}
+		};
+	}
+
+	public void converted(long nanos) {
+		convertNanos.add(nanos);
+	}
+
+	// Pass each row that converts without being rejected to listener. It may be called from several converter threads at once
+	public void onAccepted(Consumer<String[]> listener) {
+		acceptedRows = listener;
+	}
+
+	// A row has been converted
+	public void accepted(String[] row) {
+		acceptedRows.accept(row);
+	}
+
+	// Count a row that couldn't be converted, under the reason it was rejected
+	public void rejected(Exception ex) {
+
+		String reason = ex instanceof SampleRowConverter.RejectedRowException ? ((SampleRowConverter.RejectedRowException) ex).getReason() : ex.getClass().getSimpleName();
+		rejectedCounter(reason).inc();
+		System.out.println("Rejected row (" + reason + "): " + ex.getMessage());
+	}
+
+	private Metrics.Counter rejectedCounter(String reason) {
+		return metrics.counter("semanticfishdata_ingest_rows_rejected_total", "Rows that couldn't be converted, by reason", "reason", reason);
+	}
+
+	@Override
+	public String toString() {
+
+		long rows = rowsRead.get() - rowsAtStart;
+		return rows + " rows as " + (triples.get() - triplesAtStart) + " triples in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - loadStart)
+				+ "s (reading " + TimeUnit.NANOSECONDS.toMillis(fetchNanos.get()) + " ms, conversion " + TimeUnit.NANOSECONDS.toMillis(convertNanos.get())
+				+ " ms in total), heap " + (memory.getHeapMemoryUsage().getUsed() >> 20) + " MB";
+	}
+
+}
@@ -0,0 +1,268 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Converts rows to triples on a pool of worker threads while the calling thread carries on reading rows.
+// The reader hands batches of rows to the workers, only letting a couple per worker be outstanding, and sends
+// each batch's triples on to the sink (always from the calling thread) as it's converted, so nothing more than
+// those batches is held in memory. The triples sent to the sink are the same set the single threaded path produces.
+// Rows that can be read in parallel, such as the chunks of a file, can instead be read as well as converted by the workers.
+public class IngestionPipeline {
+
+	// The triples of a batch of converted rows. Each row's own triples are only made once, as its SampleID is
+	// unique, but every worker types the shared individuals (species, divisions etc) it meets for itself
+	private static final class Converted {
+
+		final List<Triple> rows = new ArrayList<Triple>();
+		final List<Triple> shared = new ArrayList<Triple>();
+
+		final StreamRDF rowsOut = collector(rows);
+		final StreamRDF sharedOut = collector(shared);
+
+		private static StreamRDF collector(List<Triple> triples) {
+			return new StreamRDFBase() {
+				@Override
+				public void triple(Triple triple) {
+					triples.add(triple);
+				}
+			};
+		}
+	}
+
+	// Put on the queue once a worker has read all the rows from its source
+	private static final Converted END_OF_SOURCE = new Converted();
+
+	// How often a thread waiting on the others checks whether one of them has failed
+	private static final long WAIT_MILLIS = 500;
+
+	private final SampleMapping mapping;
+	private final int threads;
+	private final int batchSize;
+	private final int internCacheSize;
+	private final IngestMetrics metrics;
+
+	// Shared individual cache counts, totalled over all the workers
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+
+	public IngestionPipeline(SampleMapping mapping, int threads, int batchSize, int internCacheSize, IngestMetrics metrics) {
+
+		if (threads < 1) throw new IllegalArgumentException("Need at least one converter thread");
+		if (batchSize < 1) throw new IllegalArgumentException("Batch size must be at least 1");
+
+		this.mapping = mapping;
+		this.threads = threads;
+		this.batchSize = batchSize;
+		this.internCacheSize = internCacheSize;
+		this.metrics = metrics;
+	}
+
+	// Read all the rows from source, convert them, and send the resulting triples to sink.
+	// Returns the number of rows read
+	public int run(RowSource source, StreamRDF sink) throws Exception {
+
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		List<SampleRowConverter> converters = new ArrayList<SampleRowConverter>();
+		ThreadLocal<SampleRowConverter> converter = ThreadLocal.withInitial(() -> {
+			SampleRowConverter created = new SampleRowConverter(mapping, internCacheSize);
+			synchronized (converters) {
+				converters.add(created);
+			}
+			return created;
+		});
+
+		// Batches handed to the workers, in the order they were read. Allow a couple per worker so neither the
+		// reader nor the workers stall
+		Deque<Future<Converted>> converting = new ArrayDeque<Future<Converted>>();
+		Set<Triple> sharedSent = new HashSet<Triple>();
+		int numberOfRecordsProcessed = 0;
+
+		try {
+			sink.start();
+
+			List<String[]> batch = new ArrayList<String[]>(batchSize);
+			int rowLength = mapping.getColumns().length;
+			String[] row = new String[rowLength];
+
+			while (source.next(row)) {
+
+				batch.add(row);
+				row = new String[rowLength];
+
+				if (batch.size() == batchSize) {
+					List<String[]> rows = batch;
+					converting.add(workers.submit(() -> convertBatch(converter.get(), rows)));
+					batch = new ArrayList<String[]>(batchSize);
+
+					// Waiting on the oldest batch rather than a queue means a worker that has died (even from an
+					// Error) is noticed straight away instead of leaving the reader blocked
+					if (converting.size() >= threads * 2) send(converting.remove().get(), sink, sharedSent);
+				}
+
+				numberOfRecordsProcessed++;
+			}
+
+			if (!batch.isEmpty()) {
+				List<String[]> rows = batch;
+				converting.add(workers.submit(() -> convertBatch(converter.get(), rows)));
+			}
+			while (!converting.isEmpty()) send(converting.remove().get(), sink, sharedSent);
+
+			sink.finish();
+
+		} catch (ExecutionException ex) {
+			throw new Exception("Converter thread failed: " + ex.getCause().getMessage(), ex.getCause());
+		} finally {
+			workers.shutdownNow();
+		}
+
+		for (SampleRowConverter used : converters) countCacheUse(used);
+		return numberOfRecordsProcessed;
+	}
+
+	// Read all the rows from several sources at once, each on a worker thread that converts its rows a batch at a
+	// time, and send the resulting triples to sink as each batch is finished. Returns the number of rows read
+	public int run(List<RowSource> sources, StreamRDF sink) throws Exception {
+
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, sources.size())));
+		BlockingQueue<Converted> converted = new ArrayBlockingQueue<Converted>(threads * 2);
+		AtomicBoolean failed = new AtomicBoolean();
+		// The first thing to go wrong - once it has the other workers stop too
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		AtomicInteger numberOfRecordsProcessed = new AtomicInteger();
+
+		for (RowSource source : sources) {
+			workers.submit(() -> {
+				try {
+					convertSource(source, converted, failed, numberOfRecordsProcessed);
+				} catch (Throwable ex) {
+					failure.compareAndSet(null, ex);
+					failed.set(true);
+					throw ex;
+				}
+				return null;
+			});
+		}
+
+		Set<Triple> sharedSent = new HashSet<Triple>();
+
+		try {
+			sink.start();
+
+			for (int finished = 0; finished < sources.size() && !failed.get(); ) {
+				Converted batch = converted.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+				if (batch == END_OF_SOURCE) {
+					finished++;
+				} else if (batch != null) {
+					send(batch, sink, sharedSent);
+				}
+			}
+			if (failure.get() != null) throw new Exception("Converter thread failed: " + failure.get().getMessage(), failure.get());
+
+			sink.finish();
+
+		} finally {
+			failed.set(true);
+			workers.shutdownNow();
+		}
+
+		return numberOfRecordsProcessed.get();
+	}
+
+	// Convert a batch of rows with this worker's converter
+	private Converted convertBatch(SampleRowConverter converter, List<String[]> rows) {
+
+		Converted converted = new Converted();
+		for (String[] row : rows) convert(converter, row, converted);
+		return converted;
+	}
+
+	// Worker for one of several sources - read and convert all its rows, handing each batch to the calling thread
+	private void convertSource(RowSource source, BlockingQueue<Converted> queue, AtomicBoolean failed, AtomicInteger numberOfRecordsProcessed) throws Exception {
+
+		SampleRowConverter converter = new SampleRowConverter(mapping, internCacheSize);
+		String[] row = new String[mapping.getColumns().length];
+		Converted batch = new Converted();
+		int rows = 0;
+
+		while (source.next(row)) {
+			convert(converter, row, batch);
+			numberOfRecordsProcessed.incrementAndGet();
+
+			if (++rows == batchSize) {
+				hand(batch, queue, failed);
+				batch = new Converted();
+				rows = 0;
+			}
+		}
+		if (rows > 0) hand(batch, queue, failed);
+
+		countCacheUse(converter);
+		hand(END_OF_SOURCE, queue, failed);
+	}
+
+	// Wait for room on the queue, giving up if another thread has failed and nothing is taking batches off it any more
+	private static void hand(Converted batch, BlockingQueue<Converted> queue, AtomicBoolean failed) throws InterruptedException {
+
+		while (!queue.offer(batch, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (failed.get()) throw new InterruptedException("Stopped as another converter thread failed");
+		}
+	}
+
+	private void convert(SampleRowConverter converter, String[] row, Converted out) {
+
+		long start = System.nanoTime();
+		try {
+			converter.convert(row, out.rowsOut, out.sharedOut);
+			metrics.accepted(row);
+		} catch (Exception ex) {
+			metrics.rejected(ex);
+		}
+		metrics.converted(System.nanoTime() - start);
+	}
+
+	// Send a batch's triples on to the sink. Shared individuals will have been typed by more than one worker, so
+	// skip any of their triples that have already been sent - there are few of them, unlike the rows' own triples
+	private static void send(Converted batch, StreamRDF sink, Set<Triple> sharedSent) {
+
+		for (Triple t : batch.shared) {
+			if (sharedSent.add(t)) sink.triple(t);
+		}
+		for (Triple t : batch.rows) sink.triple(t);
+	}
+
+	private void countCacheUse(SampleRowConverter converter) {
+
+		cacheHits.addAndGet(converter.getInternCache().getHits());
+		cacheMisses.addAndGet(converter.getInternCache().getMisses());
+	}
+
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+}
@@ -0,0 +1,65 @@
+package ie.marine.semanticfishdata;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+// A bounded cache for values that are shared by many rows, such as the Species and ICESDivision individuals,
+// so each one is only created once. If the cache fills up the least recently used entry is dropped (and will
+// simply be created again if it's needed). Hit and miss counts show how much work the cache is saving.
+// Not thread safe - use one cache per thread.
+public class InternCache<V> {
+
+	public static final int DEFAULT_SIZE = 10000;
+
+	private final Map<String, V> entries;
+	private long hits;
+	private long misses;
+
+	public InternCache(int maxSize) {
+
+		if (maxSize < 1) throw new IllegalArgumentException("Cache size must be at least 1");
+
+		entries = new LinkedHashMap<String, V>(Math.min(maxSize, 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	// Get the value for key, creating it (and counting a miss) if we don't already have it
+	public V get(String key, Function<String, V> create) {
+
+		V value = entries.get(key);
+		if (value != null) {
+			hits++;
+			return value;
+		}
+
+		misses++;
+		value = create.apply(key);
+		entries.put(key, value);
+		return value;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public String toString() {
+		return hits + " hits, " + misses + " misses, " + entries.size() + " entries";
+	}
+
+}
@@ -0,0 +1,73 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.compose.Union;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.vocabulary.RDF;
+
+// Sends the converted rows on to another StreamRDF, e.g. the TDB2 bulk loader, along with everything the reasoner
+// entails from them. The inferences are worked out a chunk of samples at a time against the schema, as
+// InferenceMaterializer.addInferences does for a refresh, so only one chunk is ever held in memory. A new chunk
+// starts at a sample's rdf:type, which SampleRowConverter sends first for each row.
+public class MaterializingStream extends StreamRDFWrapper {
+
+	private final Graph schema;
+	private final Graph schemaClosure;
+	private final Node sampleClass;
+	private final int chunkSize;
+
+	private Graph chunk = GraphFactory.createGraphMem();
+	private int samples;
+
+	// The schema's own inferences are only sent once, before the first chunk
+	private boolean schemaSent;
+
+	public MaterializingStream(StreamRDF out, Graph schema, SampleMapping mapping, int chunkSize) {
+
+		super(out);
+		if (chunkSize < 1) throw new IllegalArgumentException("Chunk size must be at least 1");
+
+		this.schema = schema;
+		this.schemaClosure = InferenceMaterializer.materialize(schema);
+		this.sampleClass = mapping.sampleClass;
+		this.chunkSize = chunkSize;
+	}
+
+	@Override
+	public void triple(Triple triple) {
+
+		if (RDF.Nodes.type.equals(triple.getPredicate()) && sampleClass.equals(triple.getObject()) && ++samples > chunkSize) {
+			flush();
+			samples = 1;
+		}
+		chunk.add(triple);
+	}
+
+	@Override
+	public void finish() {
+
+		flush();
+		super.finish();
+	}
+
+	// Send the chunk and its inferences on, leaving out the schema's own inferences once they've been sent
+	private void flush() {
+
+		if (!schemaSent) {
+			schemaClosure.find(Node.ANY, Node.ANY, Node.ANY).forEachRemaining(other::triple);
+			schemaSent = true;
+		}
+		if (chunk.isEmpty()) return;
+
+		Graph closure = InferenceMaterializer.materialize(new Union(schema, chunk));
+		closure.find(Node.ANY, Node.ANY, Node.ANY).forEachRemaining(t -> {
+			if (!schemaClosure.contains(t)) other.triple(t);
+		});
+		chunk = GraphFactory.createGraphMem();
+	}
+
+}
@@ -0,0 +1,285 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// An index of the measurements in the data, for questions like "all hake over 40 cm in division 7.g".
+// For each quality (Length, Weight, Age) the measurements are held sorted by value in primitive arrays, with the
+// species and division of each one's sample alongside as small integer codes, so a query is a binary search for
+// the range of values followed by a scan of just that range - no SPARQL and no string parsing.
+// The index is built from a graph in one pass and isn't updated as the graph changes, so build it again after a refresh.
+public class MeasurementIndex {
+
+	// The measurements of one quality, sorted by value
+	private static class Column {
+
+		double[] values = new double[1024];
+		int[] species = new int[1024];
+		int[] divisions = new int[1024];
+		Node[] observations = new Node[1024];
+		int size;
+
+		void add(double value, int speciesCode, int divisionCode, Node observation) {
+
+			if (size == values.length) {
+				int capacity = size * 2;
+				values = Arrays.copyOf(values, capacity);
+				species = Arrays.copyOf(species, capacity);
+				divisions = Arrays.copyOf(divisions, capacity);
+				observations = Arrays.copyOf(observations, capacity);
+			}
+			values[size] = value;
+			species[size] = speciesCode;
+			divisions[size] = divisionCode;
+			observations[size] = observation;
+			size++;
+		}
+
+		// Trim the arrays and sort them all by value
+		void sort() {
+
+			values = Arrays.copyOf(values, size);
+			species = Arrays.copyOf(species, size);
+			divisions = Arrays.copyOf(divisions, size);
+			observations = Arrays.copyOf(observations, size);
+			quickSort(0, size - 1);
+		}
+
+		private void quickSort(int low, int high) {
+
+			while (low < high) {
+				double pivot = values[(low + high) >>> 1];
+				int i = low;
+				int j = high;
+				while (i <= j) {
+					while (values[i] < pivot) i++;
+					while (values[j] > pivot) j--;
+					if (i <= j) swap(i++, j--);
+				}
+				// Recurse into the smaller half so the stack stays shallow
+				if (j - low < high - i) {
+					quickSort(low, j);
+					low = i;
+				} else {
+					quickSort(i, high);
+					high = j;
+				}
+			}
+		}
+
+		private void swap(int a, int b) {
+
+			double value = values[a];
+			values[a] = values[b];
+			values[b] = value;
+			int code = species[a];
+			species[a] = species[b];
+			species[b] = code;
+			code = divisions[a];
+			divisions[a] = divisions[b];
+			divisions[b] = code;
+			Node observation = observations[a];
+			observations[a] = observations[b];
+			observations[b] = observation;
+		}
+
+		// Index of the first value >= min
+		int lowerBound(double min) {
+
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[mid] < min) low = mid + 1;
+				else high = mid;
+			}
+			return low;
+		}
+
+		// Index of the first value > max
+		int upperBound(double max) {
+
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[mid] <= max) low = mid + 1;
+				else high = mid;
+			}
+			return low;
+		}
+	}
+
+	// Species and division names (e.g. 126484 and 7.g) are held as codes; 0 means not recorded
+	private static final int NONE = 0;
+
+	private final Map<String, Column> columns = new HashMap<String, Column>();
+	private final Map<String, Integer> speciesCodes = new HashMap<String, Integer>();
+	private final Map<String, Integer> divisionCodes = new HashMap<String, Integer>();
+	// Measurements whose values weren't numbers we could index
+	private int skipped;
+
+	private MeasurementIndex() {
+	}
+
+	// Index the measurements in graph, which were made from rows by mapping. The species and division are those of
+	// the AphiaID and ICES_Div links, and each quality is named by the end of its IRI e.g. Length for ak:Quality/Length
+	public static MeasurementIndex build(SampleMapping mapping, Graph graph) {
+
+		MeasurementIndex index = new MeasurementIndex();
+
+		Map<Node, String> qualities = new HashMap<Node, String>();
+		for (SampleMapping.Measurement measurement : mapping.measurements) {
+			String iri = measurement.quality.getURI();
+			qualities.put(measurement.quality, iri.substring(Math.max(iri.lastIndexOf('/'), iri.lastIndexOf('#')) + 1));
+		}
+		SampleMapping.Link species = mapping.getLink(SampleRowConverter.APHIA_ID);
+		SampleMapping.Link division = mapping.getLink(SampleRowConverter.ICES_DIV);
+
+		// Each sample has up to three observations so remember the species and division codes of the samples we've seen
+		Map<Node, int[]> sampleCodes = new HashMap<Node, int[]>();
+
+		ExtendedIterator<Triple> measurements = graph.find(Node.ANY, mapping.hasMeasurement, Node.ANY);
+		try {
+			while (measurements.hasNext()) {
+				Triple t = measurements.next();
+				Double value = valueOf(t.getObject());
+				if (value == null) {
+					index.skipped++;
+					continue;
+				}
+
+				Node observation = t.getSubject();
+				String quality = getQuality(graph, observation, mapping.hasQuality, qualities);
+				Node sample = getSample(graph, observation, mapping.hasObservation);
+				if (quality == null || sample == null) continue;
+
+				int[] codes = sampleCodes.computeIfAbsent(sample, s -> new int[] {
+						index.code(index.speciesCodes, getName(graph, s, species)),
+						index.code(index.divisionCodes, getName(graph, s, division)) });
+
+				index.columns.computeIfAbsent(quality, q -> new Column()).add(value, codes[0], codes[1], observation);
+			}
+		} finally {
+			measurements.close();
+		}
+
+		for (Column column : index.columns.values()) column.sort();
+		return index;
+	}
+
+	// The observations of a quality (Length, Weight or Age) with values from min to max inclusive, optionally
+	// only those whose sample is of a particular species (AphiaID) and/or from a particular division - pass null for any
+	public List<Node> find(String quality, double min, double max, String species, String division) {
+
+		List<Node> found = new ArrayList<Node>();
+		Column column = columns.get(quality);
+		if (column == null) return found;
+
+		// A species or division we've never seen can't match anything
+		int speciesCode = species == null ? NONE : speciesCodes.getOrDefault(species, -1);
+		int divisionCode = division == null ? NONE : divisionCodes.getOrDefault(division, -1);
+		if (speciesCode < 0 || divisionCode < 0) return found;
+
+		int end = column.upperBound(max);
+		for (int i = column.lowerBound(min); i < end; i++) {
+			if (speciesCode != NONE && column.species[i] != speciesCode) continue;
+			if (divisionCode != NONE && column.divisions[i] != divisionCode) continue;
+			found.add(column.observations[i]);
+		}
+		return found;
+	}
+
+	// Number of measurements indexed for a quality
+	public int size(String quality) {
+		Column column = columns.get(quality);
+		return column == null ? 0 : column.size;
+	}
+
+	// Number of measurements left out as their values weren't finite numbers
+	public int getSkipped() {
+		return skipped;
+	}
+
+	// The value of a measurement if it's a number typed as one, e.g. xsd:integer, xsd:decimal or xsd:double.
+	// Strings, badly formed numbers, NaN and INF are left out of the index rather than stopping it being built
+	static Double valueOf(Node node) {
+
+		if (!node.isLiteral() || !(node.getLiteralDatatype() instanceof XSDDatatype) || !node.getLiteral().isWellFormed()) return null;
+
+		Object value = node.getLiteralValue();
+		if (!(value instanceof Number)) return null;
+
+		double number = ((Number) value).doubleValue();
+		return Double.isNaN(number) || Double.isInfinite(number) ? null : number;
+	}
+
+	private int code(Map<String, Integer> codes, String name) {
+		return name == null ? NONE : codes.computeIfAbsent(name, n -> codes.size() + 1);
+	}
+
+	private static Node getSample(Graph graph, Node observation, Node hasObservation) {
+
+		ExtendedIterator<Triple> it = graph.find(Node.ANY, hasObservation, observation);
+		try {
+			return it.hasNext() ? it.next().getSubject() : null;
+		} finally {
+			it.close();
+		}
+	}
+
+	// The name of the quality an observation is of, if it's one the mapping measures
+	private static String getQuality(Graph graph, Node observation, Node hasQuality, Map<Node, String> qualities) {
+
+		ExtendedIterator<Triple> it = graph.find(observation, hasQuality, Node.ANY);
+		try {
+			while (it.hasNext()) {
+				String name = qualities.get(it.next().getObject());
+				if (name != null) return name;
+			}
+			return null;
+		} finally {
+			it.close();
+		}
+	}
+
+	// The code of an individual the mapping linked the sample to, e.g. 127023 for ak:Species/127023
+	private static String getName(Graph graph, Node sample, SampleMapping.Link link) {
+
+		if (link == null) return null;
+		ExtendedIterator<Triple> it = graph.find(sample, link.property, Node.ANY);
+		try {
+			while (it.hasNext()) {
+				Node value = it.next().getObject();
+				String name = value.isURI() ? link.iri.match(value.getURI()) : null;
+				if (name != null) return name;
+			}
+			return null;
+		} finally {
+			it.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Column> column : columns.entrySet()) {
+			if (sb.length() > 0) sb.append(", ");
+			sb.append(column.getValue().size).append(" ").append(column.getKey());
+		}
+		if (sb.length() == 0) sb.append("no");
+		sb.append(" measurements");
+		if (skipped > 0) sb.append(" (").append(skipped).append(" that weren't numbers left out)");
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,238 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.atlas.json.JSON;
+import org.apache.jena.atlas.json.JsonArray;
+import org.apache.jena.atlas.json.JsonNumber;
+import org.apache.jena.atlas.json.JsonObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+// Counters, gauges and timers showing where a load or a query spends its time. They can be written out as
+// Prometheus text (for scraping or the node exporter's textfile collector) or as JSON.
+// A metric can have labels, given as name/value pairs, e.g. counter("rows_rejected_total", "...", "reason", "bad_date").
+// Asking for a metric that already exists returns the existing one, and everything here is thread safe.
+public class Metrics {
+
+	public static final class Counter {
+
+		private final LongAdder value = new LongAdder();
+
+		public void inc() {
+			value.increment();
+		}
+
+		public void add(long n) {
+			value.add(n);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+	}
+
+	// Durations, with a histogram of how many took no longer than each bucket's number of seconds
+	public static final class Timer {
+
+		private static final double[] BUCKETS = { 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+		private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+
+		Timer() {
+			for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+		}
+
+		public void record(long durationNanos) {
+
+			count.increment();
+			nanos.add(durationNanos);
+
+			double seconds = durationNanos / 1e9;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				if (seconds <= BUCKETS[i]) {
+					buckets[i].increment();
+					break;
+				}
+			}
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getSeconds() {
+			return nanos.sum() / 1e9;
+		}
+	}
+
+	// A metric along with its labels
+	private static final class Labelled {
+
+		final String[] labels;
+		final Object metric;
+
+		Labelled(String[] labels, Object metric) {
+			this.labels = labels;
+			this.metric = metric;
+		}
+	}
+
+	private static final class Family {
+
+		final String type;
+		final String help;
+		// Keyed by the labels in Prometheus form e.g. query="samples" - "" if there are none
+		final Map<String, Labelled> metrics = new ConcurrentSkipListMap<String, Labelled>();
+
+		Family(String type, String help) {
+			this.type = type;
+			this.help = help;
+		}
+	}
+
+	private final Map<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter) family(name, "counter", help).metrics.computeIfAbsent(labels(labels), key -> new Labelled(labels, new Counter())).metric;
+	}
+
+	public Timer timer(String name, String help, String... labels) {
+		return (Timer) family(name, "histogram", help).metrics.computeIfAbsent(labels(labels), key -> new Labelled(labels, new Timer())).metric;
+	}
+
+	// A value that is read whenever the metrics are written out
+	public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+		family(name, "gauge", help).metrics.put(labels(labels), new Labelled(labels, value));
+	}
+
+	private Family family(String name, String type, String help) {
+
+		Family family = families.computeIfAbsent(name, key -> new Family(type, help));
+		if (!family.type.equals(type)) throw new IllegalArgumentException(name + " is already a " + family.type);
+		return family;
+	}
+
+	private static String labels(String[] labels) {
+
+		if (labels.length % 2 != 0) throw new IllegalArgumentException("Labels must be name/value pairs");
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (sb.length() > 0) sb.append(',');
+			sb.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+		}
+		return sb.toString();
+	}
+
+	// Write the metrics to a file - as JSON if its name ends with .json, otherwise as Prometheus text
+	public void save(File file) throws IOException {
+
+		try (OutputStream out = new FileOutputStream(file)) {
+			if (file.getName().endsWith(".json")) writeJson(out);
+			else writePrometheus(out);
+		}
+	}
+
+	public void writePrometheus(OutputStream out) throws IOException {
+
+		Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+
+		for (Map.Entry<String, Family> f : families.entrySet()) {
+			String name = f.getKey();
+			Family family = f.getValue();
+			writer.write("# HELP " + name + " " + family.help + "\n");
+			writer.write("# TYPE " + name + " " + family.type + "\n");
+
+			for (Map.Entry<String, Labelled> m : family.metrics.entrySet()) {
+				String labels = m.getKey();
+				Object metric = m.getValue().metric;
+
+				if (metric instanceof Timer) {
+					Timer timer = (Timer) metric;
+					long cumulative = 0;
+					for (int i = 0; i < Timer.BUCKETS.length; i++) {
+						cumulative += timer.buckets[i].sum();
+						writer.write(name + "_bucket{" + withLabel(labels, "le=\"" + number(Timer.BUCKETS[i]) + "\"") + "} " + cumulative + "\n");
+					}
+					writer.write(name + "_bucket{" + withLabel(labels, "le=\"+Inf\"") + "} " + timer.getCount() + "\n");
+					writer.write(name + "_sum" + braces(labels) + " " + number(timer.getSeconds()) + "\n");
+					writer.write(name + "_count" + braces(labels) + " " + timer.getCount() + "\n");
+				} else {
+					writer.write(name + braces(labels) + " " + number(valueOf(metric)) + "\n");
+				}
+			}
+		}
+		writer.flush();
+	}
+
+	// The same metrics as JSON: { name: { "type", "help", "values": [ { "labels", "value" (or "count", "sum" and "buckets") } ] } }.
+	// Unlike the Prometheus text, each bucket only counts the durations that didn't fit in the one before
+	public void writeJson(OutputStream out) {
+
+		JsonObject json = new JsonObject();
+
+		for (Map.Entry<String, Family> f : families.entrySet()) {
+			Family family = f.getValue();
+			JsonObject jsonFamily = new JsonObject();
+			jsonFamily.put("type", family.type);
+			jsonFamily.put("help", family.help);
+
+			JsonArray values = new JsonArray();
+			for (Labelled m : family.metrics.values()) {
+				JsonObject value = new JsonObject();
+				JsonObject labels = new JsonObject();
+				for (int i = 0; i < m.labels.length; i += 2) labels.put(m.labels[i], m.labels[i + 1]);
+				value.put("labels", labels);
+
+				Object metric = m.metric;
+				if (metric instanceof Timer) {
+					Timer timer = (Timer) metric;
+					value.put("count", timer.getCount());
+					value.put("sum", JsonNumber.value(timer.getSeconds()));
+					JsonObject buckets = new JsonObject();
+					for (int i = 0; i < Timer.BUCKETS.length; i++) buckets.put(number(Timer.BUCKETS[i]), timer.buckets[i].sum());
+					value.put("buckets", buckets);
+				} else if (metric instanceof Counter) {
+					value.put("value", ((Counter) metric).get());
+				} else {
+					value.put("value", JsonNumber.value(valueOf(metric)));
+				}
+				values.add(value);
+			}
+			jsonFamily.put("values", values);
+			json.put(f.getKey(), jsonFamily);
+		}
+
+		JSON.write(out, json);
+	}
+
+	private static double valueOf(Object metric) {
+		return metric instanceof Counter ? ((Counter) metric).get() : ((DoubleSupplier) metric).getAsDouble();
+	}
+
+	private static String withLabel(String labels, String label) {
+		return labels.isEmpty() ? label : labels + "," + label;
+	}
+
+	private static String braces(String labels) {
+		return labels.isEmpty() ? "" : "{" + labels + "}";
+	}
+
+	private static String number(double value) {
+		return value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15
+				? String.valueOf((long) value) : String.format(Locale.ROOT, "%s", value);
+	}
+
+}
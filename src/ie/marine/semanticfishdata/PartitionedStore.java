@@ -0,0 +1,498 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.compose.MultiUnion;
+import org.apache.jena.graph.compose.Union;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.sparql.core.TriplePath;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.graph.GraphReadOnly;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.ElementNamedGraph;
+import org.apache.jena.sparql.syntax.ElementPathBlock;
+import org.apache.jena.sparql.syntax.ElementVisitorBase;
+import org.apache.jena.sparql.syntax.ElementWalker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+// The data held in memory as one named graph per partition (see Partitioning) rather than one big graph, so
+// that partitions can be loaded, have their inferences materialized, and be saved independently and in parallel,
+// and a refresh can replace some partitions while leaving the rest alone. A shared graph holds what doesn't belong
+// to any one partition: the ontology with its inferences, and the sampling summaries.
+//
+// Queries see the shared graph and every partition as the default graph, with each partition also available as a
+// named graph. A query that binds ?year, ?division or ?area, or has a top level triple pattern linking samples to
+// a given division (ak:hasDivision in the default mapping), is only run over the partitions that could hold its samples. Those variables must
+// restrict every sample the query returns (e.g. FILTER(YEAR(?date) = ?year)) - the partitions are only there to
+// save searching, not to do the filtering.
+//
+// The inferences for our schema only involve each sample's own triples, so each partition's are worked out
+// from the schema plus that partition alone.
+//
+// Loading never changes the graphs being queried: the new partitions and a new shared graph are built alongside
+// them and swapped in together. Saving writes to a new directory that replaces the old one once it's complete.
+public class PartitionedStore {
+
+	private final Partitioning partitioning;
+	private final Graph schema;
+	private final Graph schemaClosure;
+	// The division link of the mapping the rows are converted with, or null if it doesn't link divisions
+	private final SampleMapping.Link division;
+	private final int threads;
+	private final Supplier<Graph> newGraph;
+
+	// Replaced as a whole when partitions change, so queries that have started keep a consistent view
+	private volatile Graph shared;
+	private volatile Map<String, Graph> partitions = Collections.emptyMap();
+	private volatile Graph union;
+	private volatile Dataset dataset;
+
+	// A partition being built from rows - only one thread converts into it at a time
+	private static final class Builder {
+
+		final Graph graph;
+		final SampleRowConverter converter;
+		final StreamRDF out;
+
+		Builder(Graph graph, SampleMapping mapping, int internCacheSize, IngestMetrics metrics) {
+			this.graph = graph;
+			converter = new SampleRowConverter(mapping, internCacheSize);
+			out = metrics.track(StreamRDFLib.graph(graph));
+		}
+	}
+
+	// mapping is the one rows are converted with, and schema the ontology itself. threads is how many partitions are
+	// converted, materialized, saved or read at once
+	public PartitionedStore(SampleMapping mapping, Partitioning partitioning, Graph schema, int threads) {
+		this(mapping, partitioning, schema, threads, GraphFactory::createGraphMem);
+	}
+
+	// Each partition is held in a graph from newGraph, e.g. a CompactGraph
+	public PartitionedStore(SampleMapping mapping, Partitioning partitioning, Graph schema, int threads, Supplier<Graph> newGraph) {
+
+		if (threads < 1) throw new IllegalArgumentException("Need at least one thread");
+
+		this.partitioning = partitioning;
+		this.schema = schema;
+		this.threads = threads;
+		this.newGraph = newGraph;
+		division = mapping.getLink(SampleRowConverter.ICES_DIV);
+
+		// The schema's own inferences are the same for every partition so they are kept once, in the shared graph
+		schemaClosure = InferenceMaterializer.materialize(schema);
+		setPartitions(partitions, newSharedGraph());
+	}
+
+	// A shared graph holding just the schema and its inferences
+	private Graph newSharedGraph() {
+
+		Graph graph = GraphFactory.createGraphMem();
+		GraphUtil.addInto(graph, schemaClosure);
+		return graph;
+	}
+
+	// A read-only copy of the store as it is now, for queries that all need to see the same data. The copy
+	// shares the graphs rather than copying them, and keeps them even when this store replaces its partitions
+	public PartitionedStore snapshot() {
+		return new PartitionedStore(this);
+	}
+
+	private PartitionedStore(PartitionedStore store) {
+
+		partitioning = store.partitioning;
+		schema = store.schema;
+		schemaClosure = store.schemaClosure;
+		threads = store.threads;
+		newGraph = store.newGraph;
+		division = store.division;
+
+		Map<String, Graph> readOnly = new HashMap<String, Graph>();
+		Graph sharedGraph;
+		synchronized (store) {
+			for (Map.Entry<String, Graph> partition : store.partitions.entrySet()) readOnly.put(partition.getKey(), new GraphReadOnly(partition.getValue()));
+			sharedGraph = new GraphReadOnly(store.shared);
+		}
+		setPartitions(readOnly, sharedGraph);
+	}
+
+	public Partitioning getPartitioning() {
+		return partitioning;
+	}
+
+	// The ontology and sampling summaries. Anything added to the union graph goes in here, though it's replaced
+	// whenever the store loads
+	public Graph getSharedGraph() {
+		return shared;
+	}
+
+	public Set<String> getKeys() {
+		return partitions.keySet();
+	}
+
+	public Graph getPartition(String key) {
+		return partitions.get(key);
+	}
+
+	// The shared graph and all the partitions as one graph
+	public Graph getUnionGraph() {
+		return union;
+	}
+
+	// The union graph as the default graph, and each partition as a named graph
+	public Dataset getDataset() {
+		return dataset;
+	}
+
+	private synchronized void setPartitions(Map<String, Graph> newPartitions, Graph newShared) {
+
+		Map<String, Graph> sorted = Collections.unmodifiableMap(new TreeMap<String, Graph>(newPartitions));
+		MultiUnion newUnion = union(newShared, sorted.values());
+
+		DatasetGraph dsg = DatasetGraphFactory.create(newUnion);
+		for (Map.Entry<String, Graph> partition : sorted.entrySet()) dsg.addGraph(partitioning.getGraphName(partition.getKey()), partition.getValue());
+
+		shared = newShared;
+		partitions = sorted;
+		union = newUnion;
+		dataset = DatasetFactory.wrap(dsg);
+	}
+
+	private static MultiUnion union(Graph sharedGraph, Iterable<Graph> graphs) {
+
+		MultiUnion newUnion = new MultiUnion();
+		newUnion.addGraph(sharedGraph);
+		newUnion.setBaseGraph(sharedGraph);
+		for (Graph graph : graphs) newUnion.addGraph(graph);
+		return newUnion;
+	}
+
+	// Read rows from source, convert each one into its partition, and work out the partitions' inferences.
+	// Once everything is done the new partitions replace those in keys - or all the partitions if keys is null -
+	// so if anything fails no partition is changed. Rows are passed to the converters batchSize at a time.
+	// The shared graph is replaced along with them by a new one holding the schema, to which addShared adds
+	// anything else it should hold, such as the sampling summaries. Returns the number of rows read
+	public int load(RowSource source, Set<String> keys, SampleMapping mapping, int batchSize, int internCacheSize, IngestMetrics metrics,
+			Consumer<Graph> addShared) throws Exception {
+
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		// Stop the reader getting too far ahead of the converters
+		Semaphore queued = new Semaphore(threads * 2);
+
+		Map<String, Builder> builders = new HashMap<String, Builder>();
+		Map<String, List<String[]>> batches = new HashMap<String, List<String[]>>();
+		List<Future<?>> pending = new ArrayList<Future<?>>();
+		int numberOfRecordsProcessed = 0;
+
+		try {
+			int rowLength = mapping.getColumns().length;
+			String[] row = new String[rowLength];
+
+			while (source.next(row)) {
+				String key = partitioning.getKey(row);
+				Builder builder = builders.computeIfAbsent(key, k -> new Builder(newGraph.get(), mapping, internCacheSize, metrics));
+
+				List<String[]> batch = batches.computeIfAbsent(key, k -> new ArrayList<String[]>(batchSize));
+				batch.add(row);
+				row = new String[rowLength];
+
+				if (batch.size() == batchSize) {
+					queued.acquire();
+					pending.add(workers.submit(() -> convert(builder, batch, metrics, queued)));
+					batches.remove(key);
+				}
+				numberOfRecordsProcessed++;
+			}
+
+			for (Map.Entry<String, List<String[]>> batch : batches.entrySet()) {
+				Builder builder = builders.get(batch.getKey());
+				queued.acquire();
+				pending.add(workers.submit(() -> convert(builder, batch.getValue(), metrics, queued)));
+			}
+			for (Future<?> result : pending) result.get();
+
+			// Now each partition is complete work out its inferences
+			pending.clear();
+			for (Builder builder : builders.values()) pending.add(workers.submit(() -> addInferences(builder.graph)));
+			for (Future<?> result : pending) result.get();
+
+		} catch (ExecutionException ex) {
+			throw new Exception("Partition thread failed: " + ex.getCause().getMessage(), ex.getCause());
+		} finally {
+			workers.shutdownNow();
+		}
+
+		Graph newShared = newSharedGraph();
+		addShared.accept(newShared);
+
+		synchronized (this) {
+			Map<String, Graph> updated = new HashMap<String, Graph>();
+			if (keys != null) {
+				updated.putAll(partitions);
+				updated.keySet().removeAll(keys);
+			}
+			for (Map.Entry<String, Builder> builder : builders.entrySet()) updated.put(builder.getKey(), builder.getValue().graph);
+			setPartitions(updated, newShared);
+		}
+
+		return numberOfRecordsProcessed;
+	}
+
+	private static Void convert(Builder builder, List<String[]> batch, IngestMetrics metrics, Semaphore queued) {
+
+		try {
+			synchronized (builder) {
+				for (String[] row : batch) {
+					long start = System.nanoTime();
+					try {
+						builder.converter.convert(row, builder.out);
+						metrics.accepted(row);
+					} catch (Exception ex) {
+						metrics.rejected(ex);
+					}
+					metrics.converted(System.nanoTime() - start);
+				}
+			}
+		} finally {
+			queued.release();
+		}
+		return null;
+	}
+
+	// Add what the reasoner entails from the schema plus this partition, apart from the schema's own inferences.
+	// Those are compared with the closure of the schema we parsed rather than the shared graph, as the shared graph
+	// may have been read back from file with different blank nodes
+	private Void addInferences(Graph partition) {
+
+		Graph closure = InferenceMaterializer.materialize(new Union(schema, partition));
+		closure.find(Node.ANY, Node.ANY, Node.ANY).forEachRemaining(t -> {
+			if (!schemaClosure.contains(t)) partition.add(t);
+		});
+		return null;
+	}
+
+	// Save the shared graph and each partition to its own file in directory, replacing whatever was saved there before.
+	// The files are written to a directory alongside it which takes its place once they're all written, so if saving
+	// fails the last complete save is still there to load
+	public void save(File directory, SnapshotFormat format) throws IOException {
+
+		File saving = new File(directory.getPath() + ".saving");
+		deleteDirectory(saving);
+		if (!saving.mkdirs()) throw new IOException("Can't create " + saving);
+
+		Map<String, Graph> toSave;
+		Graph sharedToSave;
+		synchronized (this) {
+			toSave = partitions;
+			sharedToSave = shared;
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		tasks.add(() -> write(format, sharedToSave, new File(saving, "_shared" + format.getExtension())));
+		for (Map.Entry<String, Graph> partition : toSave.entrySet()) {
+			tasks.add(() -> write(format, partition.getValue(), new File(saving, partition.getKey() + format.getExtension())));
+		}
+		try {
+			runAll(tasks);
+		} catch (IOException ex) {
+			deleteDirectory(saving);
+			throw ex;
+		}
+
+		File old = new File(directory.getPath() + ".old");
+		deleteDirectory(old);
+		if (directory.exists()) Files.move(directory.toPath(), old.toPath());
+		Files.move(saving.toPath(), directory.toPath());
+		deleteDirectory(old);
+	}
+
+	private static void deleteDirectory(File directory) throws IOException {
+
+		if (!directory.exists()) return;
+		try (Stream<Path> paths = Files.walk(directory.toPath())) {
+			for (Path path : (Iterable<Path>) paths.sorted(Collections.reverseOrder())::iterator) Files.delete(path);
+		}
+	}
+
+	private static Void write(SnapshotFormat format, Graph graph, File file) throws IOException {
+		format.write(graph, file);
+		return null;
+	}
+
+	private static Void read(SnapshotFormat format, File file, Graph graph) throws IOException {
+		format.read(file, graph);
+		return null;
+	}
+
+	// Replace everything in the store with what save wrote to directory
+	public void load(File directory, SnapshotFormat format) throws IOException {
+
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(format.getExtension()));
+		if (files == null) throw new IOException("Can't read partitions from " + directory);
+
+		Map<String, Graph> loaded = new HashMap<String, Graph>();
+		// The saved shared graph replaces ours rather than being read on top of it, which would duplicate the schema's blank nodes
+		Graph loadedShared = GraphFactory.createGraphMem();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (File file : files) {
+			String key = file.getName().substring(0, file.getName().length() - format.getExtension().length());
+			Graph graph = "_shared".equals(key) ? loadedShared : newGraph.get();
+			if (graph != loadedShared) loaded.put(key, graph);
+			tasks.add(() -> read(format, file, graph));
+		}
+		runAll(tasks);
+
+		setPartitions(loaded, loadedShared);
+	}
+
+	private void runAll(List<Callable<Void>> tasks) throws IOException {
+
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		try {
+			for (Future<Void> result : workers.invokeAll(tasks)) result.get();
+		} catch (ExecutionException ex) {
+			throw new IOException(ex.getCause().getMessage(), ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", ex);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	// The dataset to run a query over - just the partitions that could hold its samples if it constrains any of
+	// the dimensions we partition by, otherwise everything. Queries that name their own graphs always see everything
+	public Dataset select(Query query, QuerySolution bindings) {
+
+		// Take the graphs as they are now, so a load swapping in new ones part way through can't mix old and new
+		Dataset all;
+		Graph sharedGraph;
+		Map<String, Graph> current;
+		synchronized (this) {
+			all = dataset;
+			sharedGraph = shared;
+			current = partitions;
+		}
+		List<Graph> matching = getMatching(query, bindings, current);
+		return matching == null ? all : DatasetFactory.wrap(DatasetGraphFactory.create(union(sharedGraph, matching)));
+	}
+
+	// The number of partitions a query would be run over
+	public int count(Query query, QuerySolution bindings) {
+
+		Map<String, Graph> current = partitions;
+		List<Graph> matching = getMatching(query, bindings, current);
+		return matching == null ? current.size() : matching.size();
+	}
+
+	// The partitions that could hold the query's samples, or null if it could be any of them
+	private List<Graph> getMatching(Query query, QuerySolution bindings, Map<String, Graph> partitions) {
+
+		if (query.hasDatasetDescription() || usesNamedGraphs(query)) return null;
+
+		Map<Partitioning.Dimension, String> constraints = getConstraints(query, bindings);
+		if (constraints.isEmpty()) return null;
+
+		List<Graph> matching = new ArrayList<Graph>();
+		for (Map.Entry<String, Graph> partition : partitions.entrySet()) {
+			if (partitioning.matches(partition.getKey(), constraints)) matching.add(partition.getValue());
+		}
+		return matching;
+	}
+
+	private static boolean usesNamedGraphs(Query query) {
+
+		boolean[] found = { false };
+		ElementWalker.walk(query.getQueryPattern(), new ElementVisitorBase() {
+			@Override
+			public void visit(ElementNamedGraph el) {
+				found[0] = true;
+			}
+		});
+		return found[0];
+	}
+
+	// The values the query's variables (or its top level division link patterns) give to our dimensions
+	private Map<Partitioning.Dimension, String> getConstraints(Query query, QuerySolution bindings) {
+
+		Map<Partitioning.Dimension, String> constraints = new EnumMap<Partitioning.Dimension, String>(Partitioning.Dimension.class);
+
+		if (bindings != null) {
+			for (Partitioning.Dimension dimension : Partitioning.Dimension.values()) {
+				RDFNode value = bindings.get(dimension.getVariable());
+				if (value != null) constraints.put(dimension, valueOf(value.asNode()));
+			}
+		}
+
+		// Only patterns every solution has to match - not those in an OPTIONAL, UNION etc
+		Element pattern = query.getQueryPattern();
+		if (pattern instanceof ElementGroup) {
+			for (Element element : ((ElementGroup) pattern).getElements()) {
+				if (!(element instanceof ElementPathBlock)) continue;
+				for (TriplePath path : ((ElementPathBlock) element).getPattern().getList()) {
+					Triple triple = path.asTriple();
+					if (triple == null || division == null || !division.property.equals(triple.getPredicate())) continue;
+
+					Node value = triple.getObject();
+					if (value.isVariable() && bindings != null && bindings.contains(value.getName())) value = bindings.get(value.getName()).asNode();
+					if (value.isConcrete()) constraints.put(Partitioning.Dimension.DIVISION, valueOf(value));
+				}
+			}
+		}
+		return constraints;
+	}
+
+	// A dimension's value from a literal e.g. 2019 or "7.g", or from a division IRI e.g. ak:ICESDivision/7.g - or
+	// failing that the end of the IRI
+	private String valueOf(Node node) {
+
+		if (node.isLiteral()) return node.getLiteralLexicalForm();
+		if (node.isURI()) {
+			String uri = node.getURI();
+			String code = division == null ? null : division.iri.match(uri);
+			if (code != null) return code;
+			return uri.substring(Math.max(uri.lastIndexOf('/'), uri.lastIndexOf('#')) + 1);
+		}
+		return node.toString();
+	}
+
+	@Override
+	public String toString() {
+
+		long triples = 0;
+		for (Graph graph : partitions.values()) triples += graph.size();
+		return partitions.size() + " partitions by " + partitioning + " holding " + triples + " triples, plus " + shared.size() + " shared triples";
+	}
+
+}
@@ -0,0 +1,138 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// How the samples are split into partitions - by the year they were landed, their ICES division, their
+// top level ICES area (e.g. 7 for division 7.g), or a combination of those. Each partition has a key made
+// of its values joined by "_" (e.g. 2019_7.g when partitioning by year and division) and is held in a
+// named graph whose name ends with that key.
+public class Partitioning {
+
+	public enum Dimension {
+		YEAR, DIVISION, AREA;
+
+		public static Dimension forName(String name) {
+			return valueOf(name.trim().toUpperCase());
+		}
+
+		// The name of the query variable that constrains this dimension e.g. ?year
+		public String getVariable() {
+			return name().toLowerCase();
+		}
+	}
+
+	public static final String GRAPH_NS = "http://www.marine.ie/SemanticFishData/partition/";
+
+	// Used in a key when a row has no value for a dimension
+	private static final String UNKNOWN = "unknown";
+
+	private final List<Dimension> dimensions;
+
+	public Partitioning(List<Dimension> dimensions) {
+
+		if (dimensions.isEmpty()) throw new IllegalArgumentException("Need at least one dimension to partition by");
+		if (dimensions.contains(Dimension.DIVISION) && dimensions.contains(Dimension.AREA)) {
+			throw new IllegalArgumentException("Partition by division or by area, not both - a division is always in the same area");
+		}
+		this.dimensions = Collections.unmodifiableList(new ArrayList<Dimension>(dimensions));
+	}
+
+	// Read the dimensions from the config file e.g. "year,division"
+	public static Partitioning forName(String names) {
+
+		List<Dimension> dimensions = new ArrayList<Dimension>();
+		for (String name : names.split(",")) {
+			if (!name.trim().isEmpty()) dimensions.add(Dimension.forName(name));
+		}
+		return new Partitioning(dimensions);
+	}
+
+	public List<Dimension> getDimensions() {
+		return dimensions;
+	}
+
+	// The key of the partition a row (holding SampleRowConverter.COLUMNS) belongs in
+	public String getKey(String[] row) {
+
+		StringBuilder key = new StringBuilder();
+		for (Dimension dimension : dimensions) {
+			if (key.length() > 0) key.append('_');
+			key.append(valueOf(row, dimension));
+		}
+		return key.toString();
+	}
+
+	private static String valueOf(String[] row, Dimension dimension) {
+
+		switch (dimension) {
+		case YEAR:
+			String date = row[SampleRowConverter.SAMPLE_DATE];
+			return date != null && date.trim().length() >= 4 ? clean(date.trim().substring(0, 4)) : UNKNOWN;
+		case DIVISION:
+			return clean(row[SampleRowConverter.ICES_DIV]);
+		default:
+			return areaOf(clean(row[SampleRowConverter.ICES_DIV]));
+		}
+	}
+
+	// A value as it appears in a key - anything that wouldn't be safe in a graph name or a file name becomes "-"
+	static String clean(String value) {
+
+		if (value == null || value.trim().isEmpty()) return UNKNOWN;
+		return value.trim().replaceAll("[^A-Za-z0-9.\\-]", "-");
+	}
+
+	// The top level ICES area of a division e.g. 7 for 7.g
+	static String areaOf(String division) {
+
+		int dot = division.indexOf('.');
+		return dot > 0 ? division.substring(0, dot) : division;
+	}
+
+	public Node getGraphName(String key) {
+		return NodeFactory.createURI(GRAPH_NS + key);
+	}
+
+	// The key of a partition's graph, or null if it isn't one of ours
+	public String getKey(Node graphName) {
+
+		if (!graphName.isURI() || !graphName.getURI().startsWith(GRAPH_NS)) return null;
+		return graphName.getURI().substring(GRAPH_NS.length());
+	}
+
+	// Whether the partition with this key could hold samples matching all of the constraints. A constraint on a
+	// dimension we don't partition by doesn't rule anything out, except that a division's area is known
+	public boolean matches(String key, Map<Dimension, String> constraints) {
+
+		String[] values = key.split("_", -1);
+		if (values.length != dimensions.size()) return true;
+
+		for (Map.Entry<Dimension, String> constraint : constraints.entrySet()) {
+			String wanted = clean(constraint.getValue());
+
+			for (int i = 0; i < values.length; i++) {
+				Dimension dimension = dimensions.get(i);
+				if (dimension == constraint.getKey()) {
+					if (!values[i].equals(wanted)) return false;
+				} else if (dimension == Dimension.AREA && constraint.getKey() == Dimension.DIVISION) {
+					if (!values[i].equals(areaOf(wanted))) return false;
+				} else if (dimension == Dimension.DIVISION && constraint.getKey() == Dimension.AREA) {
+					if (!areaOf(values[i]).equals(wanted)) return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return dimensions.toString().toLowerCase();
+	}
+
+}
@@ -0,0 +1,313 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryCancelledException;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.riot.ResultSetMgr;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.resultset.ResultSetWrapper;
+import org.apache.jena.system.Txn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Runs named SPARQL queries against a dataset. Each query is parsed once when it's registered and kept,
+// so running it again (with different values bound to its variables if needed) doesn't parse it again.
+// Every query has a timeout and a row limit, and the results are written out as they are read rather than
+// being collected first. Queries are run inside a read transaction so this works for TDB2 stores and
+// in-memory models alike, and a QueryService can be used by several threads at once.
+// How long each query takes, how many rows it returns and how often it times out are kept in its Metrics.
+// When the data is partitioned each query is run over just the partitions it could need (see PartitionedStore).
+public class QueryService {
+
+	public enum ResultFormat {
+		TEXT, CSV, TSV, JSON;
+
+		public static ResultFormat forName(String name) {
+			return valueOf(name.trim().toUpperCase());
+		}
+	}
+
+	// A parsed query plus the limits to apply when running it
+	public static class PreparedQuery {
+
+		private final String name;
+		private final Query query;
+		private final long timeoutMillis;
+
+		PreparedQuery(String name, Query query, long timeoutMillis) {
+			this.name = name;
+			this.query = query;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Query getQuery() {
+			return query;
+		}
+
+		public long getTimeoutMillis() {
+			return timeoutMillis;
+		}
+	}
+
+	// What running a query wrote out
+	public static class Written {
+
+		private final long rows;
+		private final boolean limited;
+
+		Written(long rows, boolean limited) {
+			this.rows = rows;
+			this.limited = limited;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		// True if the query had more rows than it was allowed to write
+		public boolean isLimited() {
+			return limited;
+		}
+	}
+
+	// Stops after rowLimit rows (if it's more than 0), and can tell whether the results had another one after those
+	private static class LimitedResultSet extends ResultSetWrapper {
+
+		private final long rowLimit;
+		private long rows;
+
+		LimitedResultSet(ResultSet results, long rowLimit) {
+			super(results);
+			this.rowLimit = rowLimit;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return (rowLimit <= 0 || rows < rowLimit) && get().hasNext();
+		}
+
+		@Override
+		public QuerySolution next() {
+			rows++;
+			return get().next();
+		}
+
+		@Override
+		public QuerySolution nextSolution() {
+			rows++;
+			return get().nextSolution();
+		}
+
+		@Override
+		public Binding nextBinding() {
+			rows++;
+			return get().nextBinding();
+		}
+
+		@Override
+		public int getRowNumber() {
+			return (int) rows;
+		}
+
+		boolean isLimited() {
+			return rowLimit > 0 && rows >= rowLimit && get().hasNext();
+		}
+	}
+
+	private final Dataset dataset;
+	private final String prefixes;
+	private final long defaultTimeoutMillis;
+	private final long defaultRowLimit;
+	private final Metrics metrics;
+	// Null unless the data is partitioned
+	private PartitionedStore partitions;
+
+	private final ConcurrentMap<String, PreparedQuery> queries = new ConcurrentHashMap<String, PreparedQuery>();
+
+	// prefixes is put in front of every query registered. A timeout or row limit of 0 or less means no limit
+	public QueryService(Dataset dataset, String prefixes, long defaultTimeoutMillis, long defaultRowLimit) {
+		this(dataset, prefixes, defaultTimeoutMillis, defaultRowLimit, new Metrics());
+	}
+
+	public QueryService(Dataset dataset, String prefixes, long defaultTimeoutMillis, long defaultRowLimit, Metrics metrics) {
+		this.dataset = dataset;
+		this.prefixes = prefixes == null ? "" : prefixes;
+		this.defaultTimeoutMillis = defaultTimeoutMillis;
+		this.defaultRowLimit = defaultRowLimit;
+		this.metrics = metrics;
+	}
+
+	public Dataset getDataset() {
+		return partitions == null ? dataset : partitions.getDataset();
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public long getDefaultTimeoutMillis() {
+		return defaultTimeoutMillis;
+	}
+
+	// A QueryService for another dataset with the same queries, limits, prefixes and metrics, without parsing the queries again.
+	// Used to swap a freshly loaded dataset in behind anything that's running queries
+	public QueryService withDataset(Dataset newDataset) {
+
+		QueryService service = new QueryService(newDataset, prefixes, defaultTimeoutMillis, defaultRowLimit, metrics);
+		service.queries.putAll(queries);
+		return service;
+	}
+
+	// A QueryService over a partitioned store with the same queries, limits, prefixes and metrics. The store can
+	// replace its partitions without the QueryService having to be swapped
+	public QueryService withPartitions(PartitionedStore store) {
+
+		QueryService service = withDataset(store.getDataset());
+		service.partitions = store;
+		return service;
+	}
+
+	// Parse a query and keep it under name, using the default timeout and row limit
+	public PreparedQuery register(String name, String queryString) {
+		return register(name, queryString, defaultTimeoutMillis, defaultRowLimit);
+	}
+
+	// Parse a query and keep it under name
+	public PreparedQuery register(String name, String queryString, long timeoutMillis, long rowLimit) {
+
+		PreparedQuery prepared = prepare(name, queryString, timeoutMillis, rowLimit);
+		queries.put(name, prepared);
+		return prepared;
+	}
+
+	// Parse a one-off query, using the default timeout and row limit, without keeping it
+	public PreparedQuery prepare(String queryString) {
+		return prepare("query", queryString, defaultTimeoutMillis, defaultRowLimit);
+	}
+
+	// Parse a query under name, using the default timeout and row limit, without keeping it
+	public PreparedQuery prepare(String name, String queryString) {
+		return prepare(name, queryString, defaultTimeoutMillis, defaultRowLimit);
+	}
+
+	// Parse a query. The row limit is applied to the parsed query, so it only replaces a LIMIT in the query
+	// itself if it is smaller
+	public PreparedQuery prepare(String name, String queryString, long timeoutMillis, long rowLimit) {
+
+		Query query = QueryFactory.create(prefixes + queryString);
+		if (!query.isSelectType()) throw new IllegalArgumentException("Query " + name + " is not a SELECT query");
+
+		if (rowLimit > 0 && (!query.hasLimit() || query.getLimit() > rowLimit)) query.setLimit(rowLimit);
+
+		return new PreparedQuery(name, query, timeoutMillis);
+	}
+
+	// Register every .rq file in a directory, each named after its file (e.g. samplesOfSpecies.rq is samplesOfSpecies).
+	// Returns the number of queries registered
+	public int registerAll(File directory) throws IOException {
+
+		File[] files = directory.listFiles((dir, fileName) -> fileName.endsWith(".rq"));
+		if (files == null) throw new IOException("Can't read queries from " + directory);
+
+		for (File file : files) {
+			String name = file.getName().substring(0, file.getName().length() - ".rq".length());
+			register(name, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		}
+		return files.length;
+	}
+
+	public PreparedQuery getQuery(String name) {
+		return queries.get(name);
+	}
+
+	public Set<String> getQueryNames() {
+		return Collections.unmodifiableSet(new TreeSet<String>(queries.keySet()));
+	}
+
+	// Run a registered query, with bindings (which may be null) giving values for some of its variables,
+	// and write the results to out. Returns the number of rows written
+	public long execute(String name, QuerySolution bindings, ResultFormat format, OutputStream out) {
+
+		PreparedQuery prepared = queries.get(name);
+		if (prepared == null) throw new IllegalArgumentException("No query called " + name);
+
+		return execute(prepared, bindings, format, out);
+	}
+
+	public long execute(PreparedQuery prepared, QuerySolution bindings, ResultFormat format, OutputStream out) {
+		return execute(prepared, bindings, format, out, 0).getRows();
+	}
+
+	// As above, but write no more than rowLimit rows - all of them if it's 0 or less. To tell whether the query had
+	// more rows than that, prepare it with a row limit of rowLimit + 1 so it can find the one after them
+	public Written execute(PreparedQuery prepared, QuerySolution bindings, ResultFormat format, OutputStream out, long rowLimit) {
+
+		String name = prepared.getName();
+		long start = System.nanoTime();
+		Dataset dataset = partitions == null ? this.dataset : partitions.select(prepared.getQuery(), bindings);
+		try {
+			Written written = Txn.calculateRead(dataset, () -> {
+				try (QueryExecution qe = bindings == null
+						? QueryExecutionFactory.create(prepared.getQuery(), dataset)
+						: QueryExecutionFactory.create(prepared.getQuery(), dataset, bindings)) {
+
+					if (prepared.getTimeoutMillis() > 0) qe.setTimeout(prepared.getTimeoutMillis());
+
+					LimitedResultSet results = new LimitedResultSet(qe.execSelect(), rowLimit);
+					write(results, format, out);
+					return new Written(results.getRowNumber(), results.isLimited());
+				}
+			});
+			metrics.counter("semanticfishdata_query_rows_total", "Rows returned by each query", "query", name).add(written.getRows());
+			return written;
+		} catch (QueryCancelledException ex) {
+			metrics.counter("semanticfishdata_query_timeouts_total", "Queries that ran out of time", "query", name).inc();
+			throw ex;
+		} catch (RuntimeException ex) {
+			metrics.counter("semanticfishdata_query_failures_total", "Queries that failed", "query", name).inc();
+			throw ex;
+		} finally {
+			metrics.timer("semanticfishdata_query_duration_seconds", "Time taken to run each query and write its results", "query", name).record(System.nanoTime() - start);
+		}
+	}
+
+	// Also used by SparqlEndpoint for the results it answers from the indexes
+	static void write(ResultSet results, ResultFormat format, OutputStream out) {
+
+		switch (format) {
+		case CSV:
+			ResultSetMgr.write(out, results, ResultSetLang.SPARQLResultSetCSV);
+			break;
+		case TSV:
+			ResultSetMgr.write(out, results, ResultSetLang.SPARQLResultSetTSV);
+			break;
+		case JSON:
+			ResultSetMgr.write(out, results, ResultSetLang.SPARQLResultSetJSON);
+			break;
+		default:
+			// The text table has to see all the rows before it can work out the column widths
+			ResultSetFormatter.out(out, results);
+		}
+	}
+
+}
@@ -0,0 +1,558 @@
+package ie.marine.semanticfishdata;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Extracts the sample rows from the database in SampleID or SampleDate ranges, reading several ranges at once over
+// a small pool of connections. Each range is read a page at a time in SampleID order, each page starting after the
+// last SampleID of the one before (keyset pagination), so no query has to skip rows or hold a long-running cursor.
+//
+// The rows of each range are written to their own TSV file in the extract directory, which DelimitedFile can read,
+// and after every page the file is flushed and a checkpoint records how far the range has got. A connection that
+// drops, a deadlock or a timeout is retried from the last checkpoint of the range, and if the extraction fails
+// anyway the next run carries on with the ranges (planned when the extraction began) where it stopped. Only an
+// unfinished extraction is carried on with - once every range is done the checkpoint says so, and the next
+// extraction starts again rather than handing back rows that may be long out of date.
+// The sample query is wrapped to select each range, so any ORDER BY at the end of it is dropped. Like the
+// incremental query, this relies on each row having its own SampleID.
+public class RangeExtractor {
+
+	public enum RangeKey {
+		SAMPLEID, SAMPLEDATE;
+
+		public static RangeKey forName(String name) {
+			return valueOf(name.trim().toUpperCase());
+		}
+	}
+
+	// A range of the key, and how far through it we have got
+	private static final class Range {
+
+		final int number;
+		// SampleID ranges are from (exclusive) to to (inclusive), SampleDate ranges from (inclusive) to to (exclusive).
+		// A SampleDate range with no bounds holds the samples without a SampleDate
+		final String from;
+		final String to;
+		final File file;
+
+		// The last SampleID written, and the length of the file once it had been written - only changed by the
+		// thread extracting the range
+		String lastSampleID;
+		long bytes;
+		boolean done;
+
+		Range(int number, String from, String to, File file) {
+			this.number = number;
+			this.from = from;
+			this.to = to;
+			this.file = file;
+		}
+	}
+
+	// How nulls are written in the range files
+	public static final String NULL_VALUE = "\\N";
+
+	private static final String CHECKPOINT_FILE = "extract.properties";
+	private static final long MAX_RETRY_WAIT_MILLIS = 30000;
+
+	private final String query;
+	private final String url;
+	private final String userName;
+	private final String password;
+	private final String[] columns;
+	private final File directory;
+	private final RangeKey key;
+	private final int connections;
+
+	private int rangeCount = 16;
+	private int pageSize = 50000;
+	private int retries = 5;
+	private int fetchSize = 1000;
+
+	private final List<Range> ranges = new ArrayList<Range>();
+	private boolean complete;
+
+	private final Metrics.Counter rowsExtracted;
+	private final Metrics.Counter pages;
+	private final Metrics.Counter retried;
+
+	// query is the sample query, read into columns (e.g. a SampleMapping's), and directory where the range files
+	// and checkpoint are kept. connections is how many ranges are read at once
+	public RangeExtractor(String query, String url, String userName, String password, String[] columns, File directory, RangeKey key, int connections, Metrics metrics) {
+
+		if (connections < 1) throw new IllegalArgumentException("Need at least one connection");
+
+		this.query = withoutOrderBy(query);
+		this.url = url;
+		this.userName = userName;
+		this.password = password;
+		this.columns = columns;
+		this.directory = directory;
+		this.key = key;
+		this.connections = connections;
+
+		rowsExtracted = metrics.counter("semanticfishdata_extract_rows_total", "Rows extracted from the database into range files");
+		pages = metrics.counter("semanticfishdata_extract_pages_total", "Pages of rows read from the database");
+		retried = metrics.counter("semanticfishdata_extract_retries_total", "Pages read again after a transient database error");
+	}
+
+	// The sample query without any semicolon or ORDER BY at the end, so it can be wrapped in another query - SQL Server
+	// doesn't allow an ORDER BY in a derived table
+	public static String withoutOrderBy(String query) {
+
+		String trimmed = query.trim();
+		if (trimmed.endsWith(";")) trimmed = trimmed.substring(0, trimmed.length() - 1);
+		return trimmed.replaceFirst("(?is)\\s+ORDER\\s+BY\\s+[^()']*$", "");
+	}
+
+	// How many ranges to split the key into (16 by default)
+	public void setRangeCount(int rangeCount) {
+		this.rangeCount = Math.max(1, rangeCount);
+	}
+
+	// How many rows are read at a time (50000 by default)
+	public void setPageSize(int pageSize) {
+		this.pageSize = Math.max(1, pageSize);
+	}
+
+	// How many times a range is retried after a transient error before the extraction fails (5 by default)
+	public void setRetries(int retries) {
+		this.retries = Math.max(0, retries);
+	}
+
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	// Extract every range that isn't already done, carrying on from a checkpoint if an earlier extraction of the
+	// same query didn't finish. Returns the range files, in key order
+	public List<File> extract() throws IOException, SQLException {
+
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can't create " + directory);
+
+		if (!readCheckpoint()) {
+			deleteFiles();
+			plan();
+			complete = false;
+			writeCheckpoint();
+		}
+
+		Queue<Range> todo = new ConcurrentLinkedQueue<Range>();
+		int resumed = 0;
+		for (Range range : ranges) {
+			if (!range.done) todo.add(range);
+			if (range.done || range.bytes > 0) resumed++;
+		}
+		if (resumed > 0) System.out.println("Resuming extraction: " + (ranges.size() - todo.size()) + " of " + ranges.size() + " ranges already done");
+		System.out.println("Extract " + todo.size() + " " + key.name().toLowerCase() + " ranges over " + Math.min(connections, Math.max(1, todo.size())) + " connections");
+
+		// Once a range has failed the other workers finish the range they're on and stop
+		AtomicBoolean failed = new AtomicBoolean();
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(connections, Math.max(1, todo.size())));
+		try {
+			List<Future<Void>> running = new ArrayList<Future<Void>>();
+			for (int i = 0; i < Math.min(connections, todo.size()); i++) {
+				running.add(workers.submit(() -> {
+					try (Worker worker = new Worker()) {
+						for (Range range = todo.poll(); range != null && !failed.get(); range = todo.poll()) worker.extract(range);
+					} catch (Exception ex) {
+						failed.set(true);
+						throw ex;
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> result : running) result.get();
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new IOException(cause.getMessage(), cause);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", ex);
+		} finally {
+			workers.shutdownNow();
+		}
+
+		synchronized (this) {
+			complete = true;
+			writeCheckpoint();
+		}
+
+		List<File> files = new ArrayList<File>();
+		for (Range range : ranges) files.add(range.file);
+		return files;
+	}
+
+	// Remove the checkpoint and range files once their rows have been read, whether or not loading them worked, so
+	// the next extraction starts afresh. The checkpoint goes first - without it any range files left behind are
+	// deleted by the next extraction
+	public void finish() throws IOException {
+
+		Files.deleteIfExists(new File(directory, CHECKPOINT_FILE).toPath());
+		for (Range range : ranges) {
+			if (!range.file.delete() && range.file.exists()) System.out.println("Couldn't delete " + range.file);
+		}
+	}
+
+	// Work out the ranges from the smallest and largest value of the key
+	private void plan() throws SQLException {
+
+		String[] bounds = withRetries("planning", connection -> {
+			String column = key == RangeKey.SAMPLEID ? "q.SampleID" : "q.SampleDate";
+			try (PreparedStatement stmt = connection.prepareStatement("SELECT MIN(" + column + "), MAX(" + column + ") FROM (\r\n" + query + "\r\n) AS q");
+				 ResultSet rs = stmt.executeQuery()) {
+				rs.next();
+				return new String[] { rs.getString(1), rs.getString(2) };
+			}
+		});
+
+		ranges.clear();
+		if (bounds[0] == null) {
+			// No rows with a key at all
+		} else if (key == RangeKey.SAMPLEID) {
+			long min;
+			long max;
+			try {
+				min = Long.parseLong(bounds[0].trim());
+				max = Long.parseLong(bounds[1].trim());
+			} catch (NumberFormatException ex) {
+				throw new SQLException("SampleIDs aren't numbers so can't be split into ranges - use extractRangeKey=SampleDate");
+			}
+			// Ranges are from (exclusive) to to (inclusive)
+			long span = Math.max(1, (max - min + 1 + rangeCount - 1) / rangeCount);
+			for (long from = min - 1; from < max; from += span) addRange(Long.toString(from), Long.toString(Math.min(max, from + span)));
+		} else {
+			LocalDate min = LocalDate.parse(bounds[0].trim().substring(0, 10));
+			LocalDate max = LocalDate.parse(bounds[1].trim().substring(0, 10)).plusDays(1);
+			long span = Math.max(1, (ChronoUnit.DAYS.between(min, max) + rangeCount - 1) / rangeCount);
+			for (LocalDate from = min; from.isBefore(max); from = from.plusDays(span)) {
+				LocalDate to = from.plusDays(span);
+				addRange(from.toString(), (to.isAfter(max) ? max : to).toString());
+			}
+		}
+		// SampleDate ranges can't hold samples without a date, so they get a range of their own
+		if (key == RangeKey.SAMPLEDATE) addRange(null, null);
+	}
+
+	private void addRange(String from, String to) {
+
+		int number = ranges.size();
+		ranges.add(new Range(number, from, to, new File(directory, String.format("range-%04d.tsv", number))));
+	}
+
+	// Reads ranges over its own connection, opening it again after an error
+	private final class Worker implements AutoCloseable {
+
+		private Connection connection;
+
+		void extract(Range range) throws IOException, SQLException {
+
+			long start = System.nanoTime();
+			// Only failures in a row count against the retries - a range that gets further each time keeps going
+			int attempt = 0;
+			long checkpointed = range.bytes;
+			while (true) {
+				try {
+					extractFromCheckpoint(range);
+					break;
+				} catch (SQLException ex) {
+					close();
+					if (range.bytes > checkpointed) attempt = 0;
+					checkpointed = range.bytes;
+					if (attempt >= retries || !isTransient(ex)) throw new SQLException("Range " + range.number + " failed: " + ex.getMessage(), ex);
+					retried.inc();
+					System.out.println("Retrying range " + range.number + " from SampleID " + range.lastSampleID + " after: " + ex.getMessage());
+					pause(attempt++);
+				}
+			}
+			System.out.println("Extracted range " + range.number + " (" + describe(range) + ") in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		}
+
+		// Read the rest of the range a page at a time, after whatever was written at its last checkpoint
+		private void extractFromCheckpoint(Range range) throws IOException, SQLException {
+
+			// Anything written after the last checkpoint is read again
+			try (RandomAccessFile file = new RandomAccessFile(range.file, "rw")) {
+				file.setLength(range.bytes);
+			}
+
+			try (FileOutputStream out = new FileOutputStream(range.file, true);
+				 Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16)) {
+
+				if (range.bytes == 0) writer.write(String.join("\t", columns) + "\n");
+
+				if (connection == null) connection = DriverManager.getConnection(url, userName, password);
+				String[] row = new String[columns.length];
+				int[] columnIndexes = null;
+
+				try (PreparedStatement first = connection.prepareStatement(pageQuery(range, false), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+					 PreparedStatement next = connection.prepareStatement(pageQuery(range, true), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+
+					while (!range.done) {
+						PreparedStatement stmt = range.lastSampleID == null ? first : next;
+						setParameters(stmt, range);
+						stmt.setMaxRows(pageSize);
+						stmt.setFetchSize(Math.min(fetchSize, pageSize));
+
+						int rows = 0;
+						String last = range.lastSampleID;
+						try (ResultSet rs = stmt.executeQuery()) {
+							if (columnIndexes == null) columnIndexes = SampleRowConverter.resolveColumns(rs.getMetaData(), columns);
+							while (rs.next()) {
+								SampleRowConverter.readRow(rs, columnIndexes, row);
+								write(writer, row);
+								last = row[SampleRowConverter.SAMPLE_ID];
+								rows++;
+							}
+						}
+
+						// Make sure the page is on disk before the checkpoint says it is
+						writer.flush();
+						out.getFD().sync();
+						pages.inc();
+						rowsExtracted.add(rows);
+
+						checkpoint(range, last, out.getChannel().size(), rows < pageSize);
+					}
+				}
+			}
+		}
+
+		private void pause(int attempt) throws IOException {
+
+			try {
+				Thread.sleep(Math.min(MAX_RETRY_WAIT_MILLIS, 1000L << Math.min(attempt, 10)));
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted", ex);
+			}
+		}
+
+		@Override
+		public void close() {
+
+			if (connection == null) return;
+			try {
+				connection.close();
+			} catch (SQLException ex) {
+				// It's probably the connection that failed
+			}
+			connection = null;
+		}
+	}
+
+	// The query for a page of the range - the first, or one after the last SampleID read
+	private String pageQuery(Range range, boolean afterSampleID) {
+
+		String where;
+		if (key == RangeKey.SAMPLEID) {
+			// The last SampleID read is used as the start of the range
+			where = "q.SampleID > ? AND q.SampleID <= ?";
+		} else if (range.from == null) {
+			where = "q.SampleDate IS NULL" + (afterSampleID ? " AND q.SampleID > ?" : "");
+		} else {
+			where = "q.SampleDate >= ? AND q.SampleDate < ?" + (afterSampleID ? " AND q.SampleID > ?" : "");
+		}
+		return "SELECT * FROM (\r\n" + query + "\r\n) AS q WHERE " + where + " ORDER BY q.SampleID";
+	}
+
+	private void setParameters(PreparedStatement stmt, Range range) throws SQLException {
+
+		if (key == RangeKey.SAMPLEID) {
+			stmt.setLong(1, Long.parseLong(range.lastSampleID == null ? range.from : range.lastSampleID));
+			stmt.setLong(2, Long.parseLong(range.to));
+			return;
+		}
+		int parameter = 1;
+		if (range.from != null) {
+			stmt.setDate(parameter++, java.sql.Date.valueOf(range.from));
+			stmt.setDate(parameter++, java.sql.Date.valueOf(range.to));
+		}
+		if (range.lastSampleID != null) {
+			if (range.lastSampleID.matches("\\d+")) stmt.setLong(parameter, Long.parseLong(range.lastSampleID));
+			else stmt.setString(parameter, range.lastSampleID);
+		}
+	}
+
+	// Write a row as a line of the TSV file. Nulls are written as \N (as DelimitedFile is told to read them), and
+	// tabs or line breaks in a value, which TSV can't hold, become spaces
+	private static void write(Writer writer, String[] row) throws IOException {
+
+		for (int i = 0; i < row.length; i++) {
+			if (i > 0) writer.write('\t');
+			String value = row[i];
+			if (value == null) {
+				writer.write(NULL_VALUE);
+			} else {
+				for (int j = 0; j < value.length(); j++) {
+					char c = value.charAt(j);
+					writer.write(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+				}
+			}
+		}
+		writer.write('\n');
+	}
+
+	// Errors worth trying again: lost connections, deadlocks and timeouts
+	private static boolean isTransient(SQLException ex) {
+
+		for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException
+					|| cause instanceof SQLNonTransientConnectionException || cause instanceof SQLTimeoutException) return true;
+			if (cause instanceof SQLException) {
+				String state = ((SQLException) cause).getSQLState();
+				// 08 is a connection error, 40001 a deadlock and HYT00 a timeout
+				if (state != null && (state.startsWith("08") || state.equals("40001") || state.equals("HYT00"))) return true;
+			}
+		}
+		return false;
+	}
+
+	private interface DatabaseTask<T> {
+		T run(Connection connection) throws SQLException;
+	}
+
+	// Run task over a new connection, trying again after a transient error
+	private <T> T withRetries(String what, DatabaseTask<T> task) throws SQLException {
+
+		for (int attempt = 0; ; attempt++) {
+			try (Connection connection = DriverManager.getConnection(url, userName, password)) {
+				return task.run(connection);
+			} catch (SQLException ex) {
+				if (attempt >= retries || !isTransient(ex)) throw ex;
+				retried.inc();
+				System.out.println("Retrying " + what + " after: " + ex.getMessage());
+				try {
+					Thread.sleep(Math.min(MAX_RETRY_WAIT_MILLIS, 1000L << Math.min(attempt, 10)));
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw ex;
+				}
+			}
+		}
+	}
+
+	// Record that a range has got as far as lastSampleID, with its file bytes long
+	private void checkpoint(Range range, String lastSampleID, long bytes, boolean done) throws IOException {
+
+		synchronized (this) {
+			range.lastSampleID = lastSampleID;
+			range.bytes = bytes;
+			range.done = done;
+			writeCheckpoint();
+		}
+	}
+
+	// The checkpoint is written to a new file which then replaces the old one, so a crash can't leave half of it
+	private synchronized void writeCheckpoint() throws IOException {
+
+		Properties checkpoint = new Properties();
+		checkpoint.setProperty("query", query);
+		checkpoint.setProperty("key", key.name());
+		checkpoint.setProperty("ranges", Integer.toString(ranges.size()));
+		checkpoint.setProperty("complete", Boolean.toString(complete));
+		for (Range range : ranges) {
+			String prefix = "range." + range.number + ".";
+			if (range.from != null) checkpoint.setProperty(prefix + "from", range.from);
+			if (range.to != null) checkpoint.setProperty(prefix + "to", range.to);
+			if (range.lastSampleID != null) checkpoint.setProperty(prefix + "lastSampleID", range.lastSampleID);
+			checkpoint.setProperty(prefix + "bytes", Long.toString(range.bytes));
+			checkpoint.setProperty(prefix + "done", Boolean.toString(range.done));
+		}
+
+		File file = new File(directory, CHECKPOINT_FILE);
+		File newFile = new File(directory, CHECKPOINT_FILE + ".new");
+		try (OutputStream os = new FileOutputStream(newFile)) {
+			checkpoint.store(os, "Extraction progress for SemanticFishData");
+		}
+		Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Pick up the ranges from an unfinished extraction of the same query. Returns false if there isn't one
+	private boolean readCheckpoint() throws IOException {
+
+		File file = new File(directory, CHECKPOINT_FILE);
+		if (!file.exists()) return false;
+
+		Properties checkpoint = new Properties();
+		try (InputStream is = new FileInputStream(file)) {
+			checkpoint.load(is);
+		}
+		if (!query.equals(checkpoint.getProperty("query")) || !key.name().equals(checkpoint.getProperty("key"))) {
+			System.out.println("The unfinished extraction in " + directory + " was of a different query - starting again");
+			return false;
+		}
+		if (Boolean.parseBoolean(checkpoint.getProperty("complete"))) {
+			// Its rows were handed back to be loaded, so the run that extracted them stopped before it could tidy up
+			System.out.println("The extraction in " + directory + " was finished by an earlier run - starting again");
+			return false;
+		}
+
+		ranges.clear();
+		int count = Integer.parseInt(checkpoint.getProperty("ranges", "0"));
+		for (int i = 0; i < count; i++) {
+			String prefix = "range." + i + ".";
+			addRange(checkpoint.getProperty(prefix + "from"), checkpoint.getProperty(prefix + "to"));
+			Range range = ranges.get(i);
+			range.lastSampleID = checkpoint.getProperty(prefix + "lastSampleID");
+			range.bytes = Long.parseLong(checkpoint.getProperty(prefix + "bytes", "0"));
+			range.done = Boolean.parseBoolean(checkpoint.getProperty(prefix + "done"));
+			// The file should be at least as long as the checkpoint says - if not, read the range again
+			if (range.bytes > 0 && (!range.file.exists() || range.file.length() < range.bytes)) {
+				range.lastSampleID = null;
+				range.bytes = 0;
+				range.done = false;
+			}
+		}
+		return true;
+	}
+
+	private void deleteFiles() throws IOException {
+
+		File[] files = directory.listFiles((dir, name) -> name.matches("range-\\d+\\.tsv") || name.startsWith(CHECKPOINT_FILE));
+		if (files == null) return;
+		for (File file : files) Files.deleteIfExists(file.toPath());
+	}
+
+	private String describe(Range range) {
+
+		if (range.from == null && key == RangeKey.SAMPLEDATE) return "no SampleDate";
+		return key == RangeKey.SAMPLEID ? "SampleID " + (Long.parseLong(range.from) + 1) + " to " + range.to : "SampleDate " + range.from + " to before " + range.to;
+	}
+
+}
@@ -0,0 +1,30 @@
+package ie.marine.semanticfishdata;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// Reads sample rows from the results of the StockmanQuery.sql query
+public class ResultSetRowSource implements RowSource {
+
+	private final ResultSet rs;
+	private final int[] columnIndexes;
+
+	public ResultSetRowSource(ResultSet rs) throws SQLException {
+		this(rs, SampleRowConverter.COLUMNS);
+	}
+
+	// Read the given columns, e.g. a SampleMapping's, into each row
+	public ResultSetRowSource(ResultSet rs, String[] columns) throws SQLException {
+		this.rs = rs;
+		this.columnIndexes = SampleRowConverter.resolveColumns(rs.getMetaData(), columns);
+	}
+
+	@Override
+	public boolean next(String[] row) throws SQLException {
+
+		if (!rs.next()) return false;
+		SampleRowConverter.readRow(rs, columnIndexes, row);
+		return true;
+	}
+
+}
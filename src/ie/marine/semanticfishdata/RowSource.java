@@ -0,0 +1,25 @@
+package ie.marine.semanticfishdata;
+
+import java.util.List;
+
+// Supplies sample rows one at a time, with the values in SampleRowConverter.COLUMNS order followed by any other
+// columns the SampleMapping uses
+public interface RowSource {
+
+	// Fill row with the next row's values - returns false when there are no more rows
+	boolean next(String[] row) throws Exception;
+
+	// All the rows from sources, one source after another
+	static RowSource concat(List<RowSource> sources) {
+
+		int[] current = { 0 };
+		return row -> {
+			while (current[0] < sources.size()) {
+				if (sources.get(current[0]).next(row)) return true;
+				current[0]++;
+			}
+			return false;
+		};
+	}
+
+}
@@ -0,0 +1,333 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.ontology.OntModel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// The compiled form of a mapping file (see resources/SampleMapping.properties) that says how each row of the
+// query results is turned into triples. Everything that doesn't depend on the row - column positions, IRI
+// prefixes, the nodes for classes, properties, units and qualities - is worked out once here, so converting
+// a row is just a few array reads and string joins. Links to code lists are looked up in the VocabularyIndex
+// the mapping is compiled with. A SampleMapping doesn't change once it's compiled so
+// one can be shared by all the converter threads; SampleRowConverter does the per-row work.
+public class SampleMapping {
+
+	// An IRI made from a fixed prefix and suffix either side of one column's value e.g. Observation/{SampleID}/L
+	static final class Template {
+
+		final String prefix;
+		final int column;
+		final String suffix;
+
+		Template(String prefix, int column, String suffix) {
+			this.prefix = prefix;
+			this.column = column;
+			this.suffix = suffix;
+		}
+
+		String expand(String value) {
+			return suffix.isEmpty() ? prefix + value : prefix + value + suffix;
+		}
+
+		// The column value an IRI was made from, or null if it wasn't made from this template
+		String match(String iri) {
+			if (iri.length() <= prefix.length() + suffix.length() || !iri.startsWith(prefix) || !iri.endsWith(suffix)) return null;
+			return iri.substring(prefix.length(), iri.length() - suffix.length());
+		}
+	}
+
+	// A column whose value links the sample to a shared individual e.g. hasSpecies Species/{AphiaID}. The individual
+	// can also be linked to the same code in a code list
+	static final class Link {
+
+		final Template iri;
+		final Node ontClass;
+		final Node property;
+		final int codeList;
+
+		Link(Template iri, Node ontClass, Node property, int codeList) {
+			this.iri = iri;
+			this.ontClass = ontClass;
+			this.property = property;
+			this.codeList = codeList;
+		}
+	}
+
+	// A column holding a measurement, which becomes an Observation of the sample
+	static final class Measurement {
+
+		final int column;
+		final Template iri;
+		final Node unit;
+		final Node quality;
+
+		Measurement(int column, Template iri, Node unit, Node quality) {
+			this.column = column;
+			this.iri = iri;
+			this.unit = unit;
+			this.quality = quality;
+		}
+	}
+
+	// A column whose value is added to the sample as a literal - a date or the plain value
+	static final class Value {
+
+		final int column;
+		final Node property;
+
+		Value(int column, Node property) {
+			this.column = column;
+			this.property = property;
+		}
+	}
+
+	private static final Pattern PLACEHOLDER = Pattern.compile("\\{([^}]+)\\}");
+	private static final Pattern ABSOLUTE_IRI = Pattern.compile("[A-Za-z][A-Za-z0-9+.-]*:.*");
+
+	private final String ak;
+
+	final VocabularyIndex vocabulary;
+
+	// The columns each row holds, in order: SampleRowConverter.COLUMNS, which the watermark and sampling summaries
+	// rely on, then any others the mapping uses
+	private final List<String> columns = new ArrayList<String>(Arrays.asList(SampleRowConverter.COLUMNS));
+
+	// The compiled plan
+	Template sampleIri;
+	Node sampleClass;
+	final List<Link> links = new ArrayList<Link>();
+	final List<Measurement> measurements = new ArrayList<Measurement>();
+	final List<Value> dates = new ArrayList<Value>();
+	final List<Value> values = new ArrayList<Value>();
+
+	// The parts of an observation, which are fixed by the ontology
+	final Node Observation;
+	final Node Quality;
+	final Node Unit;
+	final Node hasMeasurement;
+	final Node hasObservation;
+	final Node hasQuality;
+	final Node hasUnit;
+
+	private SampleMapping(String ak, VocabularyIndex vocabulary) {
+
+		this.ak = ak;
+		this.vocabulary = vocabulary;
+
+		Observation = NodeFactory.createURI(ak + "Observation");
+		Quality = NodeFactory.createURI(ak + "Quality");
+		Unit = NodeFactory.createURI(ak + "Unit");
+		hasMeasurement = NodeFactory.createURI(ak + "hasMeasurement");
+		hasObservation = NodeFactory.createURI(ak + "hasObservation");
+		hasQuality = NodeFactory.createURI(ak + "hasQuality");
+		hasUnit = NodeFactory.createURI(ak + "hasUnit");
+	}
+
+	// Read and compile a mapping file. ak is the namespace of our ontology
+	public static SampleMapping load(String ak, File file) throws IOException {
+		return load(ak, file, VocabularyIndex.empty());
+	}
+
+	// Read and compile a mapping file whose links to code lists are looked up in vocabulary
+	public static SampleMapping load(String ak, File file, VocabularyIndex vocabulary) throws IOException {
+
+		Properties mapping = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			mapping.load(in);
+		}
+		try {
+			return compile(ak, mapping, vocabulary);
+		} catch (IllegalArgumentException ex) {
+			throw new IOException("Can't use the mapping in " + file + ": " + ex.getMessage(), ex);
+		}
+	}
+
+	public static SampleMapping compile(String ak, Properties mapping) {
+		return compile(ak, mapping, VocabularyIndex.empty());
+	}
+
+	public static SampleMapping compile(String ak, Properties mapping, VocabularyIndex vocabulary) {
+
+		SampleMapping plan = new SampleMapping(ak, vocabulary);
+
+		plan.sampleIri = plan.template(require(mapping, "sample.iri"));
+		plan.sampleClass = plan.term(require(mapping, "sample.class"));
+
+		// Rules are compiled in name order so the plan is the same every time
+		for (String rule : ruleNames(mapping, "link.")) {
+			String codeList = mapping.getProperty(rule + ".vocabulary", "").trim();
+			plan.links.add(new Link(plan.template(require(mapping, rule + ".iri")), plan.term(require(mapping, rule + ".class")),
+					plan.term(require(mapping, rule + ".property")), codeList.isEmpty() ? -1 : VocabularyIndex.codeList(codeList)));
+		}
+		for (String rule : ruleNames(mapping, "observation.")) {
+			plan.measurements.add(new Measurement(plan.column(require(mapping, rule + ".value")), plan.template(require(mapping, rule + ".iri")),
+					plan.term(require(mapping, rule + ".unit")), plan.term(require(mapping, rule + ".quality"))));
+		}
+		for (String rule : ruleNames(mapping, "date.")) {
+			plan.dates.add(new Value(plan.column(require(mapping, rule + ".value")), plan.term(require(mapping, rule + ".property"))));
+		}
+		for (String rule : ruleNames(mapping, "value.")) {
+			plan.values.add(new Value(plan.column(require(mapping, rule + ".value")), plan.term(require(mapping, rule + ".property"))));
+		}
+
+		return plan;
+	}
+
+	// The text either side of the column's value in each of the IRI templates, for CompactGraph
+	public List<String[]> getTemplates() {
+
+		List<Template> templates = new ArrayList<Template>();
+		templates.add(sampleIri);
+		for (Link link : links) templates.add(link.iri);
+		for (Measurement measurement : measurements) templates.add(measurement.iri);
+
+		List<String[]> parts = new ArrayList<String[]>();
+		for (Template template : templates) parts.add(new String[] { template.prefix, template.suffix });
+		return parts;
+	}
+
+	// Whether node is one of the samples, going by the sample IRI template
+	public boolean isSample(Node node) {
+		return node.isURI() && sampleIri.match(node.getURI()) != null;
+	}
+
+	// The SampleID of a sample, or of an observation whose IRI template is keyed by the SampleID too. Null for
+	// anything else. If more than one template fits (e.g. fish/{SampleID} and fish/{SampleID}/length) the one with
+	// the most fixed text is the one the IRI was made from
+	public String getSampleID(Node node) {
+
+		if (!node.isURI()) return null;
+		String sampleID = sampleIri.match(node.getURI());
+		int fixed = sampleIri.prefix.length() + sampleIri.suffix.length();
+		for (Measurement measurement : measurements) {
+			Template iri = measurement.iri;
+			if (iri.column != sampleIri.column || iri.prefix.length() + iri.suffix.length() <= fixed) continue;
+			String value = iri.match(node.getURI());
+			if (value != null) {
+				sampleID = value;
+				fixed = iri.prefix.length() + iri.suffix.length();
+			}
+		}
+		return sampleID;
+	}
+
+	public Node getSample(String sampleID) {
+		return NodeFactory.createURI(sampleIri.expand(sampleID));
+	}
+
+	// The link made from a column, or null if the mapping doesn't link it
+	Link getLink(int column) {
+
+		for (Link link : links) {
+			if (link.iri.column == column) return link;
+		}
+		return null;
+	}
+
+	// The property a date or plain value column is added to the sample with, or null if the mapping doesn't add it
+	Node getProperty(int column) {
+
+		for (Value value : dates) {
+			if (value.column == column) return value.property;
+		}
+		for (Value value : values) {
+			if (value.column == column) return value.property;
+		}
+		return null;
+	}
+
+	// The columns a row needs to hold for this mapping, in the order they're held
+	public String[] getColumns() {
+		return columns.toArray(new String[columns.size()]);
+	}
+
+	// Make sure the classes and properties the mapping uses are in the ontology, so a typo in the mapping
+	// file is caught before any data is loaded
+	public void checkTerms(OntModel onto) {
+
+		checkClass(onto, sampleClass);
+		for (Link link : links) {
+			checkClass(onto, link.ontClass);
+			checkProperty(onto, link.property);
+		}
+		checkClass(onto, Observation);
+		checkClass(onto, Unit);
+		checkClass(onto, Quality);
+		for (Value date : dates) checkProperty(onto, date.property);
+		// The plain values may use properties from other vocabularies, such as the sampling summaries
+		for (Value value : values) {
+			if (value.property.getURI().startsWith(ak)) checkProperty(onto, value.property);
+		}
+	}
+
+	private static void checkClass(OntModel onto, Node ontClass) {
+
+		if (onto.getOntClass(ontClass.getURI()) == null) throw new IllegalStateException("Class not found in the ontology: " + ontClass.getURI());
+	}
+
+	private static void checkProperty(OntModel onto, Node property) {
+
+		if (onto.getOntProperty(property.getURI()) == null) throw new IllegalStateException("Property not found in the ontology: " + property.getURI());
+	}
+
+	// The names of the rules of one kind e.g. link.division and link.species for "link."
+	private static TreeSet<String> ruleNames(Properties mapping, String kind) {
+
+		TreeSet<String> names = new TreeSet<String>();
+		for (String key : mapping.stringPropertyNames()) {
+			if (key.startsWith(kind) && key.indexOf('.', kind.length()) > 0) names.add(key.substring(0, key.indexOf('.', kind.length())));
+		}
+		return names;
+	}
+
+	private static String require(Properties mapping, String key) {
+
+		String value = mapping.getProperty(key);
+		if (value == null || value.trim().isEmpty()) throw new IllegalArgumentException("No " + key + " given");
+		return value.trim();
+	}
+
+	// The position of a column in the row, adding it to the columns we read if it isn't one already
+	private int column(String name) {
+
+		for (int i = 0; i < columns.size(); i++) {
+			if (columns.get(i).equalsIgnoreCase(name)) return i;
+		}
+		columns.add(name);
+		return columns.size() - 1;
+	}
+
+	private Template template(String iri) {
+
+		Matcher m = PLACEHOLDER.matcher(iri);
+		if (!m.find()) throw new IllegalArgumentException("IRI template " + iri + " doesn't name a column");
+
+		String prefix = absolute(iri.substring(0, m.start()));
+		int column = column(m.group(1).trim());
+		String suffix = iri.substring(m.end());
+
+		if (m.find()) throw new IllegalArgumentException("IRI template " + iri + " names more than one column");
+		return new Template(prefix, column, suffix);
+	}
+
+	private Node term(String name) {
+		return NodeFactory.createURI(absolute(name));
+	}
+
+	private String absolute(String name) {
+		return ABSOLUTE_IRI.matcher(name).matches() ? name : ak + name;
+	}
+
+}
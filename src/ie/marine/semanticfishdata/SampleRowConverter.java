@@ -0,0 +1,231 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.datatypes.RDFDatatype;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.vocabulary.RDF;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.regex.Pattern;
+
+// Converts rows of the StockmanQuery.sql result set straight into triples, whether they're going into the
+// OntModel, a plain graph or a TDB2 store. What each column becomes is set by a SampleMapping - by default
+// the Sample, Observation, Species and ICESDivision triples of our ontology.
+// Each converter keeps its own caches so use one converter per thread.
+public class SampleRowConverter {
+
+	// The columns from StockmanQuery.sql that every mapping reads - a row holds these first, in this order,
+	// followed by any other columns its mapping uses. Gear and Scheme are optional - they're only used for the sampling summaries
+	public static final String[] COLUMNS = { "SampleID", "ICES_Div", "AphiaID", "FishLength", "FishWeight", "Age", "SampleDate", "Gear", "Scheme" };
+	public static final int SAMPLE_ID = 0;
+	public static final int ICES_DIV = 1;
+	public static final int APHIA_ID = 2;
+	public static final int FISH_LENGTH = 3;
+	public static final int FISH_WEIGHT = 4;
+	public static final int AGE = 5;
+	public static final int SAMPLE_DATE = 6;
+	public static final int GEAR = 7;
+	public static final int SCHEME = 8;
+
+	// Thrown for a row that can't be converted, with a short reason it can be counted under
+	public static class RejectedRowException extends IllegalArgumentException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String reason;
+
+		public RejectedRowException(String reason, String message, Throwable cause) {
+			super(message, cause);
+			this.reason = reason;
+		}
+
+		public String getReason() {
+			return reason;
+		}
+	}
+
+	private final SampleMapping mapping;
+
+	// Shared individuals (species, divisions, units, qualities) we have already created and emitted the rdf:type of,
+	// keyed by their IRI
+	private final InternCache<Node> sharedIndividuals;
+
+	// Landing date literals, keyed by the yyyy-MM-dd they were made from - there are far fewer dates than samples
+	private final InternCache<Node> dates;
+
+	// The current row's dates - they're read before anything is emitted so a row with a bad date adds no triples at all
+	private final Node[] dateValues;
+
+	private static final Pattern WHOLE_NUMBER = Pattern.compile("[-+]?\\d+");
+
+	// Landing dates have always been typed with the name "xsd:dateTimeStamp" so we keep doing the same
+	private static final RDFDatatype DATE_TIME_STAMP = TypeMapper.getInstance().getSafeTypeByName("xsd:dateTimeStamp");
+	private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+	public SampleRowConverter(SampleMapping mapping) {
+		this(mapping, InternCache.DEFAULT_SIZE);
+	}
+
+	public SampleRowConverter(SampleMapping mapping, int internCacheSize) {
+
+		this.mapping = mapping;
+		sharedIndividuals = new InternCache<Node>(internCacheSize);
+		dates = new InternCache<Node>(internCacheSize);
+		dateValues = new Node[mapping.dates.size()];
+	}
+
+	// Hit and miss counts for the shared individuals
+	public InternCache<Node> getInternCache() {
+		return sharedIndividuals;
+	}
+
+	// Work out which result set column holds each of our fields - this only needs doing once per query.
+	// A field that isn't in the result set gets an index of 0 and will always be read as null
+	public static int[] resolveColumns(ResultSetMetaData metadata, String[] columns) throws SQLException {
+
+		int[] columnIndexes = new int[columns.length];
+
+		for (int i = 1; i <= metadata.getColumnCount(); i++) {
+			String columnName = metadata.getColumnLabel(i);
+			for (int j = 0; j < columns.length; j++) {
+				if (columns[j].equalsIgnoreCase(columnName)) columnIndexes[j] = i;
+			}
+		}
+
+		if (columnIndexes[SAMPLE_ID] == 0) throw new SQLException("Query results do not include a SampleID column");
+
+		return columnIndexes;
+	}
+
+	// Copy the current row of the result set into row, reading each column once
+	public static void readRow(ResultSet rs, int[] columnIndexes, String[] row) throws SQLException {
+
+		for (int j = 0; j < columnIndexes.length; j++) {
+			row[j] = columnIndexes[j] == 0 ? null : rs.getString(columnIndexes[j]);
+		}
+	}
+
+	// Emit the triples for one row, which holds the mapping's columns. Throws a RejectedRowException, having
+	// emitted nothing, if the row can't be converted
+	public void convert(String[] row, StreamRDF out) {
+		convert(row, out, out);
+	}
+
+	// As above, but the triples about shared individuals (their rdf:type and code list links) go to shared - unlike
+	// the sample's own triples, another converter may emit the same ones
+	public void convert(String[] row, StreamRDF out, StreamRDF shared) {
+
+		String sampleID = row[mapping.sampleIri.column];
+		if (isBlank(sampleID)) throw new RejectedRowException("no_sample_id", "Row has no SampleID", null);
+
+		for (int i = 0; i < dateValues.length; i++) {
+			String value = row[mapping.dates.get(i).column];
+			try {
+				dateValues[i] = isBlank(value) ? null : getDate(value.substring(0, 10));
+			} catch (RuntimeException ex) {
+				throw new RejectedRowException("bad_date", "Sample " + sampleID + " has a date we can't read: " + value, ex);
+			}
+		}
+
+		Node myInd = NodeFactory.createURI(mapping.sampleIri.expand(sampleID));
+		out.triple(Triple.create(myInd, RDF.Nodes.type, mapping.sampleClass));
+
+		for (SampleMapping.Link link : mapping.links) {
+			String value = row[link.iri.column];
+			if (isBlank(value)) continue;
+
+			Node individual = getLinkedIndividual(link, value, shared);
+			out.triple(Triple.create(myInd, link.property, individual));
+		}
+
+		for (SampleMapping.Measurement measurement : mapping.measurements) {
+			String value = row[measurement.column];
+			if (isBlank(value)) continue;
+
+			String observationID = row[measurement.iri.column];
+			addObservation(myInd, NodeFactory.createURI(measurement.iri.expand(observationID)), value, measurement, out, shared);
+		}
+
+		for (int i = 0; i < dateValues.length; i++) {
+			if (dateValues[i] != null) out.triple(Triple.create(myInd, mapping.dates.get(i).property, dateValues[i]));
+		}
+
+		for (SampleMapping.Value plain : mapping.values) {
+			String value = row[plain.column];
+			if (!isBlank(value)) out.triple(Triple.create(myInd, plain.property, NodeFactory.createLiteral(value)));
+		}
+	}
+
+	// Add an Observation of a measured value to the sample
+	private void addObservation(Node myInd, Node myObs, String value, SampleMapping.Measurement measurement, StreamRDF out, StreamRDF shared) {
+
+		out.triple(Triple.create(myObs, RDF.Nodes.type, mapping.Observation));
+		out.triple(Triple.create(myObs, mapping.hasMeasurement, measurementLiteral(value)));
+
+		Node unit = getSharedIndividual(measurement.unit.getURI(), mapping.Unit, shared);
+		out.triple(Triple.create(myObs, mapping.hasUnit, unit));
+
+		Node quality = getSharedIndividual(measurement.quality.getURI(), mapping.Quality, shared);
+		out.triple(Triple.create(myObs, mapping.hasQuality, quality));
+
+		out.triple(Triple.create(myInd, mapping.hasObservation, myObs));
+	}
+
+	// The landing date as an xsd:dateTimeStamp at midnight local time
+	private Node getDate(String day) {
+
+		return dates.get(day, key -> NodeFactory.createLiteral(
+				LocalDate.parse(key).atStartOfDay(ZoneId.systemDefault()).format(TIMESTAMP_FORMAT), DATE_TIME_STAMP));
+	}
+
+	// Measurements are typed as numbers so queries can compare them without parsing strings - xsd:integer for
+	// whole numbers, otherwise xsd:decimal. Anything that isn't a number is kept as a plain string
+	public static Node measurementLiteral(String value) {
+
+		String number = value.trim();
+		if (WHOLE_NUMBER.matcher(number).matches()) return NodeFactory.createLiteral(number, XSDDatatype.XSDinteger);
+
+		try {
+			return NodeFactory.createLiteral(new BigDecimal(number).toPlainString(), XSDDatatype.XSDdecimal);
+		} catch (NumberFormatException ex) {
+			return NodeFactory.createLiteral(value);
+		}
+	}
+
+	// Shared individuals only need creating, and their rdf:type stating, once however many rows refer to them
+	private Node getSharedIndividual(String iri, Node ontClass, StreamRDF out) {
+
+		return sharedIndividuals.get(iri, key -> {
+			Node individual = NodeFactory.createURI(key);
+			out.triple(Triple.create(individual, RDF.Nodes.type, ontClass));
+			return individual;
+		});
+	}
+
+	// A shared individual a column links the sample to, which is linked in turn to its code in a code list if the
+	// mapping says so - that's looked up once, along with its rdf:type
+	private Node getLinkedIndividual(SampleMapping.Link link, String value, StreamRDF out) {
+
+		return sharedIndividuals.get(link.iri.expand(value), key -> {
+			Node individual = NodeFactory.createURI(key);
+			out.triple(Triple.create(individual, RDF.Nodes.type, link.ontClass));
+			if (link.codeList >= 0) mapping.vocabulary.addLinks(individual, link.codeList, value, out);
+			return individual;
+		});
+	}
+
+	private static boolean isBlank(String value) {
+		return value == null || value.isEmpty();
+	}
+
+}
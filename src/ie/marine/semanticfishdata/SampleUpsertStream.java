@@ -0,0 +1,72 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+// Used for incremental refreshes. The first time a triple about a sample (or one of its observations) comes
+// through, whatever the target graph already holds about that sample and its observations is deleted, so the
+// new rows replace the old ones rather than being added alongside them. Triples can arrive in any order.
+// Samples and observations are recognised by the IRI templates of the SampleMapping the rows were converted with.
+public class SampleUpsertStream extends StreamRDFWrapper {
+
+	private final Graph target;
+	private final SampleMapping mapping;
+
+	// Told about each sample just before it's removed, while its old triples are still in the target graph (may be null)
+	private final BiConsumer<Graph, Node> beforeRemove;
+
+	// Samples that have already been cleared out during this refresh
+	private final Set<String> replacedSampleIDs = new HashSet<String>();
+
+	public SampleUpsertStream(SampleMapping mapping, Graph target, StreamRDF downstream) {
+		this(mapping, target, downstream, null);
+	}
+
+	public SampleUpsertStream(SampleMapping mapping, Graph target, StreamRDF downstream, BiConsumer<Graph, Node> beforeRemove) {
+		super(downstream);
+		this.target = target;
+		this.mapping = mapping;
+		this.beforeRemove = beforeRemove;
+	}
+
+	@Override
+	public void triple(Triple triple) {
+
+		// The sample a subject belongs to - e.g. Sample/{SampleID} or Observation/{SampleID}/L
+		String sampleID = mapping.getSampleID(triple.getSubject());
+		if (sampleID != null && replacedSampleIDs.add(sampleID)) removeSample(sampleID);
+
+		super.triple(triple);
+	}
+
+	// Number of samples that were upserted
+	public int getSampleCount() {
+		return replacedSampleIDs.size();
+	}
+
+	// Delete the existing triples for a sample and its observations. If inferences have been materialized
+	// there will also be triples pointing back at them (e.g. isSpeciesOf) so those go too
+	private void removeSample(String sampleID) {
+
+		Node sample = mapping.getSample(sampleID);
+		if (beforeRemove != null) beforeRemove.accept(target, sample);
+
+		List<Node> observations = target.find(sample, mapping.hasObservation, Node.ANY).mapWith(Triple::getObject).toList();
+		for (Node observation : observations) {
+			target.remove(observation, Node.ANY, Node.ANY);
+			target.remove(Node.ANY, Node.ANY, observation);
+		}
+
+		target.remove(sample, Node.ANY, Node.ANY);
+		target.remove(Node.ANY, Node.ANY, sample);
+	}
+
+}
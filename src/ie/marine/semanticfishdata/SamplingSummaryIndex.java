@@ -0,0 +1,403 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.vocabulary.RDF;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Counts of samples and of length, age and biological (weight) observations for every combination of
+// species, year, quarter, ICES area and gear - the mi:SamplingSummary cube described in SamplingSummary.n3.
+// The counts are kept up to date as rows are read (and as samples are replaced by an incremental refresh),
+// then published into the data as mi:SamplingSummary individuals.
+//
+// As well as the count for each full combination we keep a count for every way of leaving dimensions out
+// (e.g. all gears, or all years) so any lookup, however many dimensions it gives, is a single hash lookup.
+// A value that isn't recorded for a sample (e.g. no gear) is held as "" rather than being left out.
+public class SamplingSummaryIndex {
+
+	// Namespace of the sampling summary vocabulary in SamplingSummary.n3
+	public static final String NS = "http://www.marine.ie/SemanticFishData#";
+
+	// The dimensions in the order they're held in a key
+	private static final int SPECIES = 0;
+	private static final int YEAR = 1;
+	private static final int QUARTER = 2;
+	private static final int AREA = 3;
+	private static final int GEAR = 4;
+	private static final int DIMENSIONS = 5;
+
+	// The observation counts - length, age, and biological (weight) measurements
+	private static final int LENGTH = 0;
+	private static final int AGE = 1;
+	private static final int BIO = 2;
+	private static final String[] MEASURES = { "Length", "Age", "Bio" };
+
+	// The counts for one cell of the cube
+	public static class Counts {
+
+		private long samples;
+		private final long[] observations = new long[MEASURES.length];
+		private final Map<String, long[]> schemeObservations = new TreeMap<String, long[]>();
+
+		public long getSamples() {
+			return samples;
+		}
+
+		public long getLengthObs() {
+			return observations[LENGTH];
+		}
+
+		public long getAgeObs() {
+			return observations[AGE];
+		}
+
+		public long getBioObs() {
+			return observations[BIO];
+		}
+
+		// The observation counts for one sampling scheme (e.g. DemSea, PelSea or Port)
+		public long getLengthObs(String scheme) {
+			return getSchemeCount(scheme, LENGTH);
+		}
+
+		public long getAgeObs(String scheme) {
+			return getSchemeCount(scheme, AGE);
+		}
+
+		public long getBioObs(String scheme) {
+			return getSchemeCount(scheme, BIO);
+		}
+
+		private long getSchemeCount(String scheme, int measure) {
+			long[] counts = schemeObservations.get(scheme);
+			return counts == null ? 0 : counts[measure];
+		}
+
+		private void add(Counts other, int sign) {
+
+			samples += sign * other.samples;
+			for (int m = 0; m < observations.length; m++) observations[m] += sign * other.observations[m];
+
+			for (Map.Entry<String, long[]> scheme : other.schemeObservations.entrySet()) {
+				long[] counts = schemeObservations.computeIfAbsent(scheme.getKey(), k -> new long[MEASURES.length]);
+				for (int m = 0; m < counts.length; m++) counts[m] += sign * scheme.getValue()[m];
+			}
+			schemeObservations.values().removeIf(counts -> counts[LENGTH] == 0 && counts[AGE] == 0 && counts[BIO] == 0);
+		}
+
+		private Counts copy() {
+			Counts copy = new Counts();
+			copy.add(this, 1);
+			return copy;
+		}
+
+		@Override
+		public String toString() {
+			return samples + " samples, " + observations[LENGTH] + " length, " + observations[AGE] + " age and " + observations[BIO] + " bio observations";
+		}
+	}
+
+	private final Node summaryClass;
+	private final Node[] dimensionProperties;
+	private final Node sampleCount;
+	private final Node[] measureProperties;
+
+	// Where the mapping puts the columns we count by, so samples in the data can be counted the same way as rows.
+	// Anything the mapping doesn't have is left null and the dimension or measure is never recorded
+	private final SampleMapping mapping;
+	private final SampleMapping.Link species;
+	private final SampleMapping.Link division;
+	private final Node hasLandingDate;
+	private final Node hasGear;
+	private final Node hasScheme;
+	private final Node[] qualities;
+
+	// Keyed by the dimension values, with null meaning "any"
+	private final Map<List<String>, Counts> cells = new HashMap<List<String>, Counts>();
+
+	// The IRIs of the species and divisions, and the properties samples are counted by, are taken from mapping
+	public SamplingSummaryIndex(SampleMapping mapping) {
+
+		summaryClass = NodeFactory.createURI(NS + "SamplingSummary");
+		dimensionProperties = new Node[] {
+				NodeFactory.createURI(NS + "isOfSpecies"),
+				NodeFactory.createURI(NS + "isOfYear"),
+				NodeFactory.createURI(NS + "isOfQuarter"),
+				NodeFactory.createURI(NS + "isOfArea"),
+				NodeFactory.createURI(NS + "isOfGear") };
+		sampleCount = NodeFactory.createURI(NS + "sampleCount");
+		measureProperties = new Node[] {
+				NodeFactory.createURI(NS + "lengthObs"),
+				NodeFactory.createURI(NS + "ageObs"),
+				NodeFactory.createURI(NS + "bioObs") };
+
+		this.mapping = mapping;
+		species = mapping.getLink(SampleRowConverter.APHIA_ID);
+		division = mapping.getLink(SampleRowConverter.ICES_DIV);
+		hasLandingDate = mapping.getProperty(SampleRowConverter.SAMPLE_DATE);
+		hasGear = mapping.getProperty(SampleRowConverter.GEAR);
+		hasScheme = mapping.getProperty(SampleRowConverter.SCHEME);
+
+		qualities = new Node[MEASURES.length];
+		for (SampleMapping.Measurement measurement : mapping.measurements) {
+			if (measurement.column == SampleRowConverter.FISH_LENGTH) qualities[LENGTH] = measurement.quality;
+			if (measurement.column == SampleRowConverter.AGE) qualities[AGE] = measurement.quality;
+			if (measurement.column == SampleRowConverter.FISH_WEIGHT) qualities[BIO] = measurement.quality;
+		}
+	}
+
+	// Get the counts for some combination of dimensions - pass null for any dimension that doesn't matter
+	public synchronized Counts lookup(String species, Integer year, Integer quarter, String area, String gear) {
+
+		Counts counts = cells.get(Arrays.asList(species,
+				year == null ? null : year.toString(),
+				quarter == null ? null : quarter.toString(),
+				area, gear));
+		return counts == null ? new Counts() : counts.copy();
+	}
+
+	// Number of full combinations of species, year, quarter, area and gear we have samples for
+	public synchronized int size() {
+
+		int size = 0;
+		for (List<String> key : cells.keySet()) {
+			if (!key.contains(null)) size++;
+		}
+		return size;
+	}
+
+	public synchronized void clear() {
+		cells.clear();
+	}
+
+	// A copy of the counts as they are now, which won't change as rows are counted or samples removed from this one
+	public synchronized SamplingSummaryIndex copy() {
+
+		SamplingSummaryIndex copy = new SamplingSummaryIndex(mapping);
+		for (Map.Entry<List<String>, Counts> cell : cells.entrySet()) copy.cells.put(cell.getKey(), cell.getValue().copy());
+		return copy;
+	}
+
+	// Count a row (in SampleRowConverter.COLUMNS order)
+	public void add(String[] row) {
+
+		String sampleID = row[SampleRowConverter.SAMPLE_ID];
+		if (isBlank(sampleID)) return;
+
+		String[] dimensions = new String[DIMENSIONS];
+		dimensions[SPECIES] = valueOf(row[SampleRowConverter.APHIA_ID]);
+		setDate(dimensions, row[SampleRowConverter.SAMPLE_DATE]);
+		dimensions[AREA] = valueOf(row[SampleRowConverter.ICES_DIV]);
+		dimensions[GEAR] = valueOf(row[SampleRowConverter.GEAR]);
+
+		Counts counts = new Counts();
+		counts.samples = 1;
+		long[] observations = counts.observations;
+		if (!isBlank(row[SampleRowConverter.FISH_LENGTH])) observations[LENGTH] = 1;
+		if (!isBlank(row[SampleRowConverter.AGE])) observations[AGE] = 1;
+		if (!isBlank(row[SampleRowConverter.FISH_WEIGHT])) observations[BIO] = 1;
+		addSchemeCounts(counts, row[SampleRowConverter.SCHEME]);
+
+		apply(dimensions, counts, 1);
+	}
+
+	// Stop counting a sample that is about to be removed from graph - used when an incremental refresh replaces it
+	public void remove(Graph graph, Node sample) {
+
+		if (!graph.contains(sample, RDF.Nodes.type, Node.ANY)) return;
+
+		String[] dimensions = new String[DIMENSIONS];
+		dimensions[SPECIES] = getName(graph, sample, species == null ? null : species.property, species);
+		setDate(dimensions, getValue(graph, sample, hasLandingDate));
+		dimensions[AREA] = getName(graph, sample, division == null ? null : division.property, division);
+		dimensions[GEAR] = valueOf(getValue(graph, sample, hasGear));
+
+		Counts counts = new Counts();
+		counts.samples = 1;
+		for (Triple observation : graph.find(sample, mapping.hasObservation, Node.ANY).toList()) {
+			for (int m = 0; m < MEASURES.length; m++) {
+				if (qualities[m] != null && graph.contains(observation.getObject(), mapping.hasQuality, qualities[m])) counts.observations[m] = 1;
+			}
+		}
+		addSchemeCounts(counts, getValue(graph, sample, hasScheme));
+
+		apply(dimensions, counts, -1);
+	}
+
+	// Add the counts to the cell for the full combination of dimensions and to every cell that leaves some of them out
+	private synchronized void apply(String[] dimensions, Counts counts, int sign) {
+
+		for (int mask = 0; mask < 1 << DIMENSIONS; mask++) {
+			String[] key = new String[DIMENSIONS];
+			for (int d = 0; d < DIMENSIONS; d++) {
+				if ((mask & (1 << d)) == 0) key[d] = dimensions[d];
+			}
+
+			List<String> cellKey = Arrays.asList(key);
+			Counts cell = cells.computeIfAbsent(cellKey, k -> new Counts());
+			cell.add(counts, sign);
+			if (cell.samples <= 0) cells.remove(cellKey);
+		}
+	}
+
+	// Replace any SamplingSummary individuals in graph with ones for the current counts
+	public synchronized void publish(Graph graph) {
+
+		List<Node> oldSummaries = graph.find(Node.ANY, RDF.Nodes.type, summaryClass).mapWith(Triple::getSubject).toList();
+		for (Node summary : oldSummaries) graph.remove(summary, Node.ANY, Node.ANY);
+
+		for (Map.Entry<List<String>, Counts> cell : cells.entrySet()) {
+			List<String> key = cell.getKey();
+			if (key.contains(null)) continue;
+
+			Node summary = NodeFactory.createURI(NS + "SamplingSummary/" + encode(key.get(SPECIES)) + "/" + key.get(YEAR) + "/"
+					+ key.get(QUARTER) + "/" + encode(key.get(AREA)) + "/" + encode(key.get(GEAR)));
+			graph.add(Triple.create(summary, RDF.Nodes.type, summaryClass));
+
+			if (species != null && !key.get(SPECIES).isEmpty()) graph.add(Triple.create(summary, dimensionProperties[SPECIES], NodeFactory.createURI(species.iri.expand(key.get(SPECIES)))));
+			if (!key.get(YEAR).isEmpty()) graph.add(Triple.create(summary, dimensionProperties[YEAR], integer(Long.parseLong(key.get(YEAR)))));
+			if (!key.get(QUARTER).isEmpty()) graph.add(Triple.create(summary, dimensionProperties[QUARTER], integer(Long.parseLong(key.get(QUARTER)))));
+			if (division != null && !key.get(AREA).isEmpty()) graph.add(Triple.create(summary, dimensionProperties[AREA], NodeFactory.createURI(division.iri.expand(key.get(AREA)))));
+			if (!key.get(GEAR).isEmpty()) graph.add(Triple.create(summary, dimensionProperties[GEAR], NodeFactory.createLiteral(key.get(GEAR))));
+
+			Counts counts = cell.getValue();
+			graph.add(Triple.create(summary, sampleCount, integer(counts.samples)));
+			for (int m = 0; m < MEASURES.length; m++) {
+				graph.add(Triple.create(summary, measureProperties[m], integer(counts.observations[m])));
+			}
+			for (Map.Entry<String, long[]> scheme : counts.schemeObservations.entrySet()) {
+				for (int m = 0; m < MEASURES.length; m++) {
+					graph.add(Triple.create(summary, schemeProperty(scheme.getKey(), m), integer(scheme.getValue()[m])));
+				}
+			}
+		}
+	}
+
+	// Replace the counts with those from the SamplingSummary individuals published in graph, so a later
+	// incremental refresh can carry on from them
+	public synchronized void load(Graph graph) {
+
+		cells.clear();
+
+		for (Node summary : graph.find(Node.ANY, RDF.Nodes.type, summaryClass).mapWith(Triple::getSubject).toList()) {
+
+			String[] dimensions = new String[DIMENSIONS];
+			dimensions[SPECIES] = getName(graph, summary, dimensionProperties[SPECIES], species);
+			dimensions[YEAR] = valueOf(getValue(graph, summary, dimensionProperties[YEAR]));
+			dimensions[QUARTER] = valueOf(getValue(graph, summary, dimensionProperties[QUARTER]));
+			dimensions[AREA] = getName(graph, summary, dimensionProperties[AREA], division);
+			dimensions[GEAR] = valueOf(getValue(graph, summary, dimensionProperties[GEAR]));
+
+			Counts counts = new Counts();
+			counts.samples = getCount(graph, summary, sampleCount);
+			for (int m = 0; m < MEASURES.length; m++) counts.observations[m] = getCount(graph, summary, measureProperties[m]);
+
+			for (Triple t : graph.find(summary, Node.ANY, Node.ANY).toList()) {
+				String property = t.getPredicate().getURI();
+				for (int m = 0; m < MEASURES.length; m++) {
+					String suffix = "Scheme" + MEASURES[m] + "Obs";
+					if (property.startsWith(NS) && property.endsWith(suffix)) {
+						String scheme = property.substring(NS.length(), property.length() - suffix.length());
+						counts.schemeObservations.computeIfAbsent(scheme, k -> new long[MEASURES.length])[m] = Long.parseLong(t.getObject().getLiteralLexicalForm());
+					}
+				}
+			}
+
+			if (counts.samples > 0) apply(dimensions, counts, 1);
+		}
+	}
+
+	// The observations are also counted against the sample's scheme, as mi:{Scheme}SchemeLengthObs etc
+	private static void addSchemeCounts(Counts counts, String scheme) {
+
+		String name = schemeName(scheme);
+		if (!name.isEmpty()) counts.schemeObservations.put(name, counts.observations.clone());
+	}
+
+	private static String schemeName(String scheme) {
+		return scheme == null ? "" : scheme.replaceAll("[^A-Za-z0-9]", "");
+	}
+
+	private Node schemeProperty(String scheme, int measure) {
+		return NodeFactory.createURI(NS + scheme + "Scheme" + MEASURES[measure] + "Obs");
+	}
+
+	// Set the year and quarter from a date that starts yyyy-MM-dd
+	private static void setDate(String[] dimensions, String date) {
+
+		dimensions[YEAR] = "";
+		dimensions[QUARTER] = "";
+		if (date == null || date.length() < 10) return;
+
+		try {
+			LocalDate day = LocalDate.parse(date.substring(0, 10));
+			dimensions[YEAR] = String.valueOf(day.getYear());
+			dimensions[QUARTER] = String.valueOf((day.getMonthValue() - 1) / 3 + 1);
+		} catch (DateTimeParseException ex) {
+			// Leave the date as not recorded
+		}
+	}
+
+	private static String getValue(Graph graph, Node subject, Node property) {
+
+		if (property == null) return null;
+		List<Triple> values = graph.find(subject, property, Node.ANY).toList();
+		if (values.isEmpty()) return null;
+		Node value = values.get(0).getObject();
+		return value.isLiteral() ? value.getLiteralLexicalForm() : value.isURI() ? value.getURI() : null;
+	}
+
+	// The code of an individual the mapping linked the sample to, e.g. 127023 for ak:Species/127023
+	private static String getName(Graph graph, Node subject, Node property, SampleMapping.Link link) {
+
+		String uri = link == null ? null : getValue(graph, subject, property);
+		String name = uri == null ? null : link.iri.match(uri);
+		return name == null ? "" : name;
+	}
+
+	private static long getCount(Graph graph, Node subject, Node property) {
+
+		String value = getValue(graph, subject, property);
+		return value == null ? 0 : Long.parseLong(value);
+	}
+
+	private static Node integer(long value) {
+		return NodeFactory.createLiteral(String.valueOf(value), XSDDatatype.XSDinteger);
+	}
+
+	private static String encode(String value) {
+
+		try {
+			return value.isEmpty() ? "-" : URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static String valueOf(String value) {
+		return value == null ? "" : value;
+	}
+
+	private static boolean isBlank(String value) {
+		return value == null || value.isEmpty();
+	}
+
+	@Override
+	public synchronized String toString() {
+		Counts all = cells.get(Arrays.asList(new String[DIMENSIONS]));
+		return size() + " species/year/quarter/area/gear combinations, " + (all == null ? "no samples" : all.toString());
+	}
+
+}
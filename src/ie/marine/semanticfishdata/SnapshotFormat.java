@@ -0,0 +1,120 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// The file formats we can save a snapshot of the data in. Apart from RDF/XML (which we keep so data
+// saved by earlier runs can still be read) these are all written and read as a stream of triples, so neither
+// direction has to build the whole document in memory. Binary RDF Thrift is the quickest to read back.
+public enum SnapshotFormat {
+
+	RDFXML("rdfxml", ".rdf", Lang.RDFXML, RDFFormat.RDFXML, false),
+	THRIFT("thrift", ".trdf", Lang.RDFTHRIFT, RDFFormat.RDF_THRIFT, false),
+	THRIFT_GZ("thrift.gz", ".trdf.gz", Lang.RDFTHRIFT, RDFFormat.RDF_THRIFT, true),
+	NTRIPLES_GZ("nt.gz", ".nt.gz", Lang.NTRIPLES, RDFFormat.NTRIPLES, true),
+	TURTLE_GZ("ttl.gz", ".ttl.gz", Lang.TURTLE, RDFFormat.TURTLE_BLOCKS, true);
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// Writes the content of a file
+	public interface Content {
+		void write(OutputStream out) throws IOException;
+	}
+
+	private final String name;
+	private final String extension;
+	private final Lang lang;
+	private final RDFFormat format;
+	private final boolean gzip;
+
+	SnapshotFormat(String name, String extension, Lang lang, RDFFormat format, boolean gzip) {
+		this.name = name;
+		this.extension = extension;
+		this.lang = lang;
+		this.format = format;
+		this.gzip = gzip;
+	}
+
+	// Find a format from its name in the config file e.g. "thrift" or "nt.gz"
+	public static SnapshotFormat forName(String name) {
+
+		for (SnapshotFormat f : values()) {
+			if (f.name.equalsIgnoreCase(name)) return f;
+		}
+		throw new IllegalArgumentException("Unknown snapshot format: " + name);
+	}
+
+	public String getExtension() {
+		return extension;
+	}
+
+	// Stream the triples of a graph out to file
+	public void write(Graph graph, File file) throws IOException {
+
+		replace(file, out -> {
+			try (OutputStream compressed = gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : out) {
+				if (this == RDFXML) {
+					RDFDataMgr.write(compressed, graph, format);
+				} else {
+					StreamRDFWriter.write(compressed, graph, format);
+				}
+			}
+		});
+	}
+
+	// Write file by writing a new file alongside it which then takes its place, so a crash or a full disk can't
+	// leave half a file where the old one was for the next run (or a file watcher) to load
+	public static void replace(File file, Content content) throws IOException {
+
+		File newFile = new File(file.getPath() + ".new");
+		try {
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(newFile), BUFFER_SIZE)) {
+				content.write(out);
+			}
+			Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(newFile.toPath());
+		}
+	}
+
+	// Stream the triples from file into a graph
+	public void read(File file, Graph graph) throws IOException {
+
+		try (InputStream in = openInput(file)) {
+			RDFParser.source(in).forceLang(lang).parse(graph);
+		}
+	}
+
+	// Stream the triples from file into any sink
+	public void read(File file, StreamRDF sink) throws IOException {
+
+		try (InputStream in = openInput(file)) {
+			RDFParser.source(in).forceLang(lang).parse(sink);
+		}
+	}
+
+	private InputStream openInput(File file) throws IOException {
+
+		InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		return gzip ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+	}
+
+}
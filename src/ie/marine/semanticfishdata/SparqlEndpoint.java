@@ -0,0 +1,453 @@
+package ie.marine.semanticfishdata;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.QueryCancelledException;
+import org.apache.jena.query.QueryParseException;
+import org.apache.jena.query.QuerySolutionMap;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.system.PrefixMapFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.util.NodeFactoryExtra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+// A small SPARQL HTTP endpoint, using the JDK's built in HTTP server, that answers queries straight from the
+// dataset this process has loaded. It supports:
+//   GET or POST /sparql?query=...			any SELECT query
+//   GET /queries/{name}?var=value			one of the QueryService's saved queries, with values for its variables
+//											(a value is read as an RDF term e.g. <http://...> or "7.b", or else as a plain string)
+//   GET /summary?species=127023&year=2019	the sampling summary counts from the SamplingSummaryIndex - give any of species (AphiaID),
+//											year, quarter, area and gear, and leave out the dimensions that don't matter
+//   GET /measurements?quality=Length&min=40&species=126484&division=7.g
+//											the observations with values from min to max (both optional) from the MeasurementIndex
+//   GET /metrics							the loading and query metrics, as Prometheus text or as JSON with format=json
+//   POST /refresh							reload the data in the background (only from this machine, and only if a refresh handler is set)
+// Results are returned as JSON unless a format parameter (csv, tsv, json or text) or Accept header asks for something else.
+//
+// Each request uses whichever QueryService was current when it started, so when a refresh swaps in a new one the
+// queries already running carry on against the old data, and the indexes are swapped in the same way. Only a limited
+// number of SPARQL queries run at once - others wait briefly then get a 503.
+public class SparqlEndpoint {
+
+	// Largest query we'll accept in a POST body
+	private static final int MAX_QUERY_LENGTH = 1024 * 1024;
+
+	// Only used to turn the values given for saved queries' variables into RDFNodes
+	private static final Model VALUES = ModelFactory.createDefaultModel();
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Semaphore runningQueries;
+	private final long queueWaitMillis;
+	private final AtomicReference<QueryService> queryService;
+	private volatile Runnable refreshHandler;
+	private volatile SamplingSummaryIndex summaryIndex;
+	private volatile Supplier<MeasurementIndex> measurementIndex;
+
+	public SparqlEndpoint(int port, QueryService queryService, int maxConcurrentQueries, long queueWaitMillis) throws IOException {
+		this(null, port, queryService, maxConcurrentQueries, queueWaitMillis);
+	}
+
+	// host is the address to listen on, e.g. 127.0.0.1 to only answer this machine - or null for every address
+	public SparqlEndpoint(String host, int port, QueryService queryService, int maxConcurrentQueries, long queueWaitMillis) throws IOException {
+
+		if (maxConcurrentQueries < 1) throw new IllegalArgumentException("Need to allow at least one query at a time");
+
+		this.queryService = new AtomicReference<QueryService>(queryService);
+		this.runningQueries = new Semaphore(maxConcurrentQueries);
+		this.queueWaitMillis = queueWaitMillis;
+
+		// A few more threads than queries so requests over the limit can be turned away promptly
+		executor = Executors.newFixedThreadPool(maxConcurrentQueries * 2);
+		server = HttpServer.create(host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port), 0);
+		server.setExecutor(executor);
+		server.createContext("/sparql", this::handleQuery);
+		server.createContext("/queries/", this::handleSavedQuery);
+		server.createContext("/summary", this::handleSummary);
+		server.createContext("/measurements", this::handleMeasurements);
+		server.createContext("/metrics", this::handleMetrics);
+		server.createContext("/refresh", this::handleRefresh);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(1);
+		executor.shutdownNow();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	// Serve a different dataset from now on. Queries that have already started finish against the old one
+	public void setQueryService(QueryService newQueryService) {
+		queryService.set(newQueryService);
+	}
+
+	public QueryService getQueryService() {
+		return queryService.get();
+	}
+
+	// The sampling summary counts for the data being served. They shouldn't change while they're being served, so
+	// give the endpoint a copy
+	public void setSummaryIndex(SamplingSummaryIndex index) {
+		summaryIndex = index;
+	}
+
+	// The measurement index for the data being served, which can be built when it's first asked for
+	public void setMeasurementIndex(Supplier<MeasurementIndex> index) {
+		measurementIndex = index;
+	}
+
+	// What POST /refresh does. It should start the refresh and return straight away
+	public void setRefreshHandler(Runnable handler) {
+		refreshHandler = handler;
+	}
+
+	private void handleQuery(HttpExchange exchange) throws IOException {
+
+		try {
+			Map<String, String> params = getParameters(exchange);
+			String queryString = params.get("query");
+			if (queryString == null) {
+				sendError(exchange, 400, "No query given");
+				return;
+			}
+
+			QueryService service = queryService.get();
+			QueryService.PreparedQuery prepared;
+			try {
+				prepared = service.prepare(queryString);
+			} catch (QueryParseException | IllegalArgumentException ex) {
+				sendError(exchange, 400, ex.getMessage());
+				return;
+			}
+
+			runQuery(exchange, service, prepared, null, params);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleSavedQuery(HttpExchange exchange) throws IOException {
+
+		try {
+			String name = exchange.getRequestURI().getPath().substring("/queries/".length());
+			QueryService service = queryService.get();
+			QueryService.PreparedQuery prepared = service.getQuery(name);
+			if (prepared == null) {
+				sendError(exchange, 404, "No query called " + name + " - the saved queries are " + service.getQueryNames());
+				return;
+			}
+
+			Map<String, String> params = getParameters(exchange);
+			QuerySolutionMap bindings = new QuerySolutionMap();
+			for (Map.Entry<String, String> param : params.entrySet()) {
+				if (!"format".equals(param.getKey())) {
+					bindings.add(param.getKey(), VALUES.asRDFNode(parseValue(param.getValue(), prepared)));
+				}
+			}
+
+			runQuery(exchange, service, prepared, bindings, params);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleSummary(HttpExchange exchange) throws IOException {
+
+		try {
+			SamplingSummaryIndex index = summaryIndex;
+			if (index == null) {
+				sendError(exchange, 404, "Sampling summaries aren't available");
+				return;
+			}
+
+			Map<String, String> params = getParameters(exchange);
+			SamplingSummaryIndex.Counts counts;
+			try {
+				counts = index.lookup(params.get("species"), getInteger(params, "year"), getInteger(params, "quarter"), params.get("area"), params.get("gear"));
+			} catch (NumberFormatException ex) {
+				sendError(exchange, 400, "The year and quarter must be numbers");
+				return;
+			}
+
+			BindingMap row = BindingFactory.create();
+			row.add(Var.alloc("samples"), integer(counts.getSamples()));
+			row.add(Var.alloc("lengthObs"), integer(counts.getLengthObs()));
+			row.add(Var.alloc("ageObs"), integer(counts.getAgeObs()));
+			row.add(Var.alloc("bioObs"), integer(counts.getBioObs()));
+			sendResults(exchange, params, Arrays.asList("samples", "lengthObs", "ageObs", "bioObs"), Arrays.<Binding> asList(row));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleMeasurements(HttpExchange exchange) throws IOException {
+
+		try {
+			Supplier<MeasurementIndex> index = measurementIndex;
+			if (index == null) {
+				sendError(exchange, 404, "The measurement index isn't available");
+				return;
+			}
+
+			Map<String, String> params = getParameters(exchange);
+			String quality = params.get("quality");
+			if (quality == null) {
+				sendError(exchange, 400, "No quality given - e.g. Length, Weight or Age");
+				return;
+			}
+
+			List<Node> observations;
+			try {
+				observations = index.get().find(quality, getDouble(params, "min", Double.NEGATIVE_INFINITY), getDouble(params, "max", Double.POSITIVE_INFINITY),
+						params.get("species"), params.get("division"));
+			} catch (NumberFormatException ex) {
+				sendError(exchange, 400, "min and max must be numbers");
+				return;
+			}
+
+			List<Binding> rows = new ArrayList<Binding>();
+			for (Node observation : observations) rows.add(BindingFactory.binding(Var.alloc("observation"), observation));
+			sendResults(exchange, params, Arrays.asList("observation"), rows);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	// Write results worked out from the indexes in the same formats as the SPARQL results
+	private static void sendResults(HttpExchange exchange, Map<String, String> params, List<String> vars, List<Binding> rows) throws IOException {
+
+		QueryService.ResultFormat format;
+		try {
+			format = getFormat(exchange, params);
+		} catch (IllegalArgumentException ex) {
+			sendError(exchange, 400, "Unknown format " + params.get("format"));
+			return;
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		QueryService.write(new ResultSetStream(vars, null, new QueryIterPlainWrapper(rows.iterator())), format, body);
+
+		exchange.getResponseHeaders().set("Content-Type", getContentType(format));
+		exchange.sendResponseHeaders(200, body.size());
+		try (OutputStream out = exchange.getResponseBody()) {
+			body.writeTo(out);
+		}
+	}
+
+	private static Integer getInteger(Map<String, String> params, String name) {
+		return params.containsKey(name) ? Integer.valueOf(params.get(name).trim()) : null;
+	}
+
+	private static double getDouble(Map<String, String> params, String name, double defaultValue) {
+		return params.containsKey(name) ? Double.parseDouble(params.get(name).trim()) : defaultValue;
+	}
+
+	private static Node integer(long value) {
+		return NodeFactory.createLiteral(String.valueOf(value), XSDDatatype.XSDinteger);
+	}
+
+	// The metrics come from the current QueryService, which shares them with the loading code
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+
+		try {
+			Metrics metrics = queryService.get().getMetrics();
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			boolean json = "json".equalsIgnoreCase(getParameters(exchange).get("format"));
+			if (json) metrics.writeJson(body);
+			else metrics.writePrometheus(body);
+
+			exchange.getResponseHeaders().set("Content-Type", json ? "application/json; charset=utf-8" : "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.size());
+			try (OutputStream out = exchange.getResponseBody()) {
+				body.writeTo(out);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleRefresh(HttpExchange exchange) throws IOException {
+
+		try {
+			Runnable handler = refreshHandler;
+			if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+				sendError(exchange, 405, "Use POST to refresh the data");
+			} else if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+				sendError(exchange, 403, "The data can only be refreshed from this machine");
+			} else if (handler == null) {
+				sendError(exchange, 404, "Refreshing isn't enabled");
+			} else {
+				handler.run();
+				sendMessage(exchange, 202, "Refresh started");
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void runQuery(HttpExchange exchange, QueryService service, QueryService.PreparedQuery prepared, QuerySolutionMap bindings, Map<String, String> params) throws IOException {
+
+		QueryService.ResultFormat format;
+		try {
+			format = getFormat(exchange, params);
+		} catch (IllegalArgumentException ex) {
+			sendError(exchange, 400, "Unknown format " + params.get("format"));
+			return;
+		}
+
+		boolean acquired = false;
+		try {
+			acquired = runningQueries.tryAcquire(queueWaitMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (!acquired) {
+			service.getMetrics().counter("semanticfishdata_endpoint_rejected_total", "Queries turned away because too many were running").inc();
+			sendError(exchange, 503, "Too many queries running - try again later");
+			return;
+		}
+
+		try {
+			// The results are written as they are read so we don't know the length up front
+			exchange.getResponseHeaders().set("Content-Type", getContentType(format));
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream out = exchange.getResponseBody()) {
+				service.execute(prepared, bindings, format, out);
+			}
+		} catch (QueryCancelledException ex) {
+			// Too late to change the status - the results will just stop short
+			System.out.println("Query timed out after " + prepared.getTimeoutMillis() + " ms: " + prepared.getName());
+		} catch (RuntimeException ex) {
+			System.out.println("Query failed: " + ex.getMessage());
+		} finally {
+			runningQueries.release();
+		}
+	}
+
+	// Read a value for a saved query's variable - an RDF term if it is one, otherwise a plain string
+	private static Node parseValue(String value, QueryService.PreparedQuery prepared) {
+
+		try {
+			return NodeFactoryExtra.parseNode(value, PrefixMapFactory.create(prepared.getQuery().getPrefixMapping()));
+		} catch (RuntimeException ex) {
+			return NodeFactory.createLiteral(value);
+		}
+	}
+
+	private static QueryService.ResultFormat getFormat(HttpExchange exchange, Map<String, String> params) {
+
+		if (params.containsKey("format")) return QueryService.ResultFormat.forName(params.get("format"));
+
+		String accept = exchange.getRequestHeaders().getFirst("Accept");
+		if (accept != null) {
+			if (accept.contains("text/csv")) return QueryService.ResultFormat.CSV;
+			if (accept.contains("text/tab-separated-values")) return QueryService.ResultFormat.TSV;
+			if (accept.contains("text/plain")) return QueryService.ResultFormat.TEXT;
+		}
+		return QueryService.ResultFormat.JSON;
+	}
+
+	private static String getContentType(QueryService.ResultFormat format) {
+
+		switch (format) {
+		case CSV:
+			return "text/csv; charset=utf-8";
+		case TSV:
+			return "text/tab-separated-values; charset=utf-8";
+		case TEXT:
+			return "text/plain; charset=utf-8";
+		default:
+			return "application/sparql-results+json; charset=utf-8";
+		}
+	}
+
+	// The parameters from the URL, plus those from a POSTed form or the query itself if it was POSTed as application/sparql-query
+	private static Map<String, String> getParameters(HttpExchange exchange) throws IOException {
+
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		addParameters(exchange.getRequestURI().getRawQuery(), params);
+
+		if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+			String body = readBody(exchange.getRequestBody());
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			if (contentType != null && contentType.startsWith("application/sparql-query")) {
+				params.put("query", body);
+			} else {
+				addParameters(body, params);
+			}
+		}
+		return params;
+	}
+
+	private static void addParameters(String encoded, Map<String, String> params) throws UnsupportedEncodingException {
+
+		if (encoded == null || encoded.isEmpty()) return;
+
+		for (String pair : encoded.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0) {
+				params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+		}
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+			body.write(buffer, 0, n);
+			if (body.size() > MAX_QUERY_LENGTH) throw new IOException("Query is too long");
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		sendMessage(exchange, status, message);
+	}
+
+	private static void sendMessage(HttpExchange exchange, int status, String message) throws IOException {
+
+		byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.sparql.core.Quad;
+
+// Sends everything written to it on to two StreamRDF sinks, e.g. an in-memory graph and a file writer
+public class StreamRDFTee extends StreamRDFWrapper {
+
+	private final StreamRDF other;
+
+	public StreamRDFTee(StreamRDF first, StreamRDF second) {
+		super(first);
+		other = second;
+	}
+
+	@Override
+	public void start() {
+		super.start();
+		other.start();
+	}
+
+	@Override
+	public void triple(Triple triple) {
+		super.triple(triple);
+		other.triple(triple);
+	}
+
+	@Override
+	public void quad(Quad quad) {
+		super.quad(quad);
+		other.quad(quad);
+	}
+
+	@Override
+	public void base(String base) {
+		super.base(base);
+		other.base(base);
+	}
+
+	@Override
+	public void prefix(String prefix, String iri) {
+		super.prefix(prefix, iri);
+		other.prefix(prefix, iri);
+	}
+
+	@Override
+	public void finish() {
+		super.finish();
+		other.finish();
+	}
+
+}
@@ -0,0 +1,371 @@
+package ie.marine.semanticfishdata;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.vocabulary.OWL;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Links from our Species and ICESDivision individuals to the same things in the ICES and WoRMS code lists.
+// The code lists are read once from local RDF dumps (e.g. of https://vocab.ices.dk/services/rdf/collection/SpecWoRMS)
+// and what each code links to is kept in a compact hash table keyed by code list and code, so linking an individual
+// while loading is a single lookup however big the code lists are. The table can be saved and read back by later
+// runs, as long as the dumps haven't changed, so they don't have to be parsed again.
+//
+// An individual is linked to its code's concept with skos:exactMatch, and also gets the links the concept itself has
+// to other code lists (e.g. from a WoRMS species to its ICES species code, either way round). A code in SpecWoRMS is
+// an AphiaID, so the individual is also owl:sameAs the taxon's WoRMS LSID.
+public class VocabularyIndex {
+
+	public static final String ICES_VOCAB = "https://vocab.ices.dk/services/rdf/collection/";
+	public static final String WORMS = "urn:lsid:marinespecies.org:taxname:";
+	public static final String SKOS = "http://www.w3.org/2004/02/skos/core#";
+
+	// The code lists we know, which the mapping file names in link.*.vocabulary
+	private static final String[] CODE_LISTS = { "IC_Species", "IC_Divisions", "IC_Sub-areas", "IC_AreaTopLevel", "IC_GearType", "SpecWoRMS", "SpecASFIS" };
+	private static final int SPEC_WORMS = 5;
+
+	// The properties an individual can be linked by, and the ones a concept's links to other code lists can use
+	private static final Node[] PROPERTIES = { NodeFactory.createURI(SKOS + "exactMatch"), NodeFactory.createURI(SKOS + "closeMatch"),
+			NodeFactory.createURI(SKOS + "relatedMatch"), NodeFactory.createURI(SKOS + "broadMatch"), NodeFactory.createURI(SKOS + "narrowMatch"),
+			NodeFactory.createURI(SKOS + "related"), OWL.sameAs.asNode() };
+	private static final int EXACT_MATCH = 0;
+	private static final int BROAD_MATCH = 3;
+	private static final int NARROW_MATCH = 4;
+	private static final int SAME_AS = 6;
+
+	private static final Node NOTATION = NodeFactory.createURI(SKOS + "notation");
+
+	// A link is held in an int, with its property's number in the top bits and its target's number in the rest
+	private static final int TARGET_BITS = 28;
+	private static final int TARGET_MASK = (1 << TARGET_BITS) - 1;
+
+	private static final int MAGIC = 0x53464456;
+	private static final int VERSION = 1;
+
+	// The dumps the index was made from, with their sizes and modified times, so we can tell when it's out of date
+	private final List<String> sources;
+
+	// Every IRI that is linked to, each held once
+	private final Node[] targets;
+
+	// Code i is keys[i] ("code list" + space + "code") and its links are links[linkStarts[i]] up to links[linkStarts[i + 1]]
+	private final String[] keys;
+	private final int[] linkStarts;
+	private final int[] links;
+
+	// Open addressing hash table of code numbers, each plus one so an empty slot is 0
+	private final int[] table;
+
+	private VocabularyIndex(List<String> sources, Node[] targets, String[] keys, int[] linkStarts, int[] links) {
+
+		this.sources = sources;
+		this.targets = targets;
+		this.keys = keys;
+		this.linkStarts = linkStarts;
+		this.links = links;
+
+		// Keep the table no more than half full so probes stay short
+		table = new int[Integer.highestOneBit(Math.max(keys.length, 1) * 2 + 1) << 1];
+		for (int i = 0; i < keys.length; i++) {
+			int slot = slotOf(keys[i]);
+			while (table[slot] != 0) slot = (slot + 1) & (table.length - 1);
+			table[slot] = i + 1;
+		}
+	}
+
+	// An index with no codes in it, for when there are no code lists to link to
+	public static VocabularyIndex empty() {
+		return new VocabularyIndex(new ArrayList<String>(), new Node[0], new String[0], new int[1], new int[0]);
+	}
+
+	// The number the mapping file uses for a code list
+	public static int codeList(String name) {
+
+		for (int i = 0; i < CODE_LISTS.length; i++) {
+			if (CODE_LISTS[i].equalsIgnoreCase(name)) return i;
+		}
+		throw new IllegalArgumentException("Unknown code list: " + name + " - use one of " + Arrays.toString(CODE_LISTS));
+	}
+
+	// Emit the links from individual to whatever the code is in the code list. Returns false if the code isn't in it
+	public boolean addLinks(Node individual, int codeList, String code, StreamRDF out) {
+
+		int entry = find(CODE_LISTS[codeList] + " " + code.trim());
+		if (entry < 0) return false;
+
+		for (int i = linkStarts[entry]; i < linkStarts[entry + 1]; i++) {
+			out.triple(Triple.create(individual, PROPERTIES[links[i] >>> TARGET_BITS], targets[links[i] & TARGET_MASK]));
+		}
+		return true;
+	}
+
+	private int find(String key) {
+
+		for (int slot = slotOf(key); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) {
+			if (keys[table[slot] - 1].equals(key)) return table[slot] - 1;
+		}
+		return -1;
+	}
+
+	private int slotOf(String key) {
+
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (table.length - 1);
+	}
+
+	// The number of codes, over all the code lists
+	public int size() {
+		return keys.length;
+	}
+
+	// Parse the code lists in the dumps (any RDF syntax Jena can read, possibly gzipped)
+	public static VocabularyIndex parse(List<File> dumps) {
+
+		Builder builder = new Builder();
+		for (File dump : dumps) {
+			RDFParser.source(dump.getPath()).parse(new StreamRDFBase() {
+				@Override
+				public void triple(Triple triple) {
+					builder.add(triple);
+				}
+			});
+		}
+		return builder.build(signatures(dumps));
+	}
+
+	// Read an index saved by an earlier run. Returns null if there isn't one, it was made from different dumps or
+	// from ones that have changed since, or it can't be read (e.g. it was cut short) - it's then made again
+	public static VocabularyIndex read(File file, List<File> dumps) {
+
+		if (!file.exists()) return null;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+
+			// Every entry takes at least a byte, so no count can be more than the file's length
+			long limit = file.length();
+
+			List<String> sources = new ArrayList<String>();
+			for (int i = readCount(in, limit); i > 0; i--) sources.add(in.readUTF());
+			if (!sources.equals(signatures(dumps))) return null;
+
+			Node[] targets = new Node[readCount(in, limit)];
+			for (int i = 0; i < targets.length; i++) targets[i] = NodeFactory.createURI(in.readUTF());
+
+			String[] keys = new String[readCount(in, limit)];
+			int[] linkStarts = new int[keys.length + 1];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = in.readUTF();
+				linkStarts[i + 1] = linkStarts[i] + readCount(in, limit);
+				if (linkStarts[i + 1] > limit) throw new IOException("there are more links than will fit in the file");
+			}
+
+			int[] links = new int[linkStarts[keys.length]];
+			for (int i = 0; i < links.length; i++) {
+				links[i] = in.readInt();
+				if ((links[i] >>> TARGET_BITS) >= PROPERTIES.length || (links[i] & TARGET_MASK) >= targets.length) throw new IOException("link " + i + " is out of range");
+			}
+			if (in.read() != -1) throw new IOException("there's more after the links");
+
+			return new VocabularyIndex(sources, targets, keys, linkStarts, links);
+		} catch (IOException | RuntimeException ex) {
+			System.out.println("Can't read the vocabulary index in " + file + " (" + ex + ") - it will be made again");
+			return null;
+		}
+	}
+
+	private static int readCount(DataInputStream in, long limit) throws IOException {
+
+		int count = in.readInt();
+		if (count < 0 || count > limit) throw new IOException("count of " + count + " is out of range");
+		return count;
+	}
+
+	// Save the index for later runs. It's written to a new file which then replaces the old one, so a run that's
+	// stopped part way through can't leave half an index behind
+	public void save(File file) throws IOException {
+
+		SnapshotFormat.replace(file, stream -> {
+			DataOutputStream out = new DataOutputStream(stream);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(sources.size());
+			for (String source : sources) out.writeUTF(source);
+
+			out.writeInt(targets.length);
+			for (Node target : targets) out.writeUTF(target.getURI());
+
+			out.writeInt(keys.length);
+			for (int i = 0; i < keys.length; i++) {
+				out.writeUTF(keys[i]);
+				out.writeInt(linkStarts[i + 1] - linkStarts[i]);
+			}
+
+			for (int link : links) out.writeInt(link);
+			out.flush();
+		});
+	}
+
+	private static List<String> signatures(List<File> dumps) {
+
+		List<String> signatures = new ArrayList<String>();
+		for (File dump : dumps) signatures.add(dump.getAbsolutePath() + " " + dump.length() + " " + dump.lastModified());
+		return signatures;
+	}
+
+	// Collects the concepts in the dumps and their links, then lays them out in arrays
+	private static final class Builder {
+
+		// Each concept's codes (the end of its IRI and any skos:notation) and links, by its IRI
+		private final Map<String, Set<String>> codes = new TreeMap<String, Set<String>>();
+		private final Map<String, Set<Link>> conceptLinks = new HashMap<String, Set<Link>>();
+
+		void add(Triple triple) {
+
+			if (!triple.getSubject().isURI()) return;
+			String concept = triple.getSubject().getURI();
+			int subjectList = codeListOf(concept);
+			if (subjectList < 0) return;
+
+			codes.computeIfAbsent(concept, key -> new LinkedHashSet<String>()).add(codeOf(concept, subjectList));
+
+			Node object = triple.getObject();
+			if (triple.getPredicate().equals(NOTATION) && object.isLiteral()) {
+				codes.get(concept).add(object.getLiteralLexicalForm().trim());
+				return;
+			}
+
+			int property = Arrays.asList(PROPERTIES).indexOf(triple.getPredicate());
+			if (property < 0 || !object.isURI() || object.getURI().equals(concept)) return;
+
+			conceptLinks.computeIfAbsent(concept, key -> new LinkedHashSet<Link>()).add(new Link(property, object.getURI()));
+
+			// A link between two code lists works either way round
+			if (codeListOf(object.getURI()) >= 0) {
+				int inverse = property == BROAD_MATCH ? NARROW_MATCH : property == NARROW_MATCH ? BROAD_MATCH : property;
+				conceptLinks.computeIfAbsent(object.getURI(), key -> new LinkedHashSet<Link>()).add(new Link(inverse, concept));
+			}
+		}
+
+		VocabularyIndex build(List<String> sources) {
+
+			Map<String, Integer> targetNumbers = new HashMap<String, Integer>();
+			List<Node> targets = new ArrayList<Node>();
+			Map<String, Set<Integer>> keyLinks = new TreeMap<String, Set<Integer>>();
+
+			for (Map.Entry<String, Set<String>> concept : codes.entrySet()) {
+				int codeList = codeListOf(concept.getKey());
+
+				List<Link> links = new ArrayList<Link>();
+				links.add(new Link(EXACT_MATCH, concept.getKey()));
+				if (codeList == SPEC_WORMS) links.add(new Link(SAME_AS, WORMS + codeOf(concept.getKey(), codeList)));
+				if (conceptLinks.containsKey(concept.getKey())) links.addAll(conceptLinks.get(concept.getKey()));
+
+				Set<String> conceptCodes = new LinkedHashSet<String>(concept.getValue());
+				// ICES areas are all in FAO area 27, which our divisions leave off e.g. 7.g for 27.7.g
+				for (String code : concept.getValue()) {
+					if (code.startsWith("27.") && code.length() > 3) conceptCodes.add(code.substring(3));
+				}
+
+				for (String code : conceptCodes) {
+					Set<Integer> encoded = keyLinks.computeIfAbsent(CODE_LISTS[codeList] + " " + code, key -> new LinkedHashSet<Integer>());
+					for (Link link : links) {
+						Integer target = targetNumbers.get(link.target);
+						if (target == null) {
+							target = targets.size();
+							if (target > TARGET_MASK) throw new IllegalStateException("Too many code list IRIs to index");
+							targetNumbers.put(link.target, target);
+							targets.add(NodeFactory.createURI(link.target));
+						}
+						encoded.add(link.property << TARGET_BITS | target);
+					}
+				}
+			}
+
+			String[] keys = new String[keyLinks.size()];
+			int[] linkStarts = new int[keys.length + 1];
+			int[] links = new int[keyLinks.values().stream().mapToInt(Set::size).sum()];
+			int i = 0;
+			for (Map.Entry<String, Set<Integer>> entry : keyLinks.entrySet()) {
+				keys[i] = entry.getKey();
+				linkStarts[i + 1] = linkStarts[i];
+				for (int link : entry.getValue()) links[linkStarts[i + 1]++] = link;
+				i++;
+			}
+
+			return new VocabularyIndex(sources, targets.toArray(new Node[targets.size()]), keys, linkStarts, links);
+		}
+	}
+
+	private static final class Link {
+
+		final int property;
+		final String target;
+
+		Link(int property, String target) {
+			this.property = property;
+			this.target = target;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Link && ((Link) o).property == property && ((Link) o).target.equals(target);
+		}
+
+		@Override
+		public int hashCode() {
+			return property * 31 + target.hashCode();
+		}
+	}
+
+	// Which of our code lists an IRI is a concept in, or -1 if none
+	private static int codeListOf(String iri) {
+
+		if (!iri.startsWith(ICES_VOCAB)) return -1;
+		for (int i = 0; i < CODE_LISTS.length; i++) {
+			if (iri.startsWith(CODE_LISTS[i] + "/", ICES_VOCAB.length())) return i;
+		}
+		return -1;
+	}
+
+	// The code at the end of a concept's IRI
+	private static String codeOf(String iri, int codeList) {
+
+		String code = iri.substring(ICES_VOCAB.length() + CODE_LISTS[codeList].length() + 1);
+		try {
+			return URLDecoder.decode(code, "UTF-8");
+		} catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+			return code;
+		}
+	}
+
+	@Override
+	public String toString() {
+
+		Map<String, Integer> counts = new TreeMap<String, Integer>();
+		for (String key : keys) counts.merge(key.substring(0, key.indexOf(' ')), 1, Integer::sum);
+		return keys.length + " codes " + counts + " linking to " + targets.length + " IRIs";
+	}
+
+}
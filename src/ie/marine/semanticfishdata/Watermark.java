@@ -0,0 +1,118 @@
+package ie.marine.semanticfishdata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.LocalDate;
+import java.util.Properties;
+import java.util.function.Predicate;
+
+// Records how far through the sampling data we have got - the latest SampleDate and the highest SampleID
+// we have loaded - so an incremental refresh only needs to fetch rows newer than that
+public class Watermark {
+
+	private String lastSampleDate;
+	private String lastSampleID;
+
+	public String getLastSampleDate() {
+		return lastSampleDate;
+	}
+
+	public String getLastSampleID() {
+		return lastSampleID;
+	}
+
+	public boolean isSet() {
+		return lastSampleDate != null || lastSampleID != null;
+	}
+
+	// Move the watermark on if this row is later than anything we've seen so far
+	public synchronized void advance(String sampleDate, String sampleID) {
+
+		if (sampleDate != null && !sampleDate.isEmpty() && (lastSampleDate == null || sampleDate.compareTo(lastSampleDate) > 0)) {
+			lastSampleDate = sampleDate;
+		}
+		if (sampleID != null && !sampleID.isEmpty() && (lastSampleID == null || compareIDs(sampleID, lastSampleID) > 0)) {
+			lastSampleID = sampleID;
+		}
+	}
+
+	// Wrap a row source so the watermark moves on as each row is read
+	public RowSource track(RowSource source) {
+
+		return row -> {
+			if (!source.next(row)) return false;
+			advance(row[SampleRowConverter.SAMPLE_DATE], row[SampleRowConverter.SAMPLE_ID]);
+			return true;
+		};
+	}
+
+	// The rows an incremental refresh needs - the same ones the incremental query fetches from the database. Used
+	// when the rows come from a file, which has everything in it
+	public Predicate<String[]> newRows(int lookbackDays) {
+
+		String fromDate = getRefreshFromDate(lookbackDays).toString();
+		String fromSampleID = lastSampleID;
+		return row -> {
+			String sampleDate = row[SampleRowConverter.SAMPLE_DATE];
+			String sampleID = row[SampleRowConverter.SAMPLE_ID];
+			return fromSampleID == null
+					|| sampleDate != null && sampleDate.length() >= 10 && sampleDate.substring(0, 10).compareTo(fromDate) >= 0
+					|| sampleID != null && compareIDs(sampleID, fromSampleID) > 0;
+		};
+	}
+
+	// The earliest landing date an incremental refresh needs to look at. Going back a few days before the
+	// watermark picks up samples that were corrected after we last loaded them
+	public LocalDate getRefreshFromDate(int lookbackDays) {
+
+		if (lastSampleDate == null) return LocalDate.of(1900, 1, 1);
+		return LocalDate.parse(lastSampleDate.substring(0, 10)).minusDays(lookbackDays);
+	}
+
+	// SampleIDs are compared as numbers if they look like numbers
+	private static int compareIDs(String a, String b) {
+
+		try {
+			return Long.compare(Long.parseLong(a), Long.parseLong(b));
+		} catch (NumberFormatException ex) {
+			return a.compareTo(b);
+		}
+	}
+
+	// Read a watermark saved by an earlier run - if there isn't one we get an empty watermark
+	public static Watermark load(File file) throws IOException {
+
+		Watermark watermark = new Watermark();
+		if (!file.exists()) return watermark;
+
+		Properties prop = new Properties();
+		try (InputStream is = new FileInputStream(file)) {
+			prop.load(is);
+		}
+		watermark.lastSampleDate = prop.getProperty("lastSampleDate");
+		watermark.lastSampleID = prop.getProperty("lastSampleID");
+
+		return watermark;
+	}
+
+	public void save(File file) throws IOException {
+
+		Properties prop = new Properties();
+		if (lastSampleDate != null) prop.setProperty("lastSampleDate", lastSampleDate);
+		if (lastSampleID != null) prop.setProperty("lastSampleID", lastSampleID);
+
+		try (OutputStream os = new FileOutputStream(file)) {
+			prop.store(os, "Latest sample loaded by SemanticFishData");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SampleDate " + lastSampleDate + ", SampleID " + lastSampleID;
+	}
+
+}
@@ -0,0 +1,117 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchQueryRunnerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String PREFIXES = "PREFIX ak: <http://example.org/ak#>\n";
+
+	// Five samples
+	private static QueryService service() {
+
+		Graph graph = GraphFactory.createGraphMem();
+		for (int i = 1; i <= 5; i++) {
+			graph.add(Triple.create(NodeFactory.createURI("http://example.org/ak#Sample/" + i), NodeFactory.createURI("http://example.org/ak#hasAge"), NodeFactory.createLiteral(Integer.toString(i))));
+		}
+		return new QueryService(DatasetFactory.wrap(ModelFactory.createModelForGraph(graph)), PREFIXES, 0, 0);
+	}
+
+	private File query(String name, String query) throws Exception {
+
+		File file = new File(folder.getRoot(), name + ".rq");
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(query.getBytes(StandardCharsets.UTF_8));
+		}
+		return file;
+	}
+
+	private BatchQueryRunner.Outcome run(long rowLimit, String query) throws Exception {
+
+		List<File> queries = new ArrayList<File>();
+		queries.add(query("samples", query));
+		List<BatchQueryRunner.Outcome> outcomes = new BatchQueryRunner(service(), 2, QueryService.ResultFormat.CSV, rowLimit).run(queries, folder.newFolder());
+		assertEquals(1, outcomes.size());
+		assertNull(outcomes.get(0).getError());
+		return outcomes.get(0);
+	}
+
+	// The rows in a CSV results file, less the header
+	private static int rows(BatchQueryRunner.Outcome outcome) throws Exception {
+		return Files.readAllLines(outcome.getFile().toPath(), StandardCharsets.UTF_8).size() - 1;
+	}
+
+	@Test
+	public void onlyResultsWithMoreRowsThanTheLimitAreLimited() throws Exception {
+
+		String all = "SELECT ?s WHERE { ?s ak:hasAge ?age }";
+
+		BatchQueryRunner.Outcome outcome = run(4, all);
+		assertTrue(outcome.isLimited());
+		assertEquals(4, outcome.getRows());
+		assertEquals(4, rows(outcome));
+
+		// Exactly as many rows as the limit
+		outcome = run(5, all);
+		assertFalse(outcome.isLimited());
+		assertEquals(5, outcome.getRows());
+		assertEquals(5, rows(outcome));
+
+		outcome = run(6, all);
+		assertFalse(outcome.isLimited());
+		assertEquals(5, outcome.getRows());
+
+		outcome = run(0, all);
+		assertFalse(outcome.isLimited());
+		assertEquals(5, rows(outcome));
+	}
+
+	@Test
+	public void aQuerysOwnLimitIsntTheRowLimit() throws Exception {
+
+		BatchQueryRunner.Outcome outcome = run(3, "SELECT ?s WHERE { ?s ak:hasAge ?age } LIMIT 3");
+		assertFalse(outcome.isLimited());
+		assertEquals(3, rows(outcome));
+
+		outcome = run(3, "SELECT ?s WHERE { ?s ak:hasAge ?age } LIMIT 4");
+		assertTrue(outcome.isLimited());
+		assertEquals(3, rows(outcome));
+	}
+
+	@Test
+	public void textResultsAreLimitedToo() throws Exception {
+
+		List<File> queries = new ArrayList<File>();
+		queries.add(query("samples", "SELECT ?s WHERE { ?s ak:hasAge ?age }"));
+		BatchQueryRunner.Outcome outcome = new BatchQueryRunner(service(), 1, QueryService.ResultFormat.TEXT, 2).run(queries, folder.newFolder()).get(0);
+
+		assertTrue(outcome.isLimited());
+		assertEquals(2, outcome.getRows());
+		String table = new String(Files.readAllBytes(outcome.getFile().toPath()), StandardCharsets.UTF_8);
+		assertEquals(2, table.split("Sample/", -1).length - 1);
+	}
+
+}
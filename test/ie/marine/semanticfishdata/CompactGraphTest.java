@@ -0,0 +1,163 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.vocabulary.RDF;
+import org.junit.Test;
+
+public class CompactGraphTest {
+
+	private static final String NS = "http://example.org/fish#";
+
+	private static final Node SAMPLE_CLASS = NodeFactory.createURI(NS + "Sample");
+	private static final Node HAS_OBSERVATION = NodeFactory.createURI(NS + "hasObservation");
+	private static final Node HAS_MEASUREMENT = NodeFactory.createURI(NS + "hasMeasurement");
+
+	private static CompactGraph newGraph() {
+		return new CompactGraph(Arrays.asList(new String[] { NS + "Sample/", "" }, new String[] { NS + "Observation/", "/L" }));
+	}
+
+	private static Node sample(String id) {
+		return NodeFactory.createURI(NS + "Sample/" + id);
+	}
+
+	private static Node observation(int id) {
+		return NodeFactory.createURI(NS + "Observation/" + id + "/L");
+	}
+
+	private static Node integer(String value) {
+		return NodeFactory.createLiteral(value, XSDDatatype.XSDinteger);
+	}
+
+	// Sample i has a type, an observation and a measurement on the observation
+	private static void addSamples(CompactGraph graph, int from, int to) {
+
+		for (int i = from; i < to; i++) {
+			graph.add(Triple.create(sample(String.valueOf(i)), RDF.Nodes.type, SAMPLE_CLASS));
+			graph.add(Triple.create(sample(String.valueOf(i)), HAS_OBSERVATION, observation(i)));
+			graph.add(Triple.create(observation(i), HAS_MEASUREMENT, integer(String.valueOf(i % 50))));
+		}
+	}
+
+	@Test
+	public void findsByAnyCombinationOfParts() {
+
+		CompactGraph graph = newGraph();
+		addSamples(graph, 0, 100);
+		// Adding a triple that's already there doesn't add it again
+		graph.add(Triple.create(sample("5"), RDF.Nodes.type, SAMPLE_CLASS));
+
+		assertEquals(300, graph.size());
+		assertEquals(300, graph.find(Node.ANY, Node.ANY, Node.ANY).toList().size());
+		assertEquals(2, graph.find(sample("5"), Node.ANY, Node.ANY).toList().size());
+		assertEquals(100, graph.find(Node.ANY, RDF.Nodes.type, Node.ANY).toList().size());
+		assertEquals(100, graph.find(Node.ANY, Node.ANY, SAMPLE_CLASS).toList().size());
+		assertEquals(2, graph.find(Node.ANY, HAS_MEASUREMENT, integer("7")).toList().size());
+		assertEquals(Arrays.asList(Triple.create(sample("42"), HAS_OBSERVATION, observation(42))),
+				graph.find(sample("42"), HAS_OBSERVATION, Node.ANY).toList());
+		assertEquals(Arrays.asList(Triple.create(sample("42"), HAS_OBSERVATION, observation(42))),
+				graph.find(Node.ANY, Node.ANY, observation(42)).toList());
+
+		assertTrue(graph.contains(observation(7), HAS_MEASUREMENT, integer("7")));
+		// Literals are matched by term, not value
+		assertFalse(graph.contains(observation(7), HAS_MEASUREMENT, integer("07")));
+		assertFalse(graph.contains(sample("100"), RDF.Nodes.type, SAMPLE_CLASS));
+	}
+
+	@Test
+	public void keepsIrisThatDontFitATemplateAsTheyWere() {
+
+		CompactGraph graph = newGraph();
+		// A leading zero wouldn't be written the same way again as a number, so it goes in the dictionary
+		graph.add(Triple.create(sample("007"), RDF.Nodes.type, SAMPLE_CLASS));
+		graph.add(Triple.create(sample("A7"), RDF.Nodes.type, SAMPLE_CLASS));
+		graph.add(Triple.create(sample("7"), RDF.Nodes.type, SAMPLE_CLASS));
+
+		Set<Node> subjects = new HashSet<Node>();
+		graph.find(Node.ANY, RDF.Nodes.type, SAMPLE_CLASS).forEachRemaining(t -> subjects.add(t.getSubject()));
+		assertEquals(new HashSet<Node>(Arrays.asList(sample("007"), sample("A7"), sample("7"))), subjects);
+		assertTrue(graph.contains(sample("007"), RDF.Nodes.type, SAMPLE_CLASS));
+		assertFalse(graph.contains(sample("07"), RDF.Nodes.type, SAMPLE_CLASS));
+	}
+
+	@Test
+	public void deletesAndCompacts() {
+
+		CompactGraph graph = newGraph();
+		addSamples(graph, 0, 5000);
+
+		// Enough deletes to drop the deleted triples from the arrays
+		for (int i = 0; i < 3000; i++) graph.delete(Triple.create(sample(String.valueOf(i)), HAS_OBSERVATION, observation(i)));
+
+		assertEquals(12000, graph.size());
+		assertEquals(2000, graph.find(Node.ANY, HAS_OBSERVATION, Node.ANY).toList().size());
+		assertFalse(graph.contains(sample("10"), HAS_OBSERVATION, observation(10)));
+		assertTrue(graph.contains(sample("4000"), HAS_OBSERVATION, observation(4000)));
+		assertEquals(1, graph.find(sample("10"), Node.ANY, Node.ANY).toList().size());
+
+		// Deleted triples can be added again
+		graph.add(Triple.create(sample("10"), HAS_OBSERVATION, observation(10)));
+		assertTrue(graph.contains(sample("10"), HAS_OBSERVATION, observation(10)));
+		assertEquals(12001, graph.size());
+	}
+
+	@Test
+	public void removesThroughAnIterator() {
+
+		CompactGraph graph = newGraph();
+		addSamples(graph, 0, 5000);
+
+		// Removing this many sets off a compaction part way through, which mustn't disturb the iterator
+		Set<Triple> removed = new HashSet<Triple>();
+		ExtendedIterator<Triple> it = graph.find(Node.ANY, HAS_MEASUREMENT, Node.ANY);
+		while (it.hasNext()) {
+			assertTrue(removed.add(it.next()));
+			it.remove();
+		}
+
+		assertEquals(5000, removed.size());
+		assertEquals(10000, graph.size());
+		assertTrue(graph.find(Node.ANY, HAS_MEASUREMENT, Node.ANY).toList().isEmpty());
+		assertEquals(5000, graph.find(Node.ANY, HAS_OBSERVATION, Node.ANY).toList().size());
+	}
+
+	@Test
+	public void findSeesTheTriplesThereWhenItStarted() {
+
+		CompactGraph graph = newGraph();
+		addSamples(graph, 0, 10);
+
+		ExtendedIterator<Triple> it = graph.find(Node.ANY, RDF.Nodes.type, Node.ANY);
+		addSamples(graph, 10, 20);
+		List<Triple> found = it.toList();
+
+		assertEquals(10, found.size());
+		assertEquals(20, graph.find(Node.ANY, RDF.Nodes.type, Node.ANY).toList().size());
+	}
+
+	@Test
+	public void clearEmptiesTheGraph() {
+
+		CompactGraph graph = newGraph();
+		addSamples(graph, 0, 10);
+		graph.clear();
+
+		assertEquals(0, graph.size());
+		assertFalse(graph.find(Node.ANY, Node.ANY, Node.ANY).hasNext());
+		addSamples(graph, 0, 1);
+		assertEquals(3, graph.size());
+	}
+
+}
@@ -0,0 +1,130 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DelimitedFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String[] COLUMNS = { "SampleID", "ICES_Div", "Gear" };
+
+	private File write(String name, String content) throws Exception {
+
+		File file = new File(folder.getRoot(), name);
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		return file;
+	}
+
+	private static List<String[]> read(RowSource source) throws Exception {
+
+		List<String[]> rows = new ArrayList<String[]>();
+		String[] row = new String[COLUMNS.length];
+		while (source.next(row)) rows.add(row.clone());
+		return rows;
+	}
+
+	private List<String[]> read(String name, String content, String nullValue) throws Exception {
+
+		try (DelimitedFile extract = DelimitedFile.open(write(name, content), COLUMNS, nullValue)) {
+			return read(extract.rows());
+		}
+	}
+
+	@Test
+	public void readsQuotedCsvValues() throws Exception {
+
+		List<String[]> rows = read("extract.csv", "SampleID,Gear,ICES_Div\n"
+				// A delimiter and a doubled quote inside quotes
+				+ "1,\"OTB, \"\"bottom\"\" trawl\",\"27.7.g\"\n"
+				// An empty quoted value is a null, but the null value in quotes is kept as it is
+				+ "\"2\",\"\",\"NULL\"\n"
+				// Anything between a closing quote and the delimiter is dropped
+				+ "3,\"GNS\"x,NULL\n", "NULL");
+
+		assertEquals(3, rows.size());
+		assertArrayEquals(new String[] { "1", "27.7.g", "OTB, \"bottom\" trawl" }, rows.get(0));
+		assertArrayEquals(new String[] { "2", "NULL", null }, rows.get(1));
+		assertArrayEquals(new String[] { "3", null, "GNS" }, rows.get(2));
+	}
+
+	@Test
+	public void readsQuotedHeadersAndNonAsciiValues() throws Exception {
+
+		List<String[]> rows = read("extract.csv", "\uFEFF\"SampleID\",\"Ignored\",\"Gear\"\r\n"
+				+ "1,\"x\",\"Chalut \u00e0 perche\"\r\n"
+				+ "\r\n"
+				+ "2,y,\u00e9\r\n", null);
+
+		assertEquals(2, rows.size());
+		assertArrayEquals(new String[] { "1", null, "Chalut \u00e0 perche" }, rows.get(0));
+		assertArrayEquals(new String[] { "2", null, "\u00e9" }, rows.get(1));
+	}
+
+	@Test
+	public void tsvValuesAreNeverQuoted() throws Exception {
+
+		List<String[]> rows = read("extract.tsv", "SampleID\tICES_Div\tGear\n"
+				+ "1\t\"27.7.g\"\t\\N\n"
+				+ "2\t\t\"a,b\"\n", RangeExtractor.NULL_VALUE);
+
+		assertArrayEquals(new String[] { "1", "\"27.7.g\"", null }, rows.get(0));
+		assertArrayEquals(new String[] { "2", null, "\"a,b\"" }, rows.get(1));
+	}
+
+	@Test
+	public void missingFieldsAreNull() throws Exception {
+
+		List<String[]> rows = read("extract.csv", "SampleID,ICES_Div,Gear\n1,\"27.7.g\"\n2\n", null);
+
+		assertArrayEquals(new String[] { "1", "27.7.g", null }, rows.get(0));
+		assertArrayEquals(new String[] { "2", null, null }, rows.get(1));
+	}
+
+	@Test
+	public void chunksHoldWholeLines() throws Exception {
+
+		StringBuilder content = new StringBuilder("SampleID,ICES_Div,Gear\n");
+		for (int i = 0; i < 1000; i++) content.append(i).append(",\"27.7,").append(i).append("\",OTB\n");
+
+		try (DelimitedFile extract = DelimitedFile.open(write("extract.csv", content.toString()), COLUMNS, null)) {
+			List<RowSource> chunks = extract.split(7);
+			assertEquals(7, chunks.size());
+
+			List<String[]> rows = new ArrayList<String[]>();
+			for (RowSource chunk : chunks) rows.addAll(read(chunk));
+			assertEquals(1000, rows.size());
+			for (int i = 0; i < 1000; i++) assertArrayEquals(new String[] { Integer.toString(i), "27.7," + i, "OTB" }, rows.get(i));
+		}
+	}
+
+	@Test
+	public void delimitersFromTheConfigFile() {
+
+		assertEquals('\t', DelimitedFile.delimiterFor("Tab"));
+		assertEquals(',', DelimitedFile.delimiterFor("comma"));
+		assertEquals('|', DelimitedFile.delimiterFor("pipe"));
+		assertEquals(';', DelimitedFile.delimiterFor(";"));
+	}
+
+	@Test(expected = IOException.class)
+	public void needsASampleIDColumn() throws Exception {
+		DelimitedFile.open(write("extract.csv", "\"Sample ID\",Gear\n1,OTB\n"), COLUMNS, null).close();
+	}
+
+}
@@ -0,0 +1,135 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileWatcherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// Write content to a file and give it a modified time of its own, so the test doesn't depend on the clock
+	private static void write(File file, String content, long modified) throws Exception {
+
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		assertTrue(file.setLastModified(modified));
+	}
+
+	@Test
+	public void reportsAChangeOnceItHasSettled() throws Exception {
+
+		File file = new File(folder.getRoot(), "extract.csv");
+		write(file, "SampleID\n1\n", 1000000000000L);
+		FileWatcher watcher = new FileWatcher(Arrays.asList(file));
+		assertEquals(Collections.emptyList(), watcher.changed());
+
+		write(file, "SampleID\n1\n2\n", 1000000001000L);
+		// Seen once - it may still be being written
+		assertEquals(Collections.emptyList(), watcher.changed());
+		// The same at the next check, so it's reported, and only once
+		assertEquals(Arrays.asList(file), watcher.changed());
+		assertEquals(Collections.emptyList(), watcher.changed());
+	}
+
+	@Test
+	public void waitsWhileAFileKeepsChanging() throws Exception {
+
+		File file = new File(folder.getRoot(), "extract.csv");
+		write(file, "SampleID\n", 1000000000000L);
+		FileWatcher watcher = new FileWatcher(Arrays.asList(file));
+
+		StringBuilder content = new StringBuilder("SampleID\n");
+		for (int i = 1; i <= 5; i++) {
+			content.append(i).append('\n');
+			write(file, content.toString(), 1000000000000L + i * 1000);
+			assertEquals(Collections.emptyList(), watcher.changed());
+		}
+		assertEquals(Arrays.asList(file), watcher.changed());
+	}
+
+	@Test
+	public void aChangeThatIsUndoneIsntReported() throws Exception {
+
+		File file = new File(folder.getRoot(), "extract.csv");
+		write(file, "SampleID\n1\n", 1000000000000L);
+		FileWatcher watcher = new FileWatcher(Arrays.asList(file));
+
+		write(file, "SampleID\n1\n2\n", 1000000001000L);
+		assertEquals(Collections.emptyList(), watcher.changed());
+		write(file, "SampleID\n1\n", 1000000000000L);
+		assertEquals(Collections.emptyList(), watcher.changed());
+		assertEquals(Collections.emptyList(), watcher.changed());
+	}
+
+	@Test
+	public void resetIgnoresChangesMadeSince() throws Exception {
+
+		File file = new File(folder.getRoot(), "extract.csv");
+		write(file, "SampleID\n1\n", 1000000000000L);
+		FileWatcher watcher = new FileWatcher(Arrays.asList(file));
+
+		write(file, "SampleID\n1\n2\n", 1000000001000L);
+		assertEquals(Collections.emptyList(), watcher.changed());
+		// e.g. we wrote the file ourselves
+		watcher.reset();
+		assertEquals(Collections.emptyList(), watcher.changed());
+		assertEquals(Collections.emptyList(), watcher.changed());
+	}
+
+	@Test
+	public void filesAppearingAndGoingAreChanges() throws Exception {
+
+		File file = new File(folder.getRoot(), "extract.csv");
+		FileWatcher watcher = new FileWatcher(Arrays.asList(file));
+
+		write(file, "SampleID\n", 1000000000000L);
+		watcher.changed();
+		assertEquals(Arrays.asList(file), watcher.changed());
+
+		assertTrue(file.delete());
+		watcher.changed();
+		assertEquals(Arrays.asList(file), watcher.changed());
+	}
+
+	@Test
+	public void aDirectoryChangesWithTheFilesInIt() throws Exception {
+
+		File directory = folder.newFolder("partitions");
+		write(new File(directory, "2019-7.g.nt"), "a", 1000000000000L);
+		FileWatcher watcher = new FileWatcher(Arrays.asList(directory));
+
+		// A file added
+		write(new File(directory, "2019-7.j.nt"), "b", 1000000000000L);
+		watcher.changed();
+		assertEquals(Arrays.asList(directory), watcher.changed());
+
+		// A file rewritten with the same length
+		write(new File(directory, "2019-7.g.nt"), "c", 1000000002000L);
+		watcher.changed();
+		assertEquals(Arrays.asList(directory), watcher.changed());
+
+		// A file removed
+		assertTrue(new File(directory, "2019-7.j.nt").delete());
+		watcher.changed();
+		assertEquals(Arrays.asList(directory), watcher.changed());
+
+		// Only the files directly in it count
+		assertTrue(new File(directory, "archive").mkdir());
+		assertEquals(Collections.emptyList(), watcher.changed());
+		assertEquals(Collections.emptyList(), watcher.changed());
+	}
+
+}
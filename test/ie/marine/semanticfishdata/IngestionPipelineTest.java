@@ -0,0 +1,158 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.vocabulary.RDF;
+import org.junit.Test;
+
+public class IngestionPipelineTest {
+
+	private static final String AK = "http://example.org/ak#";
+
+	private static final String[] DIVISIONS = { "7.g", "7.j", "27.7.b", "6.a" };
+	private static final String[] SPECIES = { "126484", "127023", "126417" };
+
+	// Samples that share a few species, divisions, units and qualities, some without a weight or age, and one
+	// row that's rejected for its date
+	private static List<String[]> rows(SampleMapping mapping) {
+
+		List<String[]> rows = new ArrayList<String[]>();
+		for (int i = 1; i <= 200; i++) {
+			String[] row = new String[mapping.getColumns().length];
+			row[SampleRowConverter.SAMPLE_ID] = Integer.toString(i);
+			row[SampleRowConverter.ICES_DIV] = DIVISIONS[i % DIVISIONS.length];
+			row[SampleRowConverter.APHIA_ID] = SPECIES[i % SPECIES.length];
+			row[SampleRowConverter.FISH_LENGTH] = Integer.toString(20 + i % 30);
+			if (i % 3 == 0) row[SampleRowConverter.FISH_WEIGHT] = (100 + i) + ".5";
+			if (i % 4 == 0) row[SampleRowConverter.AGE] = Integer.toString(i % 9);
+			row[SampleRowConverter.SAMPLE_DATE] = i == 77 ? "last week" : "2019-0" + (1 + i % 9) + "-1" + (i % 10) + " 00:00:00.0";
+			row[SampleRowConverter.GEAR] = i % 2 == 0 ? "OTB" : "GNS";
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	private static RowSource source(List<String[]> rows) {
+
+		Iterator<String[]> next = rows.iterator();
+		return row -> {
+			if (!next.hasNext()) return false;
+			String[] values = next.next();
+			System.arraycopy(values, 0, row, 0, values.length);
+			return true;
+		};
+	}
+
+	// Collects the triples sent to it, duplicates and all
+	private static final class Collector extends StreamRDFBase {
+
+		final List<Triple> triples = new ArrayList<Triple>();
+
+		@Override
+		public void triple(Triple triple) {
+			triples.add(triple);
+		}
+
+		Graph graph() {
+
+			Graph graph = GraphFactory.createGraphMem();
+			for (Triple t : triples) graph.add(t);
+			return graph;
+		}
+	}
+
+	private static IngestionPipeline pipeline(SampleMapping mapping, int threads, int batchSize) {
+		return new IngestionPipeline(mapping, threads, batchSize, 2, new IngestMetrics(new Metrics()));
+	}
+
+	// The triples of every row converted one after another on this thread
+	private static Graph converted(SampleMapping mapping, List<String[]> rows) {
+
+		Collector out = new Collector();
+		SampleRowConverter converter = new SampleRowConverter(mapping);
+		for (String[] row : rows) {
+			try {
+				converter.convert(row, out);
+			} catch (SampleRowConverter.RejectedRowException ex) {
+				// left out, as the pipeline does
+			}
+		}
+		return out.graph();
+	}
+
+	private static void assertSameGraph(Graph expected, Collector sent) {
+
+		Graph graph = sent.graph();
+		assertTrue(graph.isIsomorphicWith(expected));
+		// Each triple only reaches the sink once, however many workers typed the same species or unit
+		assertEquals(graph.size(), sent.triples.size());
+		assertEquals(graph.size(), new HashSet<Triple>(sent.triples).size());
+	}
+
+	@Test
+	public void threadsMakeTheSameGraphAsOne() throws Exception {
+
+		SampleMapping mapping = SampleMapping.load(AK, new File("resources/SampleMapping.properties"));
+		List<String[]> rows = rows(mapping);
+		Graph expected = converted(mapping, rows);
+
+		Collector single = new Collector();
+		assertEquals(200, pipeline(mapping, 1, 500).run(source(rows), single));
+		assertSameGraph(expected, single);
+
+		for (int threads : new int[] { 2, 4, 8 }) {
+			Collector sent = new Collector();
+			assertEquals(200, pipeline(mapping, threads, 3).run(source(rows), sent));
+			assertSameGraph(expected, sent);
+		}
+	}
+
+	@Test
+	public void sourcesReadAtOnceMakeTheSameGraph() throws Exception {
+
+		SampleMapping mapping = SampleMapping.load(AK, new File("resources/SampleMapping.properties"));
+		List<String[]> rows = rows(mapping);
+		Graph expected = converted(mapping, rows);
+
+		List<RowSource> chunks = new ArrayList<RowSource>();
+		for (int start = 0; start < rows.size(); start += 30) chunks.add(source(rows.subList(start, Math.min(start + 30, rows.size()))));
+
+		Collector sent = new Collector();
+		assertEquals(200, pipeline(mapping, 4, 7).run(chunks, sent));
+		assertSameGraph(expected, sent);
+	}
+
+	@Test
+	public void sharedIndividualsAreTypedOnce() throws Exception {
+
+		SampleMapping mapping = SampleMapping.load(AK, new File("resources/SampleMapping.properties"));
+
+		Collector sent = new Collector();
+		pipeline(mapping, 4, 1).run(source(rows(mapping)), sent);
+
+		Set<Triple> types = new HashSet<Triple>();
+		int sentTypes = 0;
+		for (Triple t : sent.triples) {
+			if (t.getPredicate().equals(RDF.Nodes.type) && !mapping.isSample(t.getSubject()) && !t.getObject().equals(mapping.Observation)) {
+				types.add(t);
+				sentTypes++;
+			}
+		}
+		// 4 divisions, 3 species, 3 units and 3 qualities
+		assertEquals(13, types.size());
+		assertEquals(13, sentTypes);
+	}
+
+}
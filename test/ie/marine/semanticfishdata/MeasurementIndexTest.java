@@ -0,0 +1,164 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.junit.Test;
+
+public class MeasurementIndexTest {
+
+	private static final String AK = "http://example.org/ak#";
+
+	private static final String HAKE = "126484";
+	private static final String MACKEREL = "127023";
+
+	private static SampleMapping mapping() throws Exception {
+		return SampleMapping.load(AK, new File("resources/SampleMapping.properties"));
+	}
+
+	private static String[] row(int sampleID, String species, String division, String length, String weight) {
+
+		String[] row = new String[SampleRowConverter.COLUMNS.length];
+		row[SampleRowConverter.SAMPLE_ID] = Integer.toString(sampleID);
+		row[SampleRowConverter.APHIA_ID] = species;
+		row[SampleRowConverter.ICES_DIV] = division;
+		row[SampleRowConverter.FISH_LENGTH] = length;
+		row[SampleRowConverter.FISH_WEIGHT] = weight;
+		return row;
+	}
+
+	private static Graph graph(SampleMapping mapping, String[]... rows) {
+
+		Graph graph = GraphFactory.createGraphMem();
+		SampleRowConverter converter = new SampleRowConverter(mapping);
+		for (String[] row : rows) converter.convert(row, StreamRDFLib.graph(graph));
+		return graph;
+	}
+
+	private static Node observation(int sampleID, String quality) {
+		return NodeFactory.createURI(AK + "Observation/" + sampleID + "/" + quality);
+	}
+
+	// The sample IDs of the observations found
+	private static Set<String> samples(List<Node> observations) {
+
+		Set<String> samples = new HashSet<String>();
+		for (Node observation : observations) {
+			String uri = observation.getURI();
+			samples.add(uri.substring(uri.indexOf("Observation/") + 12, uri.lastIndexOf('/')));
+		}
+		return samples;
+	}
+
+	private static Set<String> set(String... values) {
+		return new HashSet<String>(Arrays.asList(values));
+	}
+
+	@Test
+	public void findsRangesOfValues() throws Exception {
+
+		SampleMapping mapping = mapping();
+		MeasurementIndex index = MeasurementIndex.build(mapping, graph(mapping,
+				row(1, HAKE, "7.g", "45", "900"),
+				row(2, HAKE, "7.g", "38.5", null),
+				row(3, HAKE, "7.j", "52", "1200.25"),
+				row(4, MACKEREL, "7.g", "40", null),
+				row(5, MACKEREL, null, "31", "400")));
+
+		assertEquals(5, index.size("Length"));
+		assertEquals(3, index.size("Weight"));
+		assertEquals(0, index.size("Age"));
+
+		// Inclusive at both ends
+		assertEquals(set("1", "3", "4"), samples(index.find("Length", 40, Double.MAX_VALUE, null, null)));
+		assertEquals(set("2", "4"), samples(index.find("Length", 38.5, 40, null, null)));
+		assertEquals(set("1", "3"), samples(index.find("Length", 40, 100, HAKE, null)));
+		assertEquals(set("1"), samples(index.find("Length", 40, 100, HAKE, "7.g")));
+		assertEquals(set("3"), samples(index.find("Weight", 1000, 1200.25, null, null)));
+
+		// Nothing for species, divisions or qualities we haven't seen
+		assertEquals(set(), samples(index.find("Length", 0, 100, "999", null)));
+		assertEquals(set(), samples(index.find("Length", 0, 100, null, "6.a")));
+		assertEquals(set(), samples(index.find("Age", 0, 100, null, null)));
+		assertEquals(0, index.getSkipped());
+	}
+
+	@Test
+	public void onlyFiniteNumbersAreIndexed() throws Exception {
+
+		SampleMapping mapping = mapping();
+		Graph graph = graph(mapping,
+				row(1, HAKE, "7.g", "45", null),
+				// Not a number, so SampleRowConverter keeps it as a string
+				row(2, HAKE, "7.g", "about 40", null));
+
+		// Values that weren't made by SampleRowConverter, e.g. read from an older snapshot or written by hand
+		String[][] values = {
+				{ "3", "4.1E1", XSDDatatype.XSDdouble.getURI() },
+				{ "4", "42.5", XSDDatatype.XSDfloat.getURI() },
+				{ "5", "43", XSDDatatype.XSDshort.getURI() },
+				{ "6", "44", XSDDatatype.XSDstring.getURI() },
+				{ "7", "NaN", XSDDatatype.XSDdouble.getURI() },
+				{ "8", "INF", XSDDatatype.XSDdouble.getURI() },
+				{ "9", "-INF", XSDDatatype.XSDfloat.getURI() },
+				{ "10", "forty", XSDDatatype.XSDinteger.getURI() },
+				{ "11", "true", XSDDatatype.XSDboolean.getURI() },
+				{ "12", "1e400", XSDDatatype.XSDdecimal.getURI() },
+				{ "13", "46", "http://example.org/units#centimetres" } };
+		SampleRowConverter converter = new SampleRowConverter(mapping);
+		for (String[] value : values) {
+			converter.convert(row(Integer.parseInt(value[0]), HAKE, "7.g", "0", null), StreamRDFLib.graph(graph));
+			Node observation = observation(Integer.parseInt(value[0]), "L");
+			graph.remove(observation, mapping.hasMeasurement, Node.ANY);
+			graph.add(Triple.create(observation, mapping.hasMeasurement, NodeFactory.createLiteral(value[1], NodeFactory.getType(value[2]))));
+		}
+		// And one that isn't a literal at all
+		converter.convert(row(14, HAKE, "7.g", "0", null), StreamRDFLib.graph(graph));
+		graph.remove(observation(14, "L"), mapping.hasMeasurement, Node.ANY);
+		graph.add(Triple.create(observation(14, "L"), mapping.hasMeasurement, NodeFactory.createURI(AK + "Measurement/47")));
+
+		MeasurementIndex index = MeasurementIndex.build(mapping, graph);
+
+		assertEquals(set("1", "3", "4", "5"), samples(index.find("Length", Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, null, null)));
+		assertEquals(4, index.size("Length"));
+		assertEquals(10, index.getSkipped());
+		assertEquals("4 Length measurements (10 that weren't numbers left out)", index.toString());
+	}
+
+	@Test
+	public void numericValues() {
+
+		assertEquals(Double.valueOf(45), MeasurementIndex.valueOf(SampleRowConverter.measurementLiteral("45")));
+		assertEquals(Double.valueOf(38.5), MeasurementIndex.valueOf(SampleRowConverter.measurementLiteral("38.50")));
+		assertEquals(Double.valueOf(-3), MeasurementIndex.valueOf(NodeFactory.createLiteral("-3", XSDDatatype.XSDint)));
+		assertEquals(Double.valueOf(1e10), MeasurementIndex.valueOf(NodeFactory.createLiteral("10000000000", XSDDatatype.XSDnonNegativeInteger)));
+
+		assertNull(MeasurementIndex.valueOf(SampleRowConverter.measurementLiteral("n/a")));
+		assertNull(MeasurementIndex.valueOf(NodeFactory.createLiteral("45")));
+		assertNull(MeasurementIndex.valueOf(NodeFactory.createLiteral("NaN", XSDDatatype.XSDfloat)));
+		assertNull(MeasurementIndex.valueOf(NodeFactory.createLiteral("2019", XSDDatatype.XSDgYear)));
+		assertNull(MeasurementIndex.valueOf(NodeFactory.createURI(AK + "Measurement/45")));
+	}
+
+	@Test
+	public void anEmptyGraphHasNoMeasurements() throws Exception {
+
+		MeasurementIndex index = MeasurementIndex.build(mapping(), GraphFactory.createGraphMem());
+		assertEquals(0, index.size("Length"));
+		assertEquals("no measurements", index.toString());
+	}
+
+}
@@ -0,0 +1,220 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolutionMap;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.vocabulary.RDFS;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PartitionedStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String AK = "http://example.org/ak#";
+	private static final String PREFIX = "PREFIX ak: <" + AK + ">\n";
+
+	private static final String[] DIVISIONS = { "7.g", "7.j", "6.a" };
+
+	// Every sample is a Specimen too, so the partitions have inferences of their own
+	private static Graph schema() {
+
+		Graph schema = GraphFactory.createGraphMem();
+		schema.add(Triple.create(NodeFactory.createURI(AK + "Sample"), RDFS.Nodes.subClassOf, NodeFactory.createURI(AK + "Specimen")));
+		return schema;
+	}
+
+	private static SampleMapping mapping() throws Exception {
+		return SampleMapping.load(AK, new File("resources/SampleMapping.properties"));
+	}
+
+	// 60 samples over 2019 and 2020 in three divisions - 10 in each year and division
+	private static RowSource rows(SampleMapping mapping) {
+
+		List<String[]> rows = new ArrayList<String[]>();
+		for (int i = 0; i < 60; i++) {
+			String[] row = new String[mapping.getColumns().length];
+			row[SampleRowConverter.SAMPLE_ID] = Integer.toString(i + 1);
+			row[SampleRowConverter.ICES_DIV] = DIVISIONS[i % 3];
+			row[SampleRowConverter.APHIA_ID] = "126484";
+			row[SampleRowConverter.FISH_LENGTH] = Integer.toString(30 + i % 20);
+			row[SampleRowConverter.SAMPLE_DATE] = (i < 30 ? "2019" : "2020") + "-06-1" + (i % 10) + " 00:00:00.0";
+			rows.add(row);
+		}
+
+		Iterator<String[]> next = rows.iterator();
+		return row -> {
+			if (!next.hasNext()) return false;
+			String[] values = next.next();
+			System.arraycopy(values, 0, row, 0, values.length);
+			return true;
+		};
+	}
+
+	private static PartitionedStore load(String partitionBy) throws Exception {
+
+		SampleMapping mapping = mapping();
+		PartitionedStore store = new PartitionedStore(mapping, Partitioning.forName(partitionBy), schema(), 2);
+		assertEquals(60, store.load(rows(mapping), null, mapping, 4, 100, new IngestMetrics(new Metrics()), shared -> {}));
+		return store;
+	}
+
+	private static QuerySolutionMap bind(String variable, Object value) {
+
+		QuerySolutionMap bindings = new QuerySolutionMap();
+		if (value instanceof Integer) {
+			bindings.add(variable, ResourceFactory.createTypedLiteral(value.toString(), XSDDatatype.XSDinteger));
+		} else if (((String) value).startsWith("ak:")) {
+			bindings.add(variable, ResourceFactory.createResource(AK + ((String) value).substring(3)));
+		} else {
+			bindings.add(variable, ResourceFactory.createPlainLiteral((String) value));
+		}
+		return bindings;
+	}
+
+	private static int count(Dataset dataset, String where, QuerySolutionMap bindings) {
+
+		try (QueryExecution exec = QueryExecutionFactory.create(QueryFactory.create(PREFIX + "SELECT (COUNT(DISTINCT ?s) AS ?n) WHERE { " + where + " }"), dataset, bindings)) {
+			return exec.execSelect().next().getLiteral("n").getInt();
+		}
+	}
+
+	@Test
+	public void rowsGoInTheirOwnPartitions() throws Exception {
+
+		PartitionedStore store = load("year,division");
+
+		assertEquals(new HashSet<String>(Arrays.asList("2019_7.g", "2019_7.j", "2019_6.a", "2020_7.g", "2020_7.j", "2020_6.a")), store.getKeys());
+		Dataset dataset = store.getDataset();
+		assertEquals(60, count(dataset, "?s a ak:Specimen", null));
+		// Each partition is also a named graph, with its own inferences
+		assertEquals(10, count(dataset, "GRAPH <" + Partitioning.GRAPH_NS + "2019_7.g> { ?s a ak:Specimen }", null));
+	}
+
+	@Test
+	public void boundVariablesPruneThePartitions() throws Exception {
+
+		PartitionedStore store = load("year,division");
+		Query query = QueryFactory.create(PREFIX + "SELECT ?s WHERE { ?s a ak:Sample }");
+
+		assertEquals(6, store.count(query, null));
+		assertEquals(6, store.count(query, new QuerySolutionMap()));
+		assertEquals(3, store.count(query, bind("year", 2019)));
+		assertEquals(2, store.count(query, bind("division", "7.g")));
+		assertEquals(2, store.count(query, bind("division", "ak:ICESDivision/7.g")));
+		// Both of area 7's divisions
+		assertEquals(4, store.count(query, bind("area", "7")));
+		assertEquals(0, store.count(query, bind("area", "4")));
+
+		QuerySolutionMap both = bind("year", 2020);
+		both.add("division", ResourceFactory.createPlainLiteral("6.a"));
+		assertEquals(1, store.count(query, both));
+
+		// Searching just those partitions finds the same samples as searching them all
+		String where = "?s ak:hasLandingDate ?date FILTER(STRSTARTS(STR(?date), CONCAT(STR(?year), \"-\")))";
+		assertEquals(30, count(store.select(QueryFactory.create(PREFIX + "SELECT * WHERE { " + where + " }"), bind("year", 2019)), where, bind("year", 2019)));
+		assertEquals(30, count(store.getDataset(), where, bind("year", 2019)));
+	}
+
+	@Test
+	public void divisionLinksPruneThePartitions() throws Exception {
+
+		PartitionedStore store = load("year,division");
+
+		Query linked = QueryFactory.create(PREFIX + "SELECT ?s WHERE { ?s ak:hasDivision <" + AK + "ICESDivision/7.j> }");
+		assertEquals(2, store.count(linked, null));
+		assertEquals(20, count(store.select(linked, null), "?s ak:hasDivision <" + AK + "ICESDivision/7.j>", null));
+
+		Query variable = QueryFactory.create(PREFIX + "SELECT ?s WHERE { ?s ak:hasDivision ?d }");
+		assertEquals(6, store.count(variable, null));
+		assertEquals(2, store.count(variable, bind("d", "ak:ICESDivision/6.a")));
+	}
+
+	@Test
+	public void optionalPatternsDontPrune() throws Exception {
+
+		PartitionedStore store = load("year,division");
+		String division = "<" + AK + "ICESDivision/7.g>";
+
+		// Samples elsewhere still match these, so every partition has to be searched
+		for (String where : new String[] {
+				"?s a ak:Sample OPTIONAL { ?s ak:hasDivision " + division + " }",
+				"{ ?s ak:hasDivision " + division + " } UNION { ?s a ak:Specimen }",
+				"?s a ak:Sample MINUS { ?s ak:hasDivision " + division + " }" }) {
+			Query query = QueryFactory.create(PREFIX + "SELECT ?s WHERE { " + where + " }");
+			assertEquals(where, 6, store.count(query, null));
+			assertEquals(where, count(store.getDataset(), where, null), count(store.select(query, null), where, null));
+		}
+
+		// Nor do queries that pick their own graphs
+		Query named = QueryFactory.create(PREFIX + "SELECT ?s WHERE { GRAPH ?g { ?s ak:hasDivision " + division + " } }");
+		assertEquals(6, store.count(named, bind("year", 2019)));
+	}
+
+	@Test
+	public void areaPartitionsAreFoundFromADivision() throws Exception {
+
+		PartitionedStore store = load("area");
+		Query query = QueryFactory.create(PREFIX + "SELECT ?s WHERE { ?s ak:hasDivision <" + AK + "ICESDivision/7.g> }");
+
+		assertEquals(new HashSet<String>(Arrays.asList("6", "7")), store.getKeys());
+		assertEquals(1, store.count(query, null));
+		assertEquals(20, count(store.select(query, null), "?s ak:hasDivision <" + AK + "ICESDivision/7.g>", null));
+		// Not partitioned by year, so that doesn't help
+		assertEquals(2, store.count(QueryFactory.create(PREFIX + "SELECT ?s WHERE { ?s a ak:Sample }"), bind("year", 2019)));
+	}
+
+	@Test
+	public void readsBackWhatItSaved() throws Exception {
+
+		PartitionedStore store = load("year,division");
+		store.getSharedGraph().add(Triple.create(NodeFactory.createURI(AK + "Summary/1"), RDFS.Nodes.label, NodeFactory.createLiteral("summary")));
+		File directory = new File(folder.getRoot(), "partitions");
+		store.save(directory, SnapshotFormat.THRIFT);
+		// Saving again replaces the last save
+		store.save(directory, SnapshotFormat.THRIFT);
+		assertFalse(new File(directory.getPath() + ".saving").exists());
+		assertFalse(new File(directory.getPath() + ".old").exists());
+
+		PartitionedStore read = new PartitionedStore(mapping(), Partitioning.forName("year,division"), schema(), 2);
+		read.load(directory, SnapshotFormat.THRIFT);
+
+		assertEquals(store.getKeys(), read.getKeys());
+		for (String key : store.getKeys()) {
+			Graph partition = read.getPartition(key);
+			assertNotNull(key, partition);
+			assertTrue(key, partition.isIsomorphicWith(store.getPartition(key)));
+		}
+		assertTrue(read.getSharedGraph().isIsomorphicWith(store.getSharedGraph()));
+
+		// And it's pruned the same way
+		Query query = QueryFactory.create(PREFIX + "SELECT ?s WHERE { ?s a ak:Specimen }");
+		assertEquals(3, read.count(query, bind("year", 2020)));
+		assertEquals(30, count(read.select(query, bind("year", 2020)), "?s a ak:Specimen", null));
+		assertEquals(60, count(read.getDataset(), "?s a ak:Specimen", null));
+	}
+
+}
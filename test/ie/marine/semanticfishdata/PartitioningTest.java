@@ -0,0 +1,113 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.apache.jena.graph.NodeFactory;
+import org.junit.Test;
+
+public class PartitioningTest {
+
+	private static String[] row(String date, String division) {
+
+		String[] row = new String[SampleRowConverter.COLUMNS.length];
+		row[SampleRowConverter.SAMPLE_ID] = "1";
+		row[SampleRowConverter.SAMPLE_DATE] = date;
+		row[SampleRowConverter.ICES_DIV] = division;
+		return row;
+	}
+
+	private static Map<Partitioning.Dimension, String> constraints(Object... dimensionsAndValues) {
+
+		Map<Partitioning.Dimension, String> constraints = new EnumMap<Partitioning.Dimension, String>(Partitioning.Dimension.class);
+		for (int i = 0; i < dimensionsAndValues.length; i += 2) constraints.put((Partitioning.Dimension) dimensionsAndValues[i], (String) dimensionsAndValues[i + 1]);
+		return constraints;
+	}
+
+	@Test
+	public void rowsAreKeyedByTheirValues() {
+
+		Partitioning byYearAndDivision = Partitioning.forName("year, division");
+		assertEquals("2019_7.g", byYearAndDivision.getKey(row("2019-03-10 00:00:00.0", " 7.g ")));
+		assertEquals("unknown_unknown", byYearAndDivision.getKey(row("", null)));
+		// Nothing that wouldn't be safe in a file name
+		assertEquals("2019_7-g", byYearAndDivision.getKey(row("2019", " 7/g")));
+
+		assertEquals("7", Partitioning.forName("area").getKey(row("2019-03-10", "7.g")));
+		assertEquals("6_2019", Partitioning.forName("area,year").getKey(row("2019-03-10", "6.a")));
+	}
+
+	@Test
+	public void graphNamesGiveBackTheirKeys() {
+
+		Partitioning partitioning = Partitioning.forName("year,division");
+		assertEquals("2019_7.g", partitioning.getKey(partitioning.getGraphName("2019_7.g")));
+		assertNull(partitioning.getKey(NodeFactory.createURI("http://example.org/2019_7.g")));
+		assertNull(partitioning.getKey(NodeFactory.createLiteral(Partitioning.GRAPH_NS + "2019_7.g")));
+	}
+
+	@Test
+	public void divisionsAndAreasMatchEachOther() {
+
+		Partitioning byDivision = Partitioning.forName("year,division");
+		assertTrue(byDivision.matches("2019_7.g", constraints(Partitioning.Dimension.DIVISION, "7.g")));
+		assertFalse(byDivision.matches("2019_7.j", constraints(Partitioning.Dimension.DIVISION, "7.g")));
+		// An area matches the partitions of all its divisions
+		assertTrue(byDivision.matches("2019_7.g", constraints(Partitioning.Dimension.AREA, "7")));
+		assertTrue(byDivision.matches("2019_7.j", constraints(Partitioning.Dimension.AREA, "7")));
+		assertFalse(byDivision.matches("2019_6.a", constraints(Partitioning.Dimension.AREA, "7")));
+
+		Partitioning byArea = Partitioning.forName("area");
+		assertTrue(byArea.matches("7", constraints(Partitioning.Dimension.AREA, "7")));
+		// A division is only in its own area's partition
+		assertTrue(byArea.matches("7", constraints(Partitioning.Dimension.DIVISION, "7.g")));
+		assertFalse(byArea.matches("6", constraints(Partitioning.Dimension.DIVISION, "7.g")));
+	}
+
+	@Test
+	public void everyConstraintMustMatch() {
+
+		Partitioning partitioning = Partitioning.forName("year,division");
+		assertTrue(partitioning.matches("2019_7.g", constraints(Partitioning.Dimension.YEAR, "2019", Partitioning.Dimension.DIVISION, "7.g")));
+		assertFalse(partitioning.matches("2020_7.g", constraints(Partitioning.Dimension.YEAR, "2019", Partitioning.Dimension.DIVISION, "7.g")));
+		assertFalse(partitioning.matches("2019_7.g", constraints(Partitioning.Dimension.YEAR, "2019", Partitioning.Dimension.AREA, "6")));
+		// Compared as they'd appear in a key
+		assertTrue(partitioning.matches("2019_7.g", constraints(Partitioning.Dimension.DIVISION, " 7.g")));
+	}
+
+	@Test
+	public void whatCantBeToldApartIsntRuledOut() {
+
+		// We don't partition by year, so any partition could hold 2019's samples
+		assertTrue(Partitioning.forName("division").matches("7.g", constraints(Partitioning.Dimension.YEAR, "2019")));
+		// Nor by division or area
+		assertTrue(Partitioning.forName("year").matches("2019", constraints(Partitioning.Dimension.AREA, "7")));
+		// A key from some other partitioning
+		assertTrue(Partitioning.forName("year,division").matches("7.g", constraints(Partitioning.Dimension.DIVISION, "6.a")));
+		assertTrue(Partitioning.forName("year").matches("2019", constraints()));
+	}
+
+	@Test
+	public void divisionAndAreaTogetherAreRefused() {
+
+		try {
+			Partitioning.forName("division,area");
+			fail("Partitioning by division and area should be refused");
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().contains("not both"));
+		}
+		try {
+			Partitioning.forName(" , ");
+			fail("Partitioning by nothing should be refused");
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().contains("at least one"));
+		}
+	}
+
+}
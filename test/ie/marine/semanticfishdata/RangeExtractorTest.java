@@ -0,0 +1,200 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RangeExtractorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String URL = "jdbc:h2:mem:rangeextractortest;DB_CLOSE_DELAY=-1";
+
+	// FAILS_AT makes the query fail when it reaches the SampleID in failAt, once if failOnce is set. Only the workers
+	// reading the ranges fail - not the planning, which runs on the test's own thread
+	private static final String QUERY = "SELECT s.SampleID, s.ICES_Div, s.AphiaID, s.FishLength, s.FishWeight, s.Age, s.SampleDate, s.Gear, s.Scheme\r\n"
+			+ "FROM Samples s WHERE FAILS_AT(s.SampleID) = 0\r\nORDER BY s.SampleID;";
+
+	private static volatile long failAt = -1;
+	private static volatile boolean failOnce;
+	private static volatile Thread testThread;
+
+	// Called by the database for each row the query reads
+	public static int failsAt(long sampleID) throws SQLException {
+
+		if (sampleID != failAt || Thread.currentThread() == testThread) return 0;
+		if (failOnce) {
+			failAt = -1;
+			throw new SQLTransientConnectionException("Connection lost");
+		}
+		throw new SQLException("Bad row");
+	}
+
+	private Connection connection;
+
+	@Before
+	public void createDatabase() throws SQLException {
+
+		failAt = -1;
+		testThread = Thread.currentThread();
+		connection = DriverManager.getConnection(URL, "sa", "");
+		try (Statement stmt = connection.createStatement()) {
+			stmt.execute("CREATE TABLE Samples (SampleID BIGINT PRIMARY KEY, ICES_Div VARCHAR(20), AphiaID VARCHAR(20), FishLength VARCHAR(20),"
+					+ " FishWeight VARCHAR(20), Age VARCHAR(20), SampleDate TIMESTAMP, Gear VARCHAR(20), Scheme VARCHAR(20))");
+			stmt.execute("CREATE ALIAS FAILS_AT FOR \"" + RangeExtractorTest.class.getName() + ".failsAt\"");
+		}
+		addSamples(1, 100);
+	}
+
+	@After
+	public void dropDatabase() throws SQLException {
+
+		try (Statement stmt = connection.createStatement()) {
+			stmt.execute("DROP ALL OBJECTS");
+		}
+		connection.close();
+	}
+
+	private void addSamples(int from, int to) throws SQLException {
+
+		try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO Samples VALUES (?, '27.7.g', '126436', ?, NULL, '3', '2019-03-01 00:00:00', 'OTB', 'DCF')")) {
+			for (int i = from; i <= to; i++) {
+				stmt.setLong(1, i);
+				stmt.setString(2, Integer.toString(20 + i % 30));
+				stmt.executeUpdate();
+			}
+		}
+	}
+
+	private RangeExtractor newExtractor(File directory) {
+
+		RangeExtractor extractor = new RangeExtractor(QUERY, URL, "sa", "", SampleRowConverter.COLUMNS, directory, RangeExtractor.RangeKey.SAMPLEID, 2, new Metrics());
+		extractor.setRangeCount(4);
+		extractor.setPageSize(7);
+		extractor.setRetries(1);
+		return extractor;
+	}
+
+	// The SampleIDs in the range files, in order
+	private static List<String> readSampleIDs(List<File> files) throws Exception {
+
+		List<String> sampleIDs = new ArrayList<String>();
+		String[] row = new String[SampleRowConverter.COLUMNS.length];
+		for (File file : files) {
+			try (DelimitedFile extract = new DelimitedFile(file, '\t', SampleRowConverter.COLUMNS, RangeExtractor.NULL_VALUE)) {
+				RowSource rows = extract.rows();
+				while (rows.next(row)) sampleIDs.add(row[SampleRowConverter.SAMPLE_ID]);
+			}
+		}
+		return sampleIDs;
+	}
+
+	private static List<String> sampleIDs(int from, int to) {
+
+		List<String> sampleIDs = new ArrayList<String>();
+		for (int i = from; i <= to; i++) sampleIDs.add(Integer.toString(i));
+		return sampleIDs;
+	}
+
+	@Test
+	public void withoutOrderByDropsATrailingOrderBy() {
+
+		assertEquals("SELECT a FROM t", RangeExtractor.withoutOrderBy("SELECT a FROM t\r\nORDER BY a, b DESC;\r\n"));
+		assertEquals("SELECT a FROM t", RangeExtractor.withoutOrderBy("  SELECT a FROM t order by a  "));
+		assertEquals("SELECT a FROM t", RangeExtractor.withoutOrderBy("SELECT a FROM t;"));
+	}
+
+	@Test
+	public void withoutOrderByKeepsAnOrderByInsideTheQuery() {
+
+		// An ORDER BY in a subquery or a window isn't the query's own
+		String query = "SELECT a, ROW_NUMBER() OVER (ORDER BY a) AS n FROM t";
+		assertEquals(query, RangeExtractor.withoutOrderBy(query));
+		query = "SELECT a FROM (SELECT TOP 10 a FROM t ORDER BY a) AS x";
+		assertEquals(query, RangeExtractor.withoutOrderBy(query));
+	}
+
+	@Test
+	public void extractsEveryRowOnce() throws Exception {
+
+		File directory = folder.newFolder("extract");
+		RangeExtractor extractor = newExtractor(directory);
+		List<File> files = extractor.extract();
+
+		assertEquals(4, files.size());
+		assertEquals(sampleIDs(1, 100), readSampleIDs(files));
+
+		extractor.finish();
+		assertEquals(0, directory.list().length);
+	}
+
+	@Test
+	public void carriesOnWithAnUnfinishedExtraction() throws Exception {
+
+		File directory = folder.newFolder("extract");
+		failAt = 60;
+		try {
+			newExtractor(directory).extract();
+			fail("The extraction should have failed at SampleID 60");
+		} catch (SQLException ex) {
+			// Expected
+		}
+		assertTrue(new File(directory, "extract.properties").exists());
+
+		// Rows added since aren't in the ranges planned by the first extraction, which carries on where it stopped
+		failAt = -1;
+		addSamples(101, 120);
+		List<File> files = newExtractor(directory).extract();
+		assertEquals(sampleIDs(1, 100), readSampleIDs(files));
+	}
+
+	@Test
+	public void retriesAfterATransientError() throws Exception {
+
+		failAt = 42;
+		failOnce = true;
+		try {
+			List<File> files = newExtractor(folder.newFolder("extract")).extract();
+			assertEquals(sampleIDs(1, 100), readSampleIDs(files));
+			assertEquals(-1, failAt);
+		} finally {
+			failOnce = false;
+		}
+	}
+
+	@Test
+	public void startsAgainAfterAFinishedExtraction() throws Exception {
+
+		File directory = folder.newFolder("extract");
+		assertEquals(sampleIDs(1, 100), readSampleIDs(newExtractor(directory).extract()));
+
+		// The run stopped before finish() - e.g. loading the rows failed - so the next extraction mustn't hand back
+		// the same rows but read them all again
+		addSamples(101, 120);
+		RangeExtractor extractor = newExtractor(directory);
+		List<File> files = extractor.extract();
+		assertEquals(sampleIDs(1, 120), readSampleIDs(files));
+
+		extractor.finish();
+		assertFalse(new File(directory, "extract.properties").exists());
+	}
+
+}
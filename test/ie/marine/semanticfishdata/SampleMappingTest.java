@@ -0,0 +1,188 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.vocabulary.RDF;
+import org.junit.Test;
+
+public class SampleMappingTest {
+
+	private static final String AK = "http://example.org/ak#";
+
+	private static Properties mapping() {
+
+		Properties mapping = new Properties();
+		mapping.setProperty("sample.iri", "Sample/{SampleID}");
+		mapping.setProperty("sample.class", "Sample");
+		mapping.setProperty("link.species.iri", "Species/{AphiaID}");
+		mapping.setProperty("link.species.class", "Species");
+		mapping.setProperty("link.species.property", "hasSpecies");
+		mapping.setProperty("observation.length.iri", "Observation/{SampleID}/L");
+		mapping.setProperty("observation.length.value", "fishlength");
+		mapping.setProperty("observation.length.unit", "Unit/cm");
+		mapping.setProperty("observation.length.quality", "Quality/Length");
+		mapping.setProperty("value.vessel.value", "Vessel");
+		mapping.setProperty("value.vessel.property", "http://example.org/other#onVessel");
+		return mapping;
+	}
+
+	private static Node ak(String name) {
+		return NodeFactory.createURI(AK + name);
+	}
+
+	private static Set<Triple> convert(SampleMapping plan, String[] row) {
+
+		Set<Triple> triples = new HashSet<Triple>();
+		new SampleRowConverter(plan).convert(row, new StreamRDFBase() {
+			@Override
+			public void triple(Triple triple) {
+				triples.add(triple);
+			}
+		});
+		return triples;
+	}
+
+	@Test
+	public void templatesExpandAndMatchTheColumnValue() {
+
+		SampleMapping plan = SampleMapping.compile(AK, mapping());
+
+		assertEquals(AK + "Sample/42", plan.sampleIri.expand("42"));
+		assertEquals("42", plan.sampleIri.match(AK + "Sample/42"));
+		assertEquals(AK + "Observation/42/L", plan.measurements.get(0).iri.expand("42"));
+		assertEquals("42", plan.measurements.get(0).iri.match(AK + "Observation/42/L"));
+
+		// IRIs that weren't made from the template, or made from an empty value
+		assertNull(plan.sampleIri.match(AK + "Species/42"));
+		assertNull(plan.sampleIri.match(AK + "Sample/"));
+		assertNull(plan.measurements.get(0).iri.match(AK + "Observation/42/W"));
+
+		assertTrue(plan.isSample(ak("Sample/42")));
+		assertFalse(plan.isSample(ak("Species/42")));
+		assertFalse(plan.isSample(NodeFactory.createLiteral(AK + "Sample/42")));
+	}
+
+	@Test
+	public void samplesAndTheirObservationsGiveTheSampleID() {
+
+		Properties mapping = mapping();
+		mapping.setProperty("sample.iri", "http://example.org/data/fish/{SampleID}");
+		mapping.setProperty("observation.length.iri", "http://example.org/data/fish/{SampleID}/length");
+		SampleMapping plan = SampleMapping.compile(AK, mapping);
+
+		assertEquals(NodeFactory.createURI("http://example.org/data/fish/42"), plan.getSample("42"));
+		assertEquals("42", plan.getSampleID(NodeFactory.createURI("http://example.org/data/fish/42")));
+		assertEquals("42", plan.getSampleID(NodeFactory.createURI("http://example.org/data/fish/42/length")));
+		// The old default IRIs aren't this mapping's samples
+		assertNull(plan.getSampleID(ak("Sample/42")));
+		assertNull(plan.getSampleID(ak("Species/42")));
+	}
+
+	@Test
+	public void templatePartsAreGivenToTheCompactGraph() {
+
+		List<String> parts = new ArrayList<String>();
+		for (String[] template : SampleMapping.compile(AK, mapping()).getTemplates()) parts.add(template[0] + "|" + template[1]);
+
+		List<String> expected = new ArrayList<String>();
+		expected.add(AK + "Sample/|");
+		expected.add(AK + "Species/|");
+		expected.add(AK + "Observation/|/L");
+		assertEquals(expected, parts);
+	}
+
+	@Test
+	public void columnsOtherThanTheQueryColumnsAreAddedAfterThem() {
+
+		SampleMapping plan = SampleMapping.compile(AK, mapping());
+
+		String[] columns = plan.getColumns();
+		assertEquals(SampleRowConverter.COLUMNS.length + 1, columns.length);
+		for (int i = 0; i < SampleRowConverter.COLUMNS.length; i++) assertEquals(SampleRowConverter.COLUMNS[i], columns[i]);
+		assertEquals("Vessel", columns[columns.length - 1]);
+		// Column names are matched whatever their case
+		assertEquals(SampleRowConverter.FISH_LENGTH, plan.measurements.get(0).column);
+	}
+
+	@Test
+	public void rowsAreConvertedByThePlan() {
+
+		SampleMapping plan = SampleMapping.compile(AK, mapping());
+		String[] row = new String[plan.getColumns().length];
+		row[SampleRowConverter.SAMPLE_ID] = "7";
+		row[SampleRowConverter.APHIA_ID] = "127023";
+		row[SampleRowConverter.FISH_LENGTH] = "31.50";
+		row[row.length - 1] = "Celtic Explorer";
+
+		Set<Triple> expected = new HashSet<Triple>();
+		expected.add(Triple.create(ak("Sample/7"), RDF.Nodes.type, ak("Sample")));
+		expected.add(Triple.create(ak("Sample/7"), ak("hasSpecies"), ak("Species/127023")));
+		expected.add(Triple.create(ak("Species/127023"), RDF.Nodes.type, ak("Species")));
+		expected.add(Triple.create(ak("Observation/7/L"), RDF.Nodes.type, ak("Observation")));
+		expected.add(Triple.create(ak("Observation/7/L"), ak("hasMeasurement"), SampleRowConverter.measurementLiteral("31.50")));
+		expected.add(Triple.create(ak("Observation/7/L"), ak("hasUnit"), ak("Unit/cm")));
+		expected.add(Triple.create(ak("Unit/cm"), RDF.Nodes.type, ak("Unit")));
+		expected.add(Triple.create(ak("Observation/7/L"), ak("hasQuality"), ak("Quality/Length")));
+		expected.add(Triple.create(ak("Quality/Length"), RDF.Nodes.type, ak("Quality")));
+		expected.add(Triple.create(ak("Sample/7"), ak("hasObservation"), ak("Observation/7/L")));
+		expected.add(Triple.create(ak("Sample/7"), NodeFactory.createURI("http://example.org/other#onVessel"), NodeFactory.createLiteral("Celtic Explorer")));
+		assertEquals(expected, convert(plan, row));
+
+		// Without a value there are no triples for the column
+		row[SampleRowConverter.FISH_LENGTH] = null;
+		row[row.length - 1] = "";
+		assertEquals(3, convert(plan, row).size());
+	}
+
+	@Test
+	public void templatesMustNameOneColumn() {
+
+		Properties mapping = mapping();
+		mapping.setProperty("sample.iri", "Sample/All");
+		try {
+			SampleMapping.compile(AK, mapping);
+			fail("A template without a column should be refused");
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().contains("doesn't name a column"));
+		}
+
+		mapping.setProperty("sample.iri", "Sample/{SampleID}/{Age}");
+		try {
+			SampleMapping.compile(AK, mapping);
+			fail("A template with two columns should be refused");
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().contains("more than one column"));
+		}
+	}
+
+	@Test
+	public void theShippedMappingMakesTheOntologyIris() throws Exception {
+
+		SampleMapping plan = SampleMapping.load(AK, new File("resources/SampleMapping.properties"));
+
+		assertArrayEquals(SampleRowConverter.COLUMNS, plan.getColumns());
+		assertEquals(AK + "Sample/1", plan.sampleIri.expand("1"));
+		List<String> links = new ArrayList<String>();
+		for (SampleMapping.Link link : plan.links) links.add(link.iri.expand("x"));
+		assertTrue(links.contains(AK + "ICESDivision/x"));
+		assertTrue(links.contains(AK + "Species/x"));
+		assertEquals(3, plan.measurements.size());
+	}
+
+}
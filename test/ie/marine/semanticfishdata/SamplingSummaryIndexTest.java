@@ -0,0 +1,154 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.vocabulary.RDF;
+import org.junit.Test;
+
+public class SamplingSummaryIndexTest {
+
+	private static final String AK = "http://example.org/ak#";
+
+	private static final String HAKE = "126484";
+	private static final String MACKEREL = "127023";
+
+	private static SampleMapping mapping() throws Exception {
+		return SampleMapping.load(AK, new File("resources/SampleMapping.properties"));
+	}
+
+	private static String[] row(int sampleID, String species, String date, String division, String gear, String scheme, String length, String weight, String age) {
+
+		String[] row = new String[SampleRowConverter.COLUMNS.length];
+		row[SampleRowConverter.SAMPLE_ID] = Integer.toString(sampleID);
+		row[SampleRowConverter.APHIA_ID] = species;
+		row[SampleRowConverter.SAMPLE_DATE] = date;
+		row[SampleRowConverter.ICES_DIV] = division;
+		row[SampleRowConverter.GEAR] = gear;
+		row[SampleRowConverter.SCHEME] = scheme;
+		row[SampleRowConverter.FISH_LENGTH] = length;
+		row[SampleRowConverter.FISH_WEIGHT] = weight;
+		row[SampleRowConverter.AGE] = age;
+		return row;
+	}
+
+	private static final String[][] ROWS = {
+			row(1, HAKE, "2019-02-11 00:00:00.0", "7.g", "OTB", "DemSea", "45", "900", "4"),
+			row(2, HAKE, "2019-03-30 00:00:00.0", "7.g", "OTB", "DemSea", "38", null, null),
+			row(3, HAKE, "2019-08-01 00:00:00.0", "7.j", "GNS", "Port", "51", "1200", null),
+			row(4, MACKEREL, "2019-02-20 00:00:00.0", "7.g", "OTB", "PelSea", "31", null, "3"),
+			row(5, MACKEREL, "2020-11-05 00:00:00.0", "6.a", null, "PelSea", "33", null, null),
+			row(6, MACKEREL, null, "6.a", "PTM", null, null, "400", null) };
+
+	private static SamplingSummaryIndex counted(SampleMapping mapping) {
+
+		SamplingSummaryIndex index = new SamplingSummaryIndex(mapping);
+		for (String[] row : ROWS) index.add(row);
+		return index;
+	}
+
+	private static void assertCounts(String expected, SamplingSummaryIndex.Counts counts) {
+		assertEquals(expected, counts.toString());
+	}
+
+	@Test
+	public void everyLookupIsRolledUp() throws Exception {
+
+		SamplingSummaryIndex index = counted(mapping());
+
+		// The full combinations - the two hake samples from quarter 1 share one
+		assertEquals(5, index.size());
+		assertCounts("2 samples, 2 length, 1 age and 1 bio observations", index.lookup(HAKE, 2019, 1, "7.g", "OTB"));
+		assertCounts("0 samples, 0 length, 0 age and 0 bio observations", index.lookup(HAKE, 2019, 2, "7.g", "OTB"));
+
+		// Leaving dimensions out in any combination
+		assertCounts("6 samples, 5 length, 2 age and 3 bio observations", index.lookup(null, null, null, null, null));
+		assertCounts("3 samples, 3 length, 1 age and 2 bio observations", index.lookup(HAKE, null, null, null, null));
+		assertCounts("4 samples, 4 length, 2 age and 2 bio observations", index.lookup(null, 2019, null, null, null));
+		assertCounts("3 samples, 3 length, 2 age and 1 bio observations", index.lookup(null, 2019, 1, null, null));
+		assertCounts("3 samples, 3 length, 2 age and 1 bio observations", index.lookup(null, null, null, "7.g", null));
+		assertCounts("1 samples, 1 length, 0 age and 1 bio observations", index.lookup(HAKE, null, 3, null, "GNS"));
+		assertCounts("1 samples, 1 length, 1 age and 0 bio observations", index.lookup(MACKEREL, 2019, null, "7.g", null));
+		assertCounts("3 samples, 3 length, 2 age and 1 bio observations", index.lookup(null, null, null, null, "OTB"));
+
+		// Values that weren't recorded are counted under ""
+		assertCounts("1 samples, 1 length, 0 age and 0 bio observations", index.lookup(null, null, null, null, ""));
+		assertCounts("1 samples, 0 length, 0 age and 1 bio observations", index.lookup(MACKEREL, null, null, "6.a", "PTM"));
+
+		// And by scheme
+		SamplingSummaryIndex.Counts all = index.lookup(null, null, null, null, null);
+		assertEquals(2, all.getLengthObs("DemSea"));
+		assertEquals(1, all.getAgeObs("DemSea"));
+		assertEquals(1, all.getBioObs("Port"));
+		assertEquals(2, all.getLengthObs("PelSea"));
+		assertEquals(0, all.getLengthObs("Survey"));
+	}
+
+	@Test
+	public void anUpsertedSampleIsCountedOnce() throws Exception {
+
+		SampleMapping mapping = mapping();
+		SamplingSummaryIndex index = counted(mapping);
+		Graph graph = GraphFactory.createGraphMem();
+		SampleRowConverter converter = new SampleRowConverter(mapping);
+		for (String[] row : ROWS) converter.convert(row, StreamRDFLib.graph(graph));
+
+		// Sample 2 is corrected - it was a GNS sample from 7.j, with an age
+		String[] corrected = row(2, HAKE, "2019-03-30 00:00:00.0", "7.j", "GNS", "DemSea", "38", null, "2");
+		StreamRDF upsert = new SampleUpsertStream(mapping, graph, StreamRDFLib.graph(graph), index::remove);
+		converter.convert(corrected, upsert);
+		index.add(corrected);
+
+		assertCounts("6 samples, 5 length, 3 age and 3 bio observations", index.lookup(null, null, null, null, null));
+		assertCounts("1 samples, 1 length, 1 age and 1 bio observations", index.lookup(HAKE, 2019, 1, "7.g", "OTB"));
+		assertCounts("1 samples, 1 length, 1 age and 0 bio observations", index.lookup(HAKE, 2019, 1, "7.j", "GNS"));
+		assertEquals(1, index.lookup(null, null, null, null, "OTB").getAgeObs("DemSea"));
+		assertEquals(2, index.lookup(null, null, null, null, null).getAgeObs("DemSea"));
+		assertEquals(6, index.size());
+
+		// Removing the last sample of a combination drops the combination
+		index.remove(graph, NodeFactory.createURI(AK + "Sample/3"));
+		assertEquals(5, index.size());
+		assertCounts("0 samples, 0 length, 0 age and 0 bio observations", index.lookup(null, null, 3, null, null));
+
+		// A sample that isn't in the graph is left alone
+		index.remove(graph, NodeFactory.createURI(AK + "Sample/99"));
+		assertEquals(5, index.lookup(null, null, null, null, null).getSamples());
+	}
+
+	@Test
+	public void publishedCountsAreReadBack() throws Exception {
+
+		SampleMapping mapping = mapping();
+		SamplingSummaryIndex index = counted(mapping);
+		Graph graph = GraphFactory.createGraphMem();
+		index.publish(graph);
+		// Publishing again replaces the summaries rather than adding to them
+		index.publish(graph);
+		Node summaryClass = NodeFactory.createURI(SamplingSummaryIndex.NS + "SamplingSummary");
+		assertEquals(5, graph.find(Node.ANY, RDF.Nodes.type, summaryClass).toList().size());
+
+		SamplingSummaryIndex read = new SamplingSummaryIndex(mapping);
+		read.load(graph);
+		assertEquals(index.toString(), read.toString());
+		assertCounts(index.lookup(HAKE, 2019, 1, "7.g", "OTB").toString(), read.lookup(HAKE, 2019, 1, "7.g", "OTB"));
+		assertCounts(index.lookup(null, 2019, null, "7.g", null).toString(), read.lookup(null, 2019, null, "7.g", null));
+		assertCounts(index.lookup(null, null, null, null, "").toString(), read.lookup(null, null, null, null, ""));
+		assertCounts(index.lookup(MACKEREL, null, null, "6.a", "PTM").toString(), read.lookup(MACKEREL, null, null, "6.a", "PTM"));
+		assertEquals(2, read.lookup(null, null, null, null, null).getLengthObs("PelSea"));
+
+		// What was read back publishes the same summaries
+		Graph republished = GraphFactory.createGraphMem();
+		read.publish(republished);
+		assertTrue(republished.isIsomorphicWith(graph));
+	}
+
+}
@@ -0,0 +1,70 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SnapshotFormatTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static Graph graph(int triples) {
+
+		Graph graph = GraphFactory.createGraphMem();
+		for (int i = 0; i < triples; i++) {
+			graph.add(Triple.create(NodeFactory.createURI("http://example.org/Sample/" + i), NodeFactory.createURI("http://example.org/hasAge"), NodeFactory.createLiteral(Integer.toString(i))));
+		}
+		return graph;
+	}
+
+	@Test
+	public void readsBackWhatItWrote() throws Exception {
+
+		for (SnapshotFormat format : SnapshotFormat.values()) {
+			File file = new File(folder.getRoot(), "data" + format.getExtension());
+			format.write(graph(10), file);
+			// Writing again replaces the file
+			format.write(graph(20), file);
+
+			Graph read = GraphFactory.createGraphMem();
+			format.read(file, read);
+			assertTrue(format.name(), read.isIsomorphicWith(graph(20)));
+			assertFalse(new File(file.getPath() + ".new").exists());
+		}
+	}
+
+	@Test
+	public void aFailedWriteLeavesTheOldFile() throws Exception {
+
+		File file = new File(folder.getRoot(), "data.rdf");
+		SnapshotFormat.replace(file, out -> out.write(new byte[] { 1, 2, 3 }));
+		try {
+			SnapshotFormat.replace(file, out -> {
+				out.write(new byte[] { 4, 5 });
+				throw new IOException("No space left on device");
+			});
+			fail("The write should have failed");
+		} catch (IOException ex) {
+			assertEquals("No space left on device", ex.getMessage());
+		}
+
+		assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(file.toPath()));
+		assertFalse(new File(file.getPath() + ".new").exists());
+	}
+
+}
@@ -0,0 +1,191 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.vocabulary.OWL;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VocabularyIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String ICES = VocabularyIndex.ICES_VOCAB;
+	private static final Node EXACT_MATCH = NodeFactory.createURI(VocabularyIndex.SKOS + "exactMatch");
+	private static final Node RELATED = NodeFactory.createURI(VocabularyIndex.SKOS + "related");
+	private static final Node BROAD_MATCH = NodeFactory.createURI(VocabularyIndex.SKOS + "broadMatch");
+	private static final Node NARROW_MATCH = NodeFactory.createURI(VocabularyIndex.SKOS + "narrowMatch");
+	private static final Node FISH = NodeFactory.createURI("http://example.org/ak#Fish");
+
+	private static final String DUMP = "@prefix skos: <http://www.w3.org/2004/02/skos/core#> .\n"
+			+ "<" + ICES + "SpecWoRMS/127023> a skos:Concept ; skos:notation \"127023\" ; skos:related <" + ICES + "IC_Species/MAC> .\n"
+			+ "<" + ICES + "IC_Species/MAC> a skos:Concept ; skos:notation \"MAC\" .\n"
+			+ "<" + ICES + "IC_Divisions/27.7.g> a skos:Concept ; skos:notation \"27.7.g\" ; skos:broadMatch <" + ICES + "IC_Sub-areas/27.7> .\n"
+			+ "<" + ICES + "IC_Sub-areas/27.7> a skos:Concept ; skos:notation \"27.7\" .\n"
+			+ "<http://example.org/other/1> skos:notation \"1\" .\n";
+
+	private File writeDump() throws Exception {
+
+		File dump = new File(folder.getRoot(), "codes.ttl");
+		try (OutputStream out = new FileOutputStream(dump)) {
+			out.write(DUMP.getBytes(StandardCharsets.UTF_8));
+		}
+		return dump;
+	}
+
+	private static Node ices(String concept) {
+		return NodeFactory.createURI(ICES + concept);
+	}
+
+	// The links added for a code, or null if the code isn't in the code list
+	private static Set<Triple> links(VocabularyIndex index, String codeList, String code) {
+
+		Set<Triple> links = new HashSet<Triple>();
+		boolean found = index.addLinks(FISH, VocabularyIndex.codeList(codeList), code, new StreamRDFBase() {
+			@Override
+			public void triple(Triple triple) {
+				links.add(triple);
+			}
+		});
+		return found ? links : null;
+	}
+
+	@Test
+	public void looksUpCodes() throws Exception {
+
+		VocabularyIndex index = VocabularyIndex.parse(Arrays.asList(writeDump()));
+
+		// A WoRMS species is the same as its LSID, and linked to its ICES species code too
+		Set<Triple> expected = new HashSet<Triple>();
+		expected.add(Triple.create(FISH, EXACT_MATCH, ices("SpecWoRMS/127023")));
+		expected.add(Triple.create(FISH, OWL.sameAs.asNode(), NodeFactory.createURI(VocabularyIndex.WORMS + "127023")));
+		expected.add(Triple.create(FISH, RELATED, ices("IC_Species/MAC")));
+		assertEquals(expected, links(index, "SpecWoRMS", " 127023 "));
+
+		// The link works the other way round as well
+		expected.clear();
+		expected.add(Triple.create(FISH, EXACT_MATCH, ices("IC_Species/MAC")));
+		expected.add(Triple.create(FISH, RELATED, ices("SpecWoRMS/127023")));
+		assertEquals(expected, links(index, "ic_species", "MAC"));
+
+		assertNull(links(index, "SpecWoRMS", "999"));
+		assertNull(links(index, "IC_Species", "127023"));
+	}
+
+	@Test
+	public void divisionsAreFoundWithoutTheirFaoArea() throws Exception {
+
+		VocabularyIndex index = VocabularyIndex.parse(Arrays.asList(writeDump()));
+
+		Set<Triple> expected = new HashSet<Triple>();
+		expected.add(Triple.create(FISH, EXACT_MATCH, ices("IC_Divisions/27.7.g")));
+		expected.add(Triple.create(FISH, BROAD_MATCH, ices("IC_Sub-areas/27.7")));
+		assertEquals(expected, links(index, "IC_Divisions", "7.g"));
+		assertEquals(expected, links(index, "IC_Divisions", "27.7.g"));
+
+		// A broader concept gets the narrower link back
+		expected.clear();
+		expected.add(Triple.create(FISH, EXACT_MATCH, ices("IC_Sub-areas/27.7")));
+		expected.add(Triple.create(FISH, NARROW_MATCH, ices("IC_Divisions/27.7.g")));
+		assertEquals(expected, links(index, "IC_Sub-areas", "7"));
+
+		// Only the 27. at the start is left off
+		assertNull(links(index, "IC_Divisions", "27.g"));
+	}
+
+	@Test
+	public void readsBackASavedIndex() throws Exception {
+
+		List<File> dumps = Arrays.asList(writeDump());
+		VocabularyIndex index = VocabularyIndex.parse(dumps);
+		File file = new File(folder.getRoot(), "vocab.idx");
+		index.save(file);
+		assertFalse(new File(file.getPath() + ".new").exists());
+
+		VocabularyIndex read = VocabularyIndex.read(file, dumps);
+		assertNotNull(read);
+		assertEquals(index.size(), read.size());
+		assertEquals(index.toString(), read.toString());
+		assertEquals(links(index, "SpecWoRMS", "127023"), links(read, "SpecWoRMS", "127023"));
+		assertEquals(links(index, "IC_Divisions", "7.g"), links(read, "IC_Divisions", "7.g"));
+	}
+
+	@Test
+	public void aSavedIndexIsStaleOnceTheDumpsChange() throws Exception {
+
+		File dump = writeDump();
+		File file = new File(folder.getRoot(), "vocab.idx");
+		VocabularyIndex.parse(Arrays.asList(dump)).save(file);
+
+		assertTrue(dump.setLastModified(dump.lastModified() + 60000));
+		assertNull(VocabularyIndex.read(file, Arrays.asList(dump)));
+		assertNull(VocabularyIndex.read(file, Arrays.asList(dump, dump)));
+		assertNull(VocabularyIndex.read(new File(folder.getRoot(), "missing.idx"), Arrays.asList(dump)));
+	}
+
+	@Test
+	public void aDamagedIndexIsStale() throws Exception {
+
+		List<File> dumps = Arrays.asList(writeDump());
+		File file = new File(folder.getRoot(), "vocab.idx");
+		VocabularyIndex.parse(dumps).save(file);
+		long length = file.length();
+
+		// Cut short at any point, or with something added to the end
+		for (long cut : new long[] { 0, 3, 9, length / 2, length - 1 }) {
+			VocabularyIndex.parse(dumps).save(file);
+			try (RandomAccessFile damaged = new RandomAccessFile(file, "rw")) {
+				damaged.setLength(cut);
+			}
+			assertNull("cut to " + cut, VocabularyIndex.read(file, dumps));
+		}
+		VocabularyIndex.parse(dumps).save(file);
+		try (RandomAccessFile damaged = new RandomAccessFile(file, "rw")) {
+			damaged.seek(length);
+			damaged.writeInt(0);
+		}
+		assertNull(VocabularyIndex.read(file, dumps));
+
+		// A count that's been overwritten with nonsense
+		VocabularyIndex.parse(dumps).save(file);
+		try (RandomAccessFile damaged = new RandomAccessFile(file, "rw")) {
+			damaged.seek(8);
+			damaged.writeInt(Integer.MAX_VALUE);
+		}
+		assertNull(VocabularyIndex.read(file, dumps));
+	}
+
+	@Test
+	public void codeListsByName() {
+
+		assertEquals(VocabularyIndex.codeList("SpecWoRMS"), VocabularyIndex.codeList("specworms"));
+		try {
+			VocabularyIndex.codeList("IC_Unknown");
+			fail("An unknown code list should be refused");
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage().contains("IC_Divisions"));
+		}
+	}
+
+}
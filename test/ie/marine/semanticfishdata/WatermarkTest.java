@@ -0,0 +1,125 @@
+package ie.marine.semanticfishdata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.Predicate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WatermarkTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static String[] row(String sampleID, String sampleDate) {
+
+		String[] row = new String[SampleRowConverter.COLUMNS.length];
+		row[SampleRowConverter.SAMPLE_ID] = sampleID;
+		row[SampleRowConverter.SAMPLE_DATE] = sampleDate;
+		return row;
+	}
+
+	@Test
+	public void advancesToTheLatestDateAndHighestID() {
+
+		Watermark watermark = new Watermark();
+		assertFalse(watermark.isSet());
+
+		watermark.advance("2019-03-01 00:00:00", "9");
+		watermark.advance("2019-02-01 00:00:00", "10");
+		watermark.advance(null, "");
+
+		assertEquals("2019-03-01 00:00:00", watermark.getLastSampleDate());
+		// Numeric IDs are compared as numbers, not strings
+		assertEquals("10", watermark.getLastSampleID());
+	}
+
+	@Test
+	public void tracksTheRowsReadFromASource() throws Exception {
+
+		Iterator<String[]> rows = Arrays.asList(row("1", "2019-01-05 00:00:00"), row("3", "2019-01-02 00:00:00"), row("2", null)).iterator();
+		Watermark watermark = new Watermark();
+		RowSource source = watermark.track(row -> {
+			if (!rows.hasNext()) return false;
+			System.arraycopy(rows.next(), 0, row, 0, row.length);
+			return true;
+		});
+
+		String[] row = new String[SampleRowConverter.COLUMNS.length];
+		while (source.next(row)) {
+			// Read to the end
+		}
+
+		assertEquals("2019-01-05 00:00:00", watermark.getLastSampleDate());
+		assertEquals("3", watermark.getLastSampleID());
+	}
+
+	@Test
+	public void resumesFromASavedWatermark() throws Exception {
+
+		Watermark watermark = new Watermark();
+		watermark.advance("2019-06-30 00:00:00", "4711");
+		File file = folder.newFile("data.watermark");
+		watermark.save(file);
+
+		Watermark loaded = Watermark.load(file);
+		assertEquals("2019-06-30 00:00:00", loaded.getLastSampleDate());
+		assertEquals("4711", loaded.getLastSampleID());
+		assertEquals(LocalDate.of(2019, 6, 23), loaded.getRefreshFromDate(7));
+	}
+
+	@Test
+	public void missingFileGivesAnEmptyWatermark() throws Exception {
+
+		Watermark loaded = Watermark.load(new File(folder.getRoot(), "missing.watermark"));
+		assertFalse(loaded.isSet());
+		assertNull(loaded.getLastSampleID());
+		assertEquals(LocalDate.of(1900, 1, 1), loaded.getRefreshFromDate(7));
+	}
+
+	@Test
+	public void newRowsIncludeTiesOnTheWatermarkDate() {
+
+		Watermark watermark = new Watermark();
+		watermark.advance("2019-06-30 00:00:00", "100");
+		Predicate<String[]> newRows = watermark.newRows(0);
+
+		// Landed on the watermark date but with a lower SampleID - e.g. a second sample from the same day, added later
+		assertTrue(newRows.test(row("50", "2019-06-30 00:00:00")));
+		// A higher SampleID, whatever its date
+		assertTrue(newRows.test(row("101", "2018-01-01 00:00:00")));
+		assertTrue(newRows.test(row("101", null)));
+		// Older and lower - already loaded
+		assertFalse(newRows.test(row("99", "2019-06-29 00:00:00")));
+		assertFalse(newRows.test(row("100", null)));
+	}
+
+	@Test
+	public void newRowsLookBackForCorrections() {
+
+		Watermark watermark = new Watermark();
+		watermark.advance("2019-06-30 00:00:00", "100");
+		Predicate<String[]> newRows = watermark.newRows(7);
+
+		assertTrue(newRows.test(row("10", "2019-06-23 00:00:00")));
+		assertFalse(newRows.test(row("10", "2019-06-22 00:00:00")));
+	}
+
+	@Test
+	public void everyRowIsNewWithoutAWatermark() {
+
+		Predicate<String[]> newRows = new Watermark().newRows(7);
+		assertTrue(newRows.test(row("1", null)));
+		assertTrue(newRows.test(row("2", "1899-01-01 00:00:00")));
+	}
+
+}